@@ -0,0 +1,161 @@
+package uk.ac.ed.inf.aqmaps;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+// VectorMoveKernel tests the moves from a position against a segment in SIMD
+// lanes, one move per lane, with the same floating point operations as
+// SegmentIntersection so that every lane gets the same answer as the scalar
+// test would. The orientation predicates are evaluated in every lane, and a
+// lane is only decided by them when each of its determinants is clear of the
+// error bound. Lanes which are not (moves nearly collinear with the segment
+// or touching it) are passed to ScalarMoveKernel, whose exact fallback
+// decides them; so are all the moves from a position on the line through the
+// segment, which is rare.
+// It is built from src/java17/java by the java17 Maven profile, and needs the
+// JVM to be started with --add-modules jdk.incubator.vector.
+public class VectorMoveKernel implements MoveKernel {
+
+	private static final VectorSpecies<Double> SPECIES =
+			DoubleVector.SPECIES_PREFERRED;
+	// The 36 moves padded to a whole number of vectors
+	private static final int PADDED_MOVES =
+			(36 + SPECIES.length() - 1) / SPECIES.length() * SPECIES.length();
+	private static final double[] MOVE_LNG = new double[PADDED_MOVES];
+	private static final double[] MOVE_LAT = new double[PADDED_MOVES];
+	// The bits of a move mask held by one vector
+	private static final long LANE_BITS = (1L << SPECIES.length()) - 1;
+	private static final double ERROR_BOUND =
+			SegmentIntersection.ORIENTATION_ERROR_BOUND;
+	// Lane i holds 2^i, so that the sum of the lanes set in a mask gives the
+	// mask's bits.
+	private static final DoubleVector LANE_VALUES;
+	private static final DoubleVector ZERO = DoubleVector.zero(SPECIES);
+
+	static {
+		for (int i = 0; i < 36; i++) {
+			MOVE_LNG[i] = PointUtils.moveLng(i*10);
+			MOVE_LAT[i] = PointUtils.moveLat(i*10);
+		}
+		var laneValues = new double[SPECIES.length()];
+		for (int i = 0; i < laneValues.length; i++) {
+			laneValues[i] = 1L << i;
+		}
+		LANE_VALUES = DoubleVector.fromArray(SPECIES, laneValues, 0);
+	}
+
+	private final ScalarMoveKernel scalarKernel = new ScalarMoveKernel();
+
+	@Override
+	public long illegalMoveMask(double lng, double lat, double lng1,
+			double lat1, double lng2, double lat2, long candidateMoves) {
+		var segmentMinLng = Math.min(lng1, lng2);
+		var segmentMinLat = Math.min(lat1, lat2);
+		var segmentMaxLng = Math.max(lng1, lng2);
+		var segmentMaxLat = Math.max(lat1, lat2);
+		var segmentLng = lng2 - lng1;
+		var segmentLat = lat2 - lat1;
+		// The start of every move is the same, so if it is on the inner
+		// side of a side of the segment's bounding box the move is too, and
+		// the end of the move is compared with an infinite bound instead.
+		var minLng = DoubleVector.broadcast(SPECIES, lng >= segmentMinLng 
+				? Double.NEGATIVE_INFINITY : segmentMinLng);
+		var maxLng = DoubleVector.broadcast(SPECIES, lng <= segmentMaxLng 
+				? Double.POSITIVE_INFINITY : segmentMaxLng);
+		var minLat = DoubleVector.broadcast(SPECIES, lat >= segmentMinLat 
+				? Double.NEGATIVE_INFINITY : segmentMinLat);
+		var maxLat = DoubleVector.broadcast(SPECIES, lat <= segmentMaxLat 
+				? Double.POSITIVE_INFINITY : segmentMaxLat);
+		var px = DoubleVector.broadcast(SPECIES, lng);
+		var py = DoubleVector.broadcast(SPECIES, lat);
+
+		// The orientation of the position relative to the segment is the same
+		// for every move, so it is only found once, when the first move whose
+		// bounding box overlaps the segment's is reached. Until then it is 2,
+		// which orientation never returns.
+		var o3 = 2;
+		var illegalMoves = 0L;
+		var uncertainMoves = 0L;
+		for (int offset = 0; offset < 36; offset += SPECIES.length()) {
+			if ((candidateMoves >>> offset & LANE_BITS) == 0) {
+				continue;
+			}
+			var qx = px.add(DoubleVector.fromArray(SPECIES, MOVE_LNG, offset));
+			var qy = py.add(DoubleVector.fromArray(SPECIES, MOVE_LAT, offset));
+
+			// Moves whose bounding boxes do not overlap the segment's cannot
+			// intersect it.
+			var overlaps = qx.compare(VectorOperators.GE, minLng)
+					.and(qx.compare(VectorOperators.LE, maxLng))
+					.and(qy.compare(VectorOperators.GE, minLat))
+					.and(qy.compare(VectorOperators.LE, maxLat));
+			if (!overlaps.anyTrue()) {
+				continue;
+			}
+			if (o3 == 2) {
+				o3 = SegmentIntersection.orientation(lng1, lat1, lng2, lat2,
+						lng, lat);
+				if (o3 == 0) {
+					return scalarKernel.illegalMoveMask(lng, lat, lng1, lat1,
+							lng2, lat2, candidateMoves);
+				}
+			}
+
+			// o1 and o2 are the orientations of the segment's endpoints
+			// relative to the move, and o4 that of the end of the move
+			// relative to the segment, as in SegmentIntersection.intersects.
+			var moveLng = qx.sub(px);
+			var moveLat = qy.sub(py);
+			var left1 = moveLng.mul(lat1 - lat);
+			var right1 = moveLat.mul(lng1 - lng);
+			var determinant1 = left1.sub(right1);
+			var bound1 = left1.abs().add(right1.abs()).mul(ERROR_BOUND);
+			var left2 = moveLng.mul(lat2 - lat);
+			var right2 = moveLat.mul(lng2 - lng);
+			var determinant2 = left2.sub(right2);
+			var bound2 = left2.abs().add(right2.abs()).mul(ERROR_BOUND);
+			var left4 = qy.sub(lat1).mul(segmentLng);
+			var right4 = qx.sub(lng1).mul(segmentLat);
+			// determinant4 is negated if o3 is negative, so that the move
+			// crosses the segment's line where it is certainly negative.
+			var determinant4 = left4.sub(right4).mul(o3);
+			var bound4 = left4.abs().add(right4.abs()).mul(ERROR_BOUND);
+
+			var positive1 = determinant1.compare(VectorOperators.GT, bound1);
+			var negative1 = determinant1.neg()
+					.compare(VectorOperators.GT, bound1);
+			var positive2 = determinant2.compare(VectorOperators.GT, bound2);
+			var negative2 = determinant2.neg()
+					.compare(VectorOperators.GT, bound2);
+			var positive4 = determinant4.compare(VectorOperators.GT, bound4);
+			var negative4 = determinant4.neg()
+					.compare(VectorOperators.GT, bound4);
+			var certain = positive1.or(negative1).and(positive2.or(negative2))
+					.and(positive4.or(negative4));
+			var crosses = positive1.and(negative2).or(negative1.and(positive2))
+					.and(negative4);
+			illegalMoves |= toBits(overlaps.and(certain).and(crosses))
+					<< offset;
+			uncertainMoves |= toBits(overlaps.andNot(certain)) << offset;
+		}
+		illegalMoves &= candidateMoves;
+		uncertainMoves &= candidateMoves;
+		if (uncertainMoves != 0) {
+			illegalMoves |= scalarKernel.illegalMoveMask(lng, lat, lng1, lat1,
+					lng2, lat2, uncertainMoves);
+		}
+		return illegalMoves;
+	}
+
+	// Returns the mask as a long with bit i set if lane i is set. This is
+	// the same as mask.toLong(), which JDK 17 does not compile to vector
+	// instructions, done with a blend and a sum of lane values instead.
+	private static long toBits(VectorMask<Double> mask) {
+		return (long) ZERO.blend(LANE_VALUES, mask)
+				.reduceLanes(VectorOperators.ADD);
+	}
+
+}
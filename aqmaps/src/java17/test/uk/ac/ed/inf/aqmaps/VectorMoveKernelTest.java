@@ -0,0 +1,14 @@
+package uk.ac.ed.inf.aqmaps;
+
+
+// Runs the tests of MoveKernelTest against VectorMoveKernel. It is built from
+// src/java17/test by the java17 Maven profile, which runs the tests with the
+// jdk.incubator.vector module added.
+public class VectorMoveKernelTest extends MoveKernelTest {
+
+	@Override
+	protected MoveKernel kernel() {
+		return new VectorMoveKernel();
+	}
+
+}
@@ -0,0 +1,150 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.ZipFile;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.Point;
+
+
+// BenchmarkFixtures loads the inputs of the benchmarks for a date: the
+// sensors, launch point and flight of the date are taken from the sample
+// results in ilp-results.zip, and the no fly zones from a geojson file in the
+// format served by the web server.
+// The results do not hold the sensors' battery levels or readings, so every
+// sensor is given a full battery and a fixed reading; neither affects the
+// planning.
+public class BenchmarkFixtures {
+
+	private final List<String> flightPathLines;
+	private final FeatureCollection readings;
+
+	private BenchmarkFixtures(List<String> flightPathLines,
+			FeatureCollection readings) {
+		this.flightPathLines = flightPathLines;
+		this.readings = readings;
+	}
+
+	// Loads the results of the date 2020-MM-MM from the given zip file, where
+	// month is given as MM.
+	public static BenchmarkFixtures load(String resultsZip, String month)
+			throws IOException {
+		var date = month + "-" + month + "-2020";
+		try (var zip = new ZipFile(resultsZip)) {
+			var flightPath = readEntry(zip,
+					"ilp-results/flightpath-" + date + ".txt");
+			var readings = readEntry(zip,
+					"ilp-results/readings-" + date + ".geojson");
+			return new BenchmarkFixtures(
+					flightPath.lines().collect(Collectors.toList()),
+					FeatureCollection.fromJson(readings));
+		}
+	}
+
+	// Returns the obstacleGrid for the no fly zones in the given geojson file,
+	// with landmark distance fields computed for it (they are not stored, so
+	// that benchmarks do not depend on what earlier runs left on disk).
+	public static ObstacleGrid loadObstacleGrid(String noFlyZonesFile)
+			throws IOException {
+		if (noFlyZonesFile.isEmpty()) {
+			throw new IllegalStateException("The no fly zones must be given "
+					+ "with -p noFlyZones=PATH-TO-GEOJSON");
+		}
+		var obstacleGrid = DroneController.buildObstacleGrid(
+				DroneController.getConfinementArea(),
+				Files.readString(Paths.get(noFlyZonesFile)));
+		return obstacleGrid.withLandmarkField(
+				LandmarkField.compute(obstacleGrid));
+	}
+
+	public Point getLaunchPosition() {
+		var fields = flightPathLines.get(0).split(",");
+		return Point.fromLngLat(Double.parseDouble(fields[1]),
+				Double.parseDouble(fields[2]));
+	}
+
+	// Returns the positions the drone flew through, in order.
+	public List<Point> getDronePositions() {
+		var positions = new ArrayList<Point>();
+		positions.add(getLaunchPosition());
+		for (String line : flightPathLines) {
+			var fields = line.split(",");
+			positions.add(Point.fromLngLat(Double.parseDouble(fields[4]),
+					Double.parseDouble(fields[5])));
+		}
+		return positions;
+	}
+
+	// Returns the legs of the flight, as pairs of start and target positions,
+	// from the launch point to the first sensor read and then between each
+	// sensor read and the next.
+	public List<Point[]> getSensorLegs() {
+		var sensorPositions = new HashMap<String, Point>();
+		for (var feature : readings.features()) {
+			if (feature.geometry() instanceof Point) {
+				sensorPositions.put(feature.getStringProperty("location"),
+						(Point) feature.geometry());
+			}
+		}
+		var legs = new ArrayList<Point[]>();
+		var start = getLaunchPosition();
+		for (String line : flightPathLines) {
+			var location = line.substring(line.lastIndexOf(',') + 1);
+			var target = sensorPositions.get(location);
+			if (target != null) {
+				legs.add(new Point[] {start, target});
+				start = target;
+			}
+		}
+		return legs;
+	}
+
+	// Returns new Sensors for the date, as loadSensorList would, so that
+	// each run of a flight starts with unvisited sensors.
+	public List<Sensor> newSensorList() {
+		var gson = new Gson();
+		var sensorList = new ArrayList<Sensor>();
+		for (var feature : readings.features()) {
+			if (!(feature.geometry() instanceof Point)) {
+				continue;
+			}
+			var position = (Point) feature.geometry();
+			var sensorJson = new JsonObject();
+			sensorJson.addProperty("location",
+					feature.getStringProperty("location"));
+			sensorJson.addProperty("battery", 100.0);
+			sensorJson.addProperty("reading", 100.0);
+			var sensor = gson.fromJson(sensorJson, Sensor.class);
+
+			var coordinates = new JsonObject();
+			coordinates.addProperty("lng", position.longitude());
+			coordinates.addProperty("lat", position.latitude());
+			var details = new JsonObject();
+			details.add("coordinates", coordinates);
+			sensor.setPosition(details.toString());
+			sensor.setMarkerProperties("#aaaaaa", "");
+			sensorList.add(sensor);
+		}
+		return sensorList;
+	}
+
+	private static String readEntry(ZipFile zip, String name)
+			throws IOException {
+		var entry = zip.getEntry(name);
+		if (entry == null) {
+			throw new IOException(name + " is not in " + zip.getName());
+		}
+		try (var input = zip.getInputStream(entry)) {
+			return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+}
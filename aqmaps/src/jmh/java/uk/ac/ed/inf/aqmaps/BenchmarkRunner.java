@@ -0,0 +1,25 @@
+package uk.ac.ed.inf.aqmaps;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+// BenchmarkRunner is the main class of benchmarks.jar. It takes the usual JMH
+// command line options, and always adds the GC profiler so that every result
+// reports the allocation rate alongside the time.
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws CommandLineOptionException,
+			RunnerException {
+		var options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
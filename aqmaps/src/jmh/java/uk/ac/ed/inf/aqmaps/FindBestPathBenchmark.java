@@ -0,0 +1,58 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.mapbox.geojson.Point;
+
+
+// Benchmarks AStarUtils.findBestPath on the legs of a sample flight, from the
+// launch point to the first sensor read and from each sensor read to the
+// next.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FindBestPathBenchmark {
+
+	@Param("../ilp-results.zip")
+	public String resultsZip;
+
+	@Param("")
+	public String noFlyZones;
+
+	@Param({"01", "06", "11"})
+	public String month;
+
+	private List<Point[]> legs;
+	private ObstacleGrid obstacleGrid;
+
+	@Setup
+	public void setUp() throws IOException {
+		legs = BenchmarkFixtures.load(resultsZip, month).getSensorLegs();
+		obstacleGrid = BenchmarkFixtures.loadObstacleGrid(noFlyZones);
+	}
+
+	@Benchmark
+	public void findBestPath(Blackhole blackhole) {
+		for (Point[] leg : legs) {
+			blackhole.consume(AStarUtils.findBestPath(leg[0], leg[1],
+					obstacleGrid, 0.0002));
+		}
+	}
+
+}
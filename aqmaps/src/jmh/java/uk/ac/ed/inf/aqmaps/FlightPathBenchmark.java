@@ -0,0 +1,78 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Benchmarks DroneController.greedyFlightPath end to end for a date: the leg
+// cost matrix, the tour and the flight along it, including writing the output
+// files (to a temporary directory).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FlightPathBenchmark {
+
+	@Param("../ilp-results.zip")
+	public String resultsZip;
+
+	@Param("")
+	public String noFlyZones;
+
+	@Param({"01", "06", "11"})
+	public String month;
+
+	private BenchmarkFixtures fixtures;
+	private ObstacleGrid obstacleGrid;
+	private Path outputDirectory;
+	private DroneController droneController;
+
+	@Setup
+	public void setUp() throws IOException {
+		fixtures = BenchmarkFixtures.load(resultsZip, month);
+		obstacleGrid = BenchmarkFixtures.loadObstacleGrid(noFlyZones);
+		outputDirectory = Files.createTempDirectory("aqmaps-benchmark");
+	}
+
+	// Each flight needs a new drone and unvisited sensors.
+	@Setup(Level.Invocation)
+	public void setUpFlight() {
+		var drone = new Drone(fixtures.getLaunchPosition());
+		droneController = new DroneController(obstacleGrid,
+				fixtures.newSensorList(), "2020", month, month, drone);
+		droneController.setOutputDirectory(outputDirectory);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		try (var files = Files.list(outputDirectory)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(outputDirectory);
+	}
+
+	@Benchmark
+	public void greedyFlightPath() {
+		droneController.greedyFlightPath();
+	}
+
+}
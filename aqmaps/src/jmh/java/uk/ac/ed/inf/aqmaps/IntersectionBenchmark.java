@@ -0,0 +1,77 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mapbox.geojson.Point;
+
+
+// Benchmarks LineSegment.intersectsWith by testing every move of a sample
+// flight against every no fly line segment, which is the test the planner
+// made for each candidate move before ObstacleGrid.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IntersectionBenchmark {
+
+	@Param("../ilp-results.zip")
+	public String resultsZip;
+
+	@Param("")
+	public String noFlyZones;
+
+	@Param("01")
+	public String month;
+
+	private LineSegment[] moves;
+	private LineSegment[] noFlyLineSegments;
+
+	@Setup
+	public void setUp() throws IOException {
+		var positions = BenchmarkFixtures.load(resultsZip, month)
+				.getDronePositions();
+		moves = new LineSegment[positions.size() - 1];
+		for (int i = 0; i < moves.length; i++) {
+			moves[i] = new LineSegment(positions.get(i), positions.get(i+1));
+		}
+
+		var obstacleGrid = BenchmarkFixtures.loadObstacleGrid(noFlyZones);
+		noFlyLineSegments = new LineSegment[obstacleGrid.getSegmentCount()];
+		for (int i = 0; i < noFlyLineSegments.length; i++) {
+			noFlyLineSegments[i] = new LineSegment(
+					Point.fromLngLat(obstacleGrid.getSegmentLng1(i),
+							obstacleGrid.getSegmentLat1(i)),
+					Point.fromLngLat(obstacleGrid.getSegmentLng2(i),
+							obstacleGrid.getSegmentLat2(i)));
+		}
+	}
+
+	// Returns the number of intersecting pairs so that none of the tests can
+	// be optimised away.
+	@Benchmark
+	public int intersectsWith() {
+		var count = 0;
+		for (LineSegment move : moves) {
+			for (LineSegment segment : noFlyLineSegments) {
+				if (move.intersectsWith(segment)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+}
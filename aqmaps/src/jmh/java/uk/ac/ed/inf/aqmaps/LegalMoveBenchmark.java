@@ -0,0 +1,64 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// Benchmarks the neighbour generation of the A* search, which is
+// ObstacleGrid.legalMoveMask, at every position of a sample flight.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LegalMoveBenchmark {
+
+	@Param("../ilp-results.zip")
+	public String resultsZip;
+
+	@Param("")
+	public String noFlyZones;
+
+	@Param("01")
+	public String month;
+
+	private double[] lngs;
+	private double[] lats;
+	private ObstacleGrid obstacleGrid;
+
+	@Setup
+	public void setUp() throws IOException {
+		var positions = BenchmarkFixtures.load(resultsZip, month)
+				.getDronePositions();
+		lngs = new double[positions.size()];
+		lats = new double[positions.size()];
+		for (int i = 0; i < lngs.length; i++) {
+			lngs[i] = positions.get(i).longitude();
+			lats[i] = positions.get(i).latitude();
+		}
+		obstacleGrid = BenchmarkFixtures.loadObstacleGrid(noFlyZones);
+	}
+
+	// Returns the masks combined so that none of them can be optimised away.
+	@Benchmark
+	public long legalMoveMask() {
+		var masks = 0L;
+		for (int i = 0; i < lngs.length; i++) {
+			masks ^= obstacleGrid.legalMoveMask(lngs[i], lats[i]);
+		}
+		return masks;
+	}
+
+}
@@ -0,0 +1,150 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import com.mapbox.geojson.Point;
+
+
+// Benchmarks replanning the legs of a sample flight when a building is closed
+// while the drone flies them: repairing each leg's IncrementalSearch against
+// searching the rest of the leg again with AStarUtils. Before each run the
+// search of every leg is made, and the drone moved two moves along its path.
+// The closure is a square a move and a half wide, centred on the leg's path
+// a few moves ahead of the drone, or anywhere around the leg.
+// The grids with the closures have no landmark distance fields, as grids
+// given to DroneController.updateObstacleGrid do not.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplanBenchmark {
+
+	private static final double CLOSE_ENOUGH = 0.0002;
+	private static final double CLOSURE_SIZE = 0.00024;
+
+	@Param("../ilp-results.zip")
+	public String resultsZip;
+
+	@Param("")
+	public String noFlyZones;
+
+	@Param({"01", "06", "11"})
+	public String month;
+
+	@Param({"ahead", "around"})
+	public String closure;
+
+	private ObstacleGrid obstacleGrid;
+	private final List<Point[]> legs = new ArrayList<>();
+	private final List<ObstacleGrid> closedGrids = new ArrayList<>();
+	private final List<Point> dronePositions = new ArrayList<>();
+	private final List<IncrementalSearch> searches = new ArrayList<>();
+
+	@Setup
+	public void setUp() throws IOException {
+		obstacleGrid = BenchmarkFixtures.loadObstacleGrid(noFlyZones);
+		var random = new Random(1);
+		for (Point[] leg : BenchmarkFixtures.load(resultsZip, month)
+				.getSensorLegs()) {
+			var moves = AStarUtils.findBestMoves(leg[0], leg[1], obstacleGrid,
+					CLOSE_ENOUGH);
+			// The drone needs a few moves of the leg left to replan.
+			if (moves == null || moves.length < 6) {
+				continue;
+			}
+			var path = AStarUtils.replayMoves(leg[0], moves);
+			var centre = closure.equals("ahead") ? path.get(4)
+					: randomPositionAround(leg, random);
+			legs.add(leg);
+			closedGrids.add(withClosure(centre));
+			dronePositions.add(path.get(2));
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void startSearches() {
+		searches.clear();
+		for (int i = 0; i < legs.size(); i++) {
+			var leg = legs.get(i);
+			var search = new IncrementalSearch(leg[0], leg[1], obstacleGrid,
+					CLOSE_ENOUGH);
+			search.findBestMoves();
+			search.moveTo(dronePositions.get(i));
+			searches.add(search);
+		}
+	}
+
+	@Benchmark
+	public void repairIncrementalSearch(Blackhole blackhole) {
+		for (int i = 0; i < searches.size(); i++) {
+			var search = searches.get(i);
+			search.updateObstacleGrid(closedGrids.get(i));
+			blackhole.consume(search.findBestMoves());
+		}
+	}
+
+	@Benchmark
+	public void searchFromScratch(Blackhole blackhole) {
+		for (int i = 0; i < legs.size(); i++) {
+			blackhole.consume(AStarUtils.findBestMoves(dronePositions.get(i),
+					legs.get(i)[1], closedGrids.get(i), CLOSE_ENOUGH));
+		}
+	}
+
+	// Returns a position within a few moves of the box around the leg.
+	private static Point randomPositionAround(Point[] leg, Random random) {
+		var margin = 0.001;
+		var minLng = Math.min(leg[0].longitude(), leg[1].longitude()) - margin;
+		var maxLng = Math.max(leg[0].longitude(), leg[1].longitude()) + margin;
+		var minLat = Math.min(leg[0].latitude(), leg[1].latitude()) - margin;
+		var maxLat = Math.max(leg[0].latitude(), leg[1].latitude()) + margin;
+		return Point.fromLngLat(
+				minLng + random.nextDouble() * (maxLng - minLng),
+				minLat + random.nextDouble() * (maxLat - minLat));
+	}
+
+	// Returns the obstacleGrid with a square closure centred on the given
+	// position added to it.
+	private ObstacleGrid withClosure(Point centre) {
+		var segments = new ArrayList<LineSegment>();
+		for (int i = 0; i < obstacleGrid.getSegmentCount(); i++) {
+			segments.add(new LineSegment(
+					Point.fromLngLat(obstacleGrid.getSegmentLng1(i),
+							obstacleGrid.getSegmentLat1(i)),
+					Point.fromLngLat(obstacleGrid.getSegmentLng2(i),
+							obstacleGrid.getSegmentLat2(i))));
+		}
+		var half = CLOSURE_SIZE / 2;
+		var corners = new Point[4];
+		for (int i = 0; i < 4; i++) {
+			var lngSign = i == 0 || i == 3 ? -1 : 1;
+			var latSign = i < 2 ? -1 : 1;
+			corners[i] = Point.fromLngLat(centre.longitude() + lngSign * half,
+					centre.latitude() + latSign * half);
+		}
+		for (int i = 0; i < 4; i++) {
+			segments.add(new LineSegment(corners[i], corners[(i + 1) % 4]));
+		}
+		return new ObstacleGrid(segments,
+				DroneController.getConfinementArea());
+	}
+
+}
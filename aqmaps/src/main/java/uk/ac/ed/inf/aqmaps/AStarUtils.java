@@ -1,128 +1,192 @@
 package uk.ac.ed.inf.aqmaps;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
 import com.mapbox.geojson.Point;
 
 
 public class AStarUtils {
-	// Pseudocode cited in the report from Wikipedia was used in the coding
-	// of the reconstructPath function. This function is used to reconstruct
-	// the cheapest path found from the aStar function given cameFrom, which
-	// should map each point to the previous point which it came from in the
-	// cheapest known path to that point, and current, which is considered
-	// the target point or a point close enough to the target.
-	private static List<Point> reconstructPath(Map<Point,Point> cameFrom, 
-			Point current) {
-		var totalPath = new ArrayList<Point>();
-		totalPath.add(current);
-		
-		while (cameFrom.containsKey(current)) {
-			current = cameFrom.get(current);
-			totalPath.add(0,current);
-		}
-		
-		return totalPath;
+	
+	// The length of every drone move
+	private static final double MOVE_LENGTH = 0.0003;
+	
+	// True if legs are searched from both ends by BidirectionalSearch, which
+	// is set by the system property aqmaps.search=bidirectional.
+	private static final boolean isBidirectional = "bidirectional".equals(
+			System.getProperty("aqmaps.search"));
+	
+	// Each thread keeps one SearchState which is reused for every search it
+	// runs, rather than building new maps of Points for every leg.
+	private static final ThreadLocal<SearchState> searchStates = 
+			ThreadLocal.withInitial(SearchState::new);
+	
+	// Returns true if legs are searched for by BidirectionalSearch.
+	public static boolean isBidirectional() {
+		return isBidirectional;
 	}
 	
 	// Pseudocode cited in the report, from Wikipedia, was used in the coding
 	// and commenting of this A* pathfinding function. This function takes a 
-	// start Point and a target Point as well as noFlyLineSegments and returns a 
-	// path, as a list of points, from the start to the target which does not 
-	// intersect with any of the noFlyLineSegments. When the distance between a 
+	// start Point and a target Point as well as obstacleGrid and returns a 
+	// path, as a list of points, from the start to the target which only makes
+	// moves that obstacleGrid considers legal. When the distance between a 
 	// point and the target is less than the closeEnough value, this point is 
 	// considered to be close enough to the target such that the point is 
 	// considered the target.
+	// Returns null if there is no such path.
 	public static List<Point> findBestPath(Point start, Point target, 
-			List<LineSegment> noFlyLineSegments, double closeEnough) {
-		var nodeComparator = new NodeComparator();
+			ObstacleGrid obstacleGrid, double closeEnough) {
+		var moves = findBestMoves(start, target, obstacleGrid, closeEnough);
+		if (moves == null) {
+			return null;
+		}
+		return replayMoves(start, moves);
+	}
+	
+	// Returns the path found by replaying the moves, given by their angles,
+	// from start. Every move in the returned path is exactly a legal drone 
+	// move, even when positions reached by different paths during the search
+	// were snapped to the same node.
+	public static List<Point> replayMoves(Point start, int[] moves) {
+		var path = new ArrayList<Point>(moves.length + 1);
+		var current = start;
+		path.add(current);
+		for (int i = 0; i < moves.length; i++) {
+			current = PointUtils.pointAfterMove(current, moves[i]);
+			path.add(current);
+		}
+		return path;
+	}
+	
+	// Runs the same search as findBestPath, but returns the angles of the 
+	// moves along the path found rather than the points, or null if there is
+	// no path.
+	public static int[] findBestMoves(Point start, Point target, 
+			ObstacleGrid obstacleGrid, double closeEnough) {
+		return findBestMoves(start, target, obstacleGrid, closeEnough, 
+				Deadline.none());
+	}
+	
+	// Runs the same search as findBestMoves, but stops with a 
+	// CancellationException once the deadline passes.
+	// The work done by the search and the time it takes are recorded in 
+	// PlannerMetrics. If bidirectional search is enabled the search is run
+	// by BidirectionalSearch instead.
+	public static int[] findBestMoves(Point start, Point target, 
+			ObstacleGrid obstacleGrid, double closeEnough, Deadline deadline) {
+		if (isBidirectional) {
+			return BidirectionalSearch.findBestMoves(start, target, 
+					obstacleGrid, closeEnough, deadline);
+		}
+		var startNanos = System.nanoTime();
+		// state holds cameFrom, gScore and fScore for every node reached by
+		// the search - see SearchState for more info.
+		var state = searchStates.get();
+		state.reset(start, deadline);
+		try {
+			return search(start, target, obstacleGrid, closeEnough, state);
+		} finally {
+			PlannerMetrics.nodesExpanded.add(state.getExpansionCount());
+			PlannerMetrics.intersectionTests.add(
+					state.getIntersectionTestCount());
+			PlannerMetrics.openSetPeakSize.record(
+					state.getOpenSet().getPeakSize());
+			PlannerMetrics.searchTime.recordSince(startNanos);
+		}
+	}
+	
+	private static int[] search(Point start, Point target, 
+			ObstacleGrid obstacleGrid, double closeEnough, SearchState state) {
 		// openSet is the set of nodes to be expanded in the order set by the
-		// priority queue - see NodeComparator for more info.
-		var openSet = new PriorityQueue<Node>(11,nodeComparator);
+		// heap - see OpenSet for more info.
+		var openSet = state.getOpenSet();
 		
-		// cameFrom maps each point to the previous point which it came from
-		// in the cheapest known path to that point.
-		var cameFrom = new HashMap<Point, Point>();
+		var targetLng = target.longitude();
+		var targetLat = target.latitude();
 		
-		// gScore maps each point to it's gScore (cheapest known path from the
-		// starting point to the point in the Map)
-		var gScore = new HashMap<Point, Double>();
-		gScore.put(start,(double) 0);
+		// The fScore of a node is its gScore (cheapest known path from the
+		// starting point to the node) plus its heuristic score. Note that we
+		// use the straight line distance as the heuristic function for this
+		// implementation of the A* function, so the heuristic score of a point
+		// is the straight line distance from the point to the target. This is
+		// also admissible as shown in the report. Neighbours' fScores are
+		// rounded up to whole moves (see wholeMoves).
+		var startNode = state.addNode(
+				state.latticeKey(start.longitude(), start.latitude()),
+				start.longitude(), start.latitude());
+		var startH = distance(start.longitude(), start.latitude(), targetLng, 
+				targetLat);
 		
-		// fScore maps each point to it's fScore (gScore + heuristic score of
-		// the point). Note that we use the straight line distance as the
-		// heuristic function for this implementation of the A* function, so the
-		// heuristic score of a point is the straight line distance from the
-		// point to the target. This is also admissible as shown in the report.
-		var fScore = new HashMap<Point, Double>();
-		fScore.put(start,PointUtils.findDistanceBetween(start,target));
+		// If the obstacleGrid has landmark distance fields, they give a second
+		// admissible heuristic which takes the no fly zones into account, and
+		// the larger of the two is used (see LandmarkField for more info).
+		var landmarkField = obstacleGrid.getLandmarkField();
+		var landmarkTarget = landmarkField == null ? null 
+				: landmarkField.target(targetLng, targetLat, closeEnough);
+		state.update(startNode, -1, 0, 0, startH);
 		
-		// Add the start Point to the openSet priority queue as a Node to allow
-		// ordering in terms of fScore.
-		openSet.add(new Node(start,fScore.get(start)));
+		// Add the start node to the openSet to allow ordering in terms of 
+		// fScore.
+		openSet.offer(startNode, startH, startH);
 		
-		while (openSet.peek() != null) {
+		while (!openSet.isEmpty()) {
 			
-			// Consider the Node with the lowest fScore.
-			var currentNode = openSet.poll();
-			// If the point of the current Node is close enough to the target,
-			// we have found the cheapest path to the target and so we return
-			// that path.
-			if (PointUtils.findDistanceBetween(currentNode.getPoint(),target) 
-					< closeEnough && !cameFrom.keySet().isEmpty()) {
-				return reconstructPath(cameFrom, currentNode.getPoint());
+			// Consider the node with the lowest fScore.
+			var current = openSet.poll();
+			state.countExpansion();
+			var currentLng = state.getLng(current);
+			var currentLat = state.getLat(current);
+			// If the current node is close enough to the target, we have found
+			// the cheapest path to the target and so we return that path.
+			if (distance(currentLng, currentLat, targetLng, targetLat) 
+					< closeEnough && current != startNode) {
+				return state.reconstructMoves(current);
 			}
 			
-			var neighbourPoints = 
-					getNeighbourList(currentNode.getPoint(), noFlyLineSegments);
+			var legalMoves = 
+					obstacleGrid.legalMoveMask(currentLng, currentLat, state);
 			
-			for (int i = 0; i < neighbourPoints.size(); i++) {
-				var currentNeighbour = neighbourPoints.get(i);
+			for (int i = 0; i < 36; i++) {
+				if ((legalMoves & (1L << i)) == 0) {
+					continue;
+				}
+				var angle = i*10;
+				var neighbourLng = currentLng + PointUtils.moveLng(angle);
+				var neighbourLat = currentLat + PointUtils.moveLat(angle);
 				// tentative_gScore is the cost of the path from the start to 
-				// currentNeighbour through the Point of current.
-				var tentative_gScore = 
-						gScore.get(currentNode.getPoint()) + 
-						PointUtils.findDistanceBetween(currentNode.getPoint(), 
-								currentNeighbour);
+				// the neighbour through the current node.
+				var tentative_gScore = state.getGScore(current) + 
+						distance(currentLng, currentLat, neighbourLng, 
+								neighbourLat);
 				
-				// if gScore already contains a path to currentNeighbour
-				// we need to check if the current path has a lower gScore
-				// than the existing one, in which case it is a better path, and 
-				// update cameFrom, gScore, fScore and openSet if it does.
-				if (gScore.containsKey(currentNeighbour)) {
-					if (tentative_gScore < gScore.get(currentNeighbour)) {
-						cameFrom.put(currentNeighbour,currentNode.getPoint());
-						gScore.put(currentNeighbour, tentative_gScore);
-						fScore.put(currentNeighbour, tentative_gScore + 
-								PointUtils.findDistanceBetween(
-										currentNeighbour,target) - closeEnough);
-						var currentNeighbourNode = 
-								new Node(currentNeighbour,fScore.get(
-										currentNeighbour));
-						if (!openSet.contains(currentNeighbourNode)) {
-							openSet.add(currentNeighbourNode);
-						}
-					}
+				var key = state.latticeKey(neighbourLng, neighbourLat);
+				var neighbour = state.findNode(key);
+				// If the neighbour has already been reached we need to check if
+				// the current path has a lower gScore than the existing one, in
+				// which case it is a better path. Otherwise this is the first
+				// path to the neighbour and it is recorded. Either way the
+				// neighbour is (re)added to the openSet, or has its fScore
+				// decreased if it is still there.
+				if (neighbour == -1) {
+					neighbour = state.addNode(key, neighbourLng, neighbourLat);
 				}
-				// if gScore does not contain a path to currentNeighbour
-				// we must update cameFrom, gScore, fScore and openSet to 
-				// record this path.
-				else {
-					cameFrom.put(currentNeighbour,currentNode.getPoint());
-					gScore.put(currentNeighbour, tentative_gScore);
-					fScore.put(currentNeighbour, tentative_gScore + 
-							PointUtils.findDistanceBetween(
-									currentNeighbour, target) - closeEnough);
-					var currentNeighbourNode = 
-							new Node(currentNeighbour,fScore.get(
-									currentNeighbour));
-					if (!openSet.contains(currentNeighbourNode)) {
-						openSet.add(currentNeighbourNode);
-					}
+				else if (tentative_gScore >= state.getGScore(neighbour)) {
+					continue;
 				}
+				var targetDistance = distance(neighbourLng, neighbourLat, 
+						targetLng, targetLat);
+				var h = targetDistance - closeEnough;
+				if (landmarkTarget != null) {
+					h = Math.max(h, landmarkTarget.lowerBound(neighbourLng, 
+							neighbourLat));
+				}
+				var f = wholeMoves(tentative_gScore + h);
+				state.update(neighbour, current, angle, tentative_gScore, f);
+				// Rounding leaves many nodes with equal fScores, and of those
+				// the one nearest the target is expanded first, so the search
+				// heads straight for the target rather than expanding every
+				// node which is equally good.
+				openSet.offer(neighbour, f, targetDistance);
 			}
 		}
 		
@@ -130,27 +194,26 @@ public class AStarUtils {
 
 	}
 	
-	// Returns the list of points which can be visited with a single move
-	// from the given point such that the line segments between each of the 
-	// returned points and the given point does not intersect with any of the
-	// line segments given by noFlyLineSegments.
-	private static List<Point> getNeighbourList(Point point, 
-			List<LineSegment> noFlyLineSegments) {
-		var neighbours = new ArrayList<Point>();
-		for (int i = 0; i < 36; i++) {
-			var isLegalMove = true;
-			var possibleNeighbour = PointUtils.pointAfterMove(point, i*10);
-			var possibleMove = new LineSegment(point,possibleNeighbour);
-			for (int j = 0; j < noFlyLineSegments.size(); j++) {
-				if (possibleMove.intersectsWith(noFlyLineSegments.get(j))) {
-					isLegalMove = false;
-				}
-			}
-			if (isLegalMove) {
-				neighbours.add(possibleNeighbour);
-			}
+	// Returns the length of the fewest whole moves which cover the given
+	// distance. Every path is made of moves of length 0.0003, so the fScore
+	// of a node (a lower bound on the length of a path through it) can be
+	// rounded up to this, which leaves far fewer nodes with an fScore below
+	// the cost of the best path. The distance is reduced slightly first, so
+	// that rounding errors in it cannot add a move. Equal numbers of moves
+	// always give exactly equal lengths.
+	private static double wholeMoves(double distance) {
+		if (distance <= 0) {
+			return 0;
 		}
-		return neighbours;
+		return Math.ceil(distance / MOVE_LENGTH - 1e-9) * MOVE_LENGTH;
+	}
+	
+	// Returns the Pythagorean distance between two positions.
+	private static double distance(double lng1, double lat1, double lng2, 
+			double lat2) {
+		var dLng = lng1 - lng2;
+		var dLat = lat1 - lat2;
+		return Math.sqrt(dLng*dLng + dLat*dLat);
 	}
 
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+
+// AnnealingOptimiser runs simulated annealing over tours, with several
+// independent annealing chains. Each chain repeatedly makes a random change
+// to its tour (reversing a segment or moving a short segment elsewhere) and
+// keeps it if it is shorter, or with a probability which falls as the chain
+// cools if it is longer, which lets the chains escape the local optima that
+// TwoOptOptimiser and OrOptOptimiser get stuck in. The best tour found by any
+// chain is then polished with 2-opt and Or-opt.
+// The chains run on a fork-join pool, the common pool unless another is
+// given, rather than on threads of their own, so that dates planned at the
+// same time (by BatchPlanner, FleetPlanner or PlanningDaemon) share the cores
+// instead of each starting a chain per core. A chain which only starts once
+// others have finished cools over the time left when it starts.
+// The change in cost of each random change is found in constant time from
+// running sums of the leg costs along the tour in both directions, since the
+// legs are not symmetric and a reversed segment is flown the other way.
+public class AnnealingOptimiser implements TourOptimiser {
+
+	// Temperatures, in moves, at the start and end of each chain.
+	private static final double START_TEMPERATURE = 3.0;
+	private static final double END_TEMPERATURE = 0.05;
+	// Share of the time budget spent annealing rather than polishing.
+	private static final double ANNEALING_SHARE = 0.8;
+	// The cost given to a leg with no path, which is high enough that a
+	// chain never accepts a change that adds one.
+	private static final long MISSING_LEG_COST = 1L << 32;
+	
+	private final long seed;
+	private final int chainCount;
+	private final ForkJoinPool pool;
+	
+	// The chains are seeded from seed so that runs are reproducible for a
+	// given number of cores.
+	public AnnealingOptimiser(long seed) {
+		this(seed, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public AnnealingOptimiser(long seed, int chainCount) {
+		this(seed, chainCount, ForkJoinPool.commonPool());
+	}
+	
+	public AnnealingOptimiser(long seed, int chainCount, ForkJoinPool pool) {
+		this.seed = seed;
+		this.chainCount = chainCount;
+		this.pool = pool;
+	}
+	
+	// The chains cool over the time left before the deadline, so it must
+	// have a time limit.
+	@Override
+	public int[] optimise(int[] tour, LegCostMatrix legCostMatrix, 
+			Deadline deadline) {
+		if (!deadline.hasTimeLimit()) {
+			throw new IllegalArgumentException("Annealing needs a deadline "
+					+ "with a time limit");
+		}
+		if (tour.length < 4) {
+			return tour;
+		}
+		var annealingMillis = (long) (TimeUnit.NANOSECONDS.toMillis(
+				deadline.remainingNanos()) * ANNEALING_SHARE);
+		var annealingDeadline = deadline.within(annealingMillis);
+		// Every chain but the last is forked to the pool, and the last is run
+		// by this thread while they run.
+		var chains = new ArrayList<ForkJoinTask<int[]>>();
+		for (int c = 0; c < chainCount - 1; c++) {
+			var random = new Random(seed + c);
+			chains.add(pool.submit(() -> new Chain(tour, legCostMatrix, 
+					random).anneal(annealingDeadline)));
+		}
+		var bestTour = new Chain(tour, legCostMatrix, 
+				new Random(seed + chainCount - 1)).anneal(annealingDeadline);
+		var bestCost = TourUtils.tourCost(bestTour, legCostMatrix);
+		for (var chain : chains) {
+			var chainTour = chain.join();
+			var cost = TourUtils.tourCost(chainTour, legCostMatrix);
+			if (cost < bestCost) {
+				bestTour = chainTour;
+				bestCost = cost;
+			}
+		}
+		if (TourUtils.tourCost(tour, legCostMatrix) <= bestCost) {
+			bestTour = tour;
+		}
+		
+		// The rest of the time is split between 2-opt and Or-opt.
+		var polishMillis = Math.max(1, 
+				TimeUnit.NANOSECONDS.toMillis(deadline.remainingNanos()) / 2);
+		bestTour = new TwoOptOptimiser().optimise(bestTour, legCostMatrix, 
+				deadline.within(polishMillis));
+		return new OrOptOptimiser().optimise(bestTour, legCostMatrix, 
+				deadline);
+	}
+	
+	// A single annealing chain, holding its current tour and the running
+	// sums of its leg costs.
+	private static class Chain {
+		
+		private final LegCostMatrix legCostMatrix;
+		private final Random random;
+		private final int[] tour;
+		private final int n;
+		// forward[k] is the cost of flying the tour from index 0 to index k,
+		// and backward[k] the cost of flying it from index k back to index 0.
+		private final long[] forward;
+		private final long[] backward;
+		
+		private Chain(int[] tour, LegCostMatrix legCostMatrix, 
+				Random random) {
+			this.legCostMatrix = legCostMatrix;
+			this.random = random;
+			this.tour = Arrays.copyOf(tour, tour.length);
+			n = tour.length;
+			forward = new long[n];
+			backward = new long[n];
+			updateSums();
+		}
+		
+		// Runs the chain until the deadline, cooling over the time left when
+		// it starts, and returns the best tour it found.
+		private int[] anneal(Deadline deadline) {
+			var start = System.nanoTime();
+			var duration = Math.max(1, deadline.remainingNanos());
+			var currentCost = cost();
+			var bestTour = Arrays.copyOf(tour, n);
+			var bestCost = currentCost;
+			while (!deadline.hasPassed()) {
+				var elapsed = Math.min(System.nanoTime() - start, duration);
+				// The temperature falls geometrically over the chain's time.
+				var temperature = START_TEMPERATURE * Math.pow(
+						END_TEMPERATURE / START_TEMPERATURE, 
+						(double) elapsed / duration);
+				long change;
+				int[] candidate;
+				// A random segment is reversed, or a random segment of one to
+				// three positions moved. The start position at index 0 is 
+				// never moved.
+				if (random.nextBoolean()) {
+					var i = 1 + random.nextInt(n - 1);
+					var j = 1 + random.nextInt(n - 1);
+					var first = Math.min(i, j);
+					var last = Math.max(i, j);
+					change = reverseChange(first, last);
+					if (!isAccepted(change, temperature)) {
+						continue;
+					}
+					candidate = TourUtils.reverseSegment(tour, first, last);
+				} else {
+					var length = 1 + random.nextInt(Math.min(3, n - 2));
+					var i = 1 + random.nextInt(n - length);
+					var j = random.nextInt(n);
+					while (j >= i - 1 && j < i + length) {
+						j = random.nextInt(n);
+					}
+					var reverse = random.nextBoolean();
+					change = moveChange(i, length, j, reverse);
+					if (!isAccepted(change, temperature)) {
+						continue;
+					}
+					candidate = TourUtils.moveSegment(tour, i, length, j, 
+							reverse);
+				}
+				System.arraycopy(candidate, 0, tour, 0, n);
+				updateSums();
+				currentCost += change;
+				if (currentCost < bestCost) {
+					System.arraycopy(tour, 0, bestTour, 0, n);
+					bestCost = currentCost;
+				}
+			}
+			return bestTour;
+		}
+		
+		private boolean isAccepted(long change, double temperature) {
+			return change <= 0 
+					|| random.nextDouble() < Math.exp(-change / temperature);
+		}
+		
+		// Returns the change in cost from reversing the positions from index
+		// i to index j.
+		private long reverseChange(int i, int j) {
+			var before = tour[i - 1];
+			var after = tour[(j + 1) % n];
+			return legCost(before, tour[j]) + (backward[j] - backward[i])
+					+ legCost(tour[i], after)
+					- legCost(before, tour[i]) - (forward[j] - forward[i])
+					- legCost(tour[j], after);
+		}
+		
+		// Returns the change in cost from moving the segment of the given
+		// length starting at index i so that it follows index j, reversed if
+		// reverse is true - see TourUtils.moveSegment.
+		private long moveChange(int i, int length, int j, boolean reverse) {
+			var last = i + length - 1;
+			var before = tour[i - 1];
+			var after = tour[(last + 1) % n];
+			var insertAfter = tour[j];
+			var insertBefore = tour[(j + 1) % n];
+			var segmentStart = reverse ? tour[last] : tour[i];
+			var segmentEnd = reverse ? tour[i] : tour[last];
+			var oldInside = forward[last] - forward[i];
+			var newInside = reverse ? backward[last] - backward[i] : oldInside;
+			return legCost(before, after) + legCost(insertAfter, segmentStart)
+					+ newInside + legCost(segmentEnd, insertBefore)
+					- legCost(before, tour[i]) - oldInside 
+					- legCost(tour[last], after) 
+					- legCost(insertAfter, insertBefore);
+		}
+		
+		// Returns the cost of the tour, including the leg back to the start.
+		private long cost() {
+			return forward[n - 1] + legCost(tour[n - 1], tour[0]);
+		}
+		
+		private void updateSums() {
+			for (int k = 1; k < n; k++) {
+				forward[k] = forward[k - 1] + legCost(tour[k - 1], tour[k]);
+				backward[k] = backward[k - 1] + legCost(tour[k], tour[k - 1]);
+			}
+		}
+		
+		private long legCost(int from, int to) {
+			var moveCount = legCostMatrix.getMoveCount(from, to);
+			return moveCount == LegCostMatrix.UNREACHABLE ? MISSING_LEG_COST
+					: moveCount;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,156 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.mapbox.geojson.Point;
+
+
+// BatchPlanner plans the flight path for every date in a range within a
+// single run, rather than starting a new run of DroneController for each
+// date. The no fly zones are loaded once and the resulting ObstacleGrid is
+// shared by every date, since it is immutable.
+// Each date goes through two stages: fetching its sensors from the map data
+// source, which mostly waits on I/O and so runs on a larger pool of threads,
+// and planning and writing its flight path, which is CPU bound and so runs on
+// a pool with one thread per core. Both pools are bounded, so a long range of
+// dates does not start an unbounded number of threads.
+public class BatchPlanner {
+
+	// Number of dates whose sensors may be fetched at the same time
+	private static final int FETCH_THREADS = 8;
+
+	private final ObstacleGrid obstacleGrid;
+	private final Point launchPosition;
+	private final MapDataSource dataSource;
+	private final String mode;
+	private final long seed;
+	private final long timeBudgetMillis;
+
+	public BatchPlanner(ObstacleGrid obstacleGrid, Point launchPosition,
+			MapDataSource dataSource, String mode, long seed, long timeBudgetMillis) {
+		this.obstacleGrid = obstacleGrid;
+		this.launchPosition = launchPosition;
+		this.dataSource = dataSource;
+		this.mode = mode;
+		this.seed = seed;
+		this.timeBudgetMillis = timeBudgetMillis;
+	}
+
+	// Plans and writes the flight path for every date from firstDate to
+	// lastDate (inclusive), printing the drone's remaining move allowance
+	// for each date, or the reason the date could not be planned. Returns
+	// the number of dates which could not be planned.
+	public int planDates(LocalDate firstDate, LocalDate lastDate) {
+		var fetchExecutor = Executors.newFixedThreadPool(FETCH_THREADS);
+		var planningExecutor = Executors.newFixedThreadPool(
+				Runtime.getRuntime().availableProcessors());
+		try {
+			var dates = new ArrayList<LocalDate>();
+			var plans = new ArrayList<CompletableFuture<Integer>>();
+			for (var date = firstDate; !date.isAfter(lastDate);
+					date = date.plusDays(1)) {
+				dates.add(date);
+				plans.add(planDate(date, fetchExecutor, planningExecutor));
+			}
+
+			var failures = 0;
+			for (int i = 0; i < dates.size(); i++) {
+				var date = dates.get(i);
+				try {
+					System.out.println(date + ": Drone move allowance "
+							+ "remaining: " + plans.get(i).join());
+				} catch (RuntimeException e) {
+					failures++;
+					var cause = e.getCause() == null ? e : e.getCause();
+					System.out.println(date + ": Could not be planned - "
+							+ cause);
+				}
+			}
+			return failures;
+		} finally {
+			fetchExecutor.shutdown();
+			planningExecutor.shutdown();
+		}
+	}
+
+	// Returns a future holding the drone's remaining move allowance once the
+	// flight path for the date has been planned and written.
+	private CompletableFuture<Integer> planDate(LocalDate date,
+			ExecutorService fetchExecutor, ExecutorService planningExecutor) {
+		var year = String.format("%04d", date.getYear());
+		var month = String.format("%02d", date.getMonthValue());
+		var day = String.format("%02d", date.getDayOfMonth());
+		return CompletableFuture.supplyAsync(() ->
+				DroneController.loadSensorList(year, month, day,
+						dataSource), fetchExecutor)
+				.thenApplyAsync(sensorList -> planSensors(sensorList, year,
+						month, day), planningExecutor);
+	}
+
+	private int planSensors(List<Sensor> sensorList, String year,
+			String month, String day) {
+		var drone = new Drone(launchPosition, 150);
+		var droneController = new DroneController(obstacleGrid, sensorList,
+				year, month, day, drone);
+		var optimiser = TourOptimiser.forMode(mode, seed);
+		// Each date is given its own aqmaps.deadline, if one is set.
+		var deadline = Deadline.fromSystemProperties();
+		if (deadline != null) {
+			droneController.anytimeFlightPath(optimiser, deadline);
+		} else {
+			droneController.optimisedFlightPath(optimiser, timeBudgetMillis);
+		}
+		return drone.getMoveAllowance();
+	}
+
+	// Takes the first date and last date (as YYYY-MM-DD), then the same
+	// arguments as DroneController from the launch latitude onwards.
+	public static void main(String[] args) {
+		if (args.length < 6) {
+			throw new IllegalArgumentException("Usage: batch FIRST-DATE "
+					+ "LAST-DATE LATITUDE LONGITUDE SEED PORT-OR-LOCATION [MODE] "
+					+ "[TIME-BUDGET-MILLIS]");
+		}
+		var firstDate = LocalDate.parse(args[0]);
+		var lastDate = LocalDate.parse(args[1]);
+
+		var launchPosition =
+				Point.fromLngLat(Double.parseDouble(args[3]),
+						Double.parseDouble(args[2]));
+
+		var seed = Long.parseLong(args[4]);
+
+		MapDataSource dataSource;
+		try {
+			dataSource = MapDataSource.forLocation(args[5]);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		var mode = args.length > 6 ? args[6] : "greedy";
+		var timeBudgetMillis = args.length > 7 ? Long.parseLong(args[7]) : 1000;
+		// Check the mode before any work is done.
+		TourOptimiser.forMode(mode, seed);
+
+		var obstacleGrid = DroneController.loadObstacleGrid(
+				DroneController.getConfinementArea(), dataSource);
+
+		var batchPlanner = new BatchPlanner(obstacleGrid, launchPosition,
+				dataSource, mode, seed, timeBudgetMillis);
+		batchPlanner.planDates(firstDate, lastDate);
+		
+		// If aqmaps.metrics.dir is set, a summary of the run is written, and
+		// the metrics are written in the Prometheus text format for a 
+		// collector such as the node exporter's textfile collector.
+		PlannerMetrics.writeTo("metrics-" + firstDate + "-" + lastDate 
+				+ ".json");
+		PlannerMetrics.writeTo("metrics.prom");
+	}
+
+}
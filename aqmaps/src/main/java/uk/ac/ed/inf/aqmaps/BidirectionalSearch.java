@@ -0,0 +1,460 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.Arrays;
+import com.mapbox.geojson.Point;
+
+
+// BidirectionalSearch finds a path for a leg by growing two A* searches at
+// once: a forward search from the start, as in AStarUtils, and a backward
+// search from a ring of goal positions close enough to the target, which
+// follows moves in reverse. The search with the smaller open set is expanded
+// each step, so each only has to cover about half of the leg, which is what
+// makes this worthwhile for long legs and for legs whose target is hidden
+// behind a no fly zone.
+// Positions reached by the two searches almost never coincide exactly, since
+// the positions reachable by moves from a point are dense in the plane, so
+// the searches are joined where a forward node and a backward node are close
+// together: the backward node's moves are replayed from the forward node.
+// Replaying shifts the backward path by the distance between the two nodes,
+// so the join is only accepted if every replayed move is legal and the path
+// ends close enough to the target; the path returned is therefore always
+// exactly made of legal moves.
+// The searches stop once no pair of open nodes could give a path with fewer
+// moves than the best join found. Since the backward search only starts from
+// a few goal positions, and joins are only tried with the cheapest node near
+// a position, the path found is occasionally a move longer than the one
+// found by AStarUtils, which is exact (about 1 leg in 100 on the sample
+// maps). In exchange, legs which are hard for AStarUtils expand several
+// times fewer nodes. It is used in place of AStarUtils' search when the
+// system property aqmaps.search is set to bidirectional.
+public class BidirectionalSearch {
+
+	// The length of every drone move
+	private static final double MOVE_LENGTH = 0.0003;
+
+	// The number of goal positions on the ring around the target, which are
+	// added to the target itself.
+	private static final int RING_POSITIONS = 8;
+
+	// The distance within which nodes of the two searches are joined, as a
+	// fraction of the distance which is close enough to the target. Larger
+	// values join the searches sooner but leave fewer of the positions close
+	// enough to the target for the goal positions, so more paths are a move
+	// longer than they need to be; 0.3 found the best balance on the sample
+	// maps.
+	private static final double JOIN_FRACTION = 0.3;
+
+	// The states of the forward and backward searches, kept for each thread
+	// for the same reason as in AStarUtils.
+	private static final ThreadLocal<SearchState> forwardStates =
+			ThreadLocal.withInitial(SearchState::new);
+	private static final ThreadLocal<SearchState> backwardStates =
+			ThreadLocal.withInitial(SearchState::new);
+	private static final ThreadLocal<MeetingIndex[]> meetingIndexes =
+			ThreadLocal.withInitial(() -> new MeetingIndex[] {
+					new MeetingIndex(), new MeetingIndex()});
+
+	// Returns the angles of the moves along a path from start to a point
+	// within closeEnough of target which only makes moves that obstacleGrid
+	// considers legal, or null if none is found. Throws a
+	// CancellationException if the deadline passes first.
+	public static int[] findBestMoves(Point start, Point target,
+			ObstacleGrid obstacleGrid, double closeEnough, Deadline deadline) {
+		var startNanos = System.nanoTime();
+		var search = new Search(start, target, obstacleGrid, closeEnough,
+				deadline);
+		try {
+			return search.run();
+		} finally {
+			for (SearchState state : new SearchState[] {
+					search.forward, search.backward}) {
+				PlannerMetrics.nodesExpanded.add(state.getExpansionCount());
+				PlannerMetrics.intersectionTests.add(
+						state.getIntersectionTestCount());
+				PlannerMetrics.openSetPeakSize.record(
+						state.getOpenSet().getPeakSize());
+			}
+			PlannerMetrics.searchTime.recordSince(startNanos);
+		}
+	}
+
+	// Search holds the two searches of a leg and the best join found so far.
+	private static class Search {
+
+		private final ObstacleGrid obstacleGrid;
+		private final double startLng;
+		private final double startLat;
+		private final double targetLng;
+		private final double targetLat;
+		private final double closeEnough;
+		// Nodes of the two searches closer together than this are tried as
+		// joins, and the goal positions are on a ring this much inside the
+		// circle of positions close enough to the target, so that a joined
+		// path shifted by up to this distance still ends close enough.
+		private final double joinDistance;
+
+		private final SearchState forward = forwardStates.get();
+		private final SearchState backward = backwardStates.get();
+		private final MeetingIndex forwardIndex;
+		private final MeetingIndex backwardIndex;
+
+		// The moves of the best path found by joining the searches, or null
+		// if none has been found.
+		private int[] bestMoves;
+
+		private Search(Point start, Point target, ObstacleGrid obstacleGrid,
+				double closeEnough, Deadline deadline) {
+			this.obstacleGrid = obstacleGrid;
+			startLng = start.longitude();
+			startLat = start.latitude();
+			targetLng = target.longitude();
+			targetLat = target.latitude();
+			this.closeEnough = closeEnough;
+			joinDistance = closeEnough * JOIN_FRACTION;
+			var indexes = meetingIndexes.get();
+			forwardIndex = indexes[0];
+			backwardIndex = indexes[1];
+			forward.reset(start, deadline);
+			backward.reset(target, deadline);
+			forwardIndex.reset(joinDistance);
+			backwardIndex.reset(joinDistance);
+		}
+
+		private int[] run() {
+			var startNode = forward.addNode(
+					forward.latticeKey(startLng, startLat), startLng,
+					startLat);
+			forwardIndex.add(startNode, startLng, startLat, 0);
+			var startH = distance(startLng, startLat, targetLng, targetLat);
+			forward.update(startNode, -1, 0, 0, wholeMoves(
+					startH - closeEnough));
+			forward.getOpenSet().offer(startNode,
+					forward.getFScore(startNode), startH);
+
+			// The goal positions are the target and a ring around it, which
+			// are kept if they lie inside the confinement area.
+			var ringRadius = closeEnough - joinDistance;
+			for (int i = -1; i < RING_POSITIONS; i++) {
+				var angle = 2 * Math.PI * i / RING_POSITIONS;
+				var lng = i == -1 ? targetLng
+						: targetLng + ringRadius * Math.cos(angle);
+				var lat = i == -1 ? targetLat
+						: targetLat + ringRadius * Math.sin(angle);
+				if (!obstacleGrid.isInsideConfinementArea(lng, lat)) {
+					continue;
+				}
+				var key = backward.latticeKey(lng, lat);
+				if (backward.findNode(key) != -1) {
+					continue;
+				}
+				var goalNode = backward.addNode(key, lng, lat);
+				backwardIndex.add(goalNode, lng, lat, 0);
+				var goalH = distance(lng, lat, startLng, startLat);
+				backward.update(goalNode, -1, 0, 0, wholeMoves(goalH));
+				backward.getOpenSet().offer(goalNode,
+						backward.getFScore(goalNode), goalH);
+				tryJoin(startNode, goalNode);
+			}
+
+			var forwardSet = forward.getOpenSet();
+			var backwardSet = backward.getOpenSet();
+			while (!forwardSet.isEmpty() && !backwardSet.isEmpty()) {
+				// A join with fewer moves than the best one found would have
+				// to come through open nodes of both searches.
+				if (bestMoves != null && bestMoves.length * MOVE_LENGTH
+						<= Math.max(forwardSet.peekF(), backwardSet.peekF())
+						+ 1e-9) {
+					break;
+				}
+				if (forwardSet.size() <= backwardSet.size()) {
+					expandForward(forwardSet.poll());
+				} else {
+					expandBackward(backwardSet.poll());
+				}
+			}
+			return bestMoves;
+		}
+
+		private void expandForward(int current) {
+			forward.countExpansion();
+			var currentLng = forward.getLng(current);
+			var currentLat = forward.getLat(current);
+			joinForward(current);
+			var legalMoves = obstacleGrid.legalMoveMask(currentLng,
+					currentLat, forward);
+			for (int i = 0; i < 36; i++) {
+				if ((legalMoves & (1L << i)) == 0) {
+					continue;
+				}
+				var angle = i*10;
+				var neighbourLng = currentLng + PointUtils.moveLng(angle);
+				var neighbourLat = currentLat + PointUtils.moveLat(angle);
+				var g = forward.getGScore(current) + MOVE_LENGTH;
+				var key = forward.latticeKey(neighbourLng, neighbourLat);
+				var neighbour = forward.findNode(key);
+				if (neighbour == -1) {
+					neighbour = forward.addNode(key, neighbourLng,
+							neighbourLat);
+				} else if (g >= forward.getGScore(neighbour) - 1e-9) {
+					continue;
+				}
+				var targetDistance = distance(neighbourLng, neighbourLat,
+						targetLng, targetLat);
+				var f = wholeMoves(g + targetDistance - closeEnough);
+				forward.update(neighbour, current, angle, g, f);
+				forward.getOpenSet().offer(neighbour, f, targetDistance);
+				forwardIndex.add(neighbour, neighbourLng, neighbourLat, g);
+				if (targetDistance < closeEnough) {
+					tryJoin(neighbour, -1);
+				}
+			}
+		}
+
+		// The backward search follows moves in reverse: a node is reached
+		// from a position one move away if the move from that position to
+		// the node is legal. A move is legal in one direction exactly when
+		// it is legal in the other, so the legal moves from the node give
+		// the positions which can reach it.
+		private void expandBackward(int current) {
+			backward.countExpansion();
+			var currentLng = backward.getLng(current);
+			var currentLat = backward.getLat(current);
+			joinBackward(current);
+			var legalMoves = obstacleGrid.legalMoveMask(currentLng,
+					currentLat, backward);
+			for (int i = 0; i < 36; i++) {
+				if ((legalMoves & (1L << i)) == 0) {
+					continue;
+				}
+				var neighbourLng = currentLng + PointUtils.moveLng(i*10);
+				var neighbourLat = currentLat + PointUtils.moveLat(i*10);
+				var g = backward.getGScore(current) + MOVE_LENGTH;
+				var key = backward.latticeKey(neighbourLng, neighbourLat);
+				var neighbour = backward.findNode(key);
+				if (neighbour == -1) {
+					neighbour = backward.addNode(key, neighbourLng,
+							neighbourLat);
+				} else if (g >= backward.getGScore(neighbour) - 1e-9) {
+					continue;
+				}
+				var startDistance = distance(neighbourLng, neighbourLat,
+						startLng, startLat);
+				var f = wholeMoves(g + startDistance);
+				// The angle recorded is that of the move from the neighbour
+				// towards the goal.
+				backward.update(neighbour, current, (i*10 + 180) % 360, g, f);
+				backward.getOpenSet().offer(neighbour, f, startDistance);
+				backwardIndex.add(neighbour, neighbourLng, neighbourLat, g);
+			}
+		}
+
+		// Tries to join the forward node to the backward nodes near it.
+		private void joinForward(int forwardNode) {
+			var lng = forward.getLng(forwardNode);
+			var lat = forward.getLat(forwardNode);
+			for (int cell = 0; cell < 9; cell++) {
+				var backwardNode = backwardIndex.get(lng, lat, cell);
+				if (backwardNode != -1) {
+					tryJoin(forwardNode, backwardNode);
+				}
+			}
+		}
+
+		// Tries to join the backward node to the forward nodes near it.
+		private void joinBackward(int backwardNode) {
+			var lng = backward.getLng(backwardNode);
+			var lat = backward.getLat(backwardNode);
+			for (int cell = 0; cell < 9; cell++) {
+				var forwardNode = forwardIndex.get(lng, lat, cell);
+				if (forwardNode != -1) {
+					tryJoin(forwardNode, backwardNode);
+				}
+			}
+		}
+
+		// Replays the moves from backwardNode to its goal position from
+		// forwardNode, and records the joined path if every move is legal,
+		// it ends close enough to the target and it has fewer moves than the
+		// best path so far. The path is cut short at the first position close
+		// enough to the target, as AStarUtils' paths are. If backwardNode is
+		// -1 the path to forwardNode is tried on its own.
+		private void tryJoin(int forwardNode, int backwardNode) {
+			var forwardMoves = moveCount(forward.getGScore(forwardNode));
+			var backwardMoves = backwardNode == -1 ? 0 
+					: moveCount(backward.getGScore(backwardNode));
+			if (bestMoves != null 
+					&& forwardMoves + backwardMoves >= bestMoves.length) {
+				return;
+			}
+			var lng = forward.getLng(forwardNode);
+			var lat = forward.getLat(forwardNode);
+			if (backwardNode != -1 && distance(lng, lat, 
+					backward.getLng(backwardNode),
+					backward.getLat(backwardNode)) > joinDistance) {
+				return;
+			}
+
+			var backwardAngles = new int[backwardMoves];
+			var length = 0;
+			var reached = false;
+			if (forwardMoves > 0 && distance(lng, lat, targetLng, targetLat)
+					< closeEnough) {
+				reached = true;
+			}
+			for (int b = backwardNode; !reached && b != -1
+					&& backward.getCameFrom(b) != -1;
+					b = backward.getCameFrom(b)) {
+				var angle = backward.getCameFromAngle(b);
+				if (!obstacleGrid.isLegalMove(lng, lat, angle)) {
+					return;
+				}
+				lng += PointUtils.moveLng(angle);
+				lat += PointUtils.moveLat(angle);
+				backwardAngles[length++] = angle;
+				reached = distance(lng, lat, targetLng, targetLat)
+						< closeEnough;
+			}
+			if (!reached || forwardMoves + length == 0) {
+				return;
+			}
+
+			var moves = Arrays.copyOf(forward.reconstructMoves(forwardNode),
+					forwardMoves + length);
+			System.arraycopy(backwardAngles, 0, moves, forwardMoves, length);
+			if (bestMoves == null || moves.length < bestMoves.length) {
+				bestMoves = moves;
+			}
+		}
+
+	}
+
+	// MeetingIndex is a hash grid over the nodes of one search, with cells
+	// the size of the join distance, used to find the nodes of the other
+	// search close to a node. Positions reached by a search are dense, so a
+	// cell may hold many nodes; only the one with the cheapest path is kept,
+	// since it gives the shortest joins through the cell.
+	private static class MeetingIndex {
+
+		private static final int INITIAL_CAPACITY = 1024;
+
+		private double cellSize;
+		private long[] cellKeys = new long[INITIAL_CAPACITY];
+		private int[] cellNodes = new int[INITIAL_CAPACITY];
+		private double[] cellG = new double[INITIAL_CAPACITY];
+		private int[] cellStamps = new int[INITIAL_CAPACITY];
+		private int cellCount;
+		private int generation = 1;
+
+		private void reset(double cellSize) {
+			this.cellSize = cellSize;
+			cellCount = 0;
+			generation++;
+			if (generation == Integer.MAX_VALUE) {
+				Arrays.fill(cellStamps, 0);
+				generation = 1;
+			}
+		}
+
+		// Records a node at the given position whose cheapest known path has
+		// length g, which is called again whenever a cheaper path is found.
+		private void add(int node, double lng, double lat, double g) {
+			if ((cellCount + 1) * 2 > cellKeys.length) {
+				grow();
+			}
+			var key = cellKey(column(lng), row(lat));
+			var slot = findSlot(key);
+			if (cellStamps[slot] != generation) {
+				cellStamps[slot] = generation;
+				cellKeys[slot] = key;
+				cellCount++;
+			} else if (cellG[slot] <= g) {
+				return;
+			}
+			cellNodes[slot] = node;
+			cellG[slot] = g;
+		}
+
+		// Returns the node kept for the cell numbered cell (0 to 8) of the 3
+		// by 3 block of cells around the given position, or -1 if it has
+		// none.
+		private int get(double lng, double lat, int cell) {
+			var key = cellKey(column(lng) + cell % 3 - 1,
+					row(lat) + cell / 3 - 1);
+			var slot = findSlot(key);
+			return cellStamps[slot] == generation ? cellNodes[slot] : -1;
+		}
+
+		private int findSlot(long key) {
+			var mask = cellKeys.length - 1;
+			var slot = hash(key) & mask;
+			while (cellStamps[slot] == generation && cellKeys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void grow() {
+			var oldKeys = cellKeys;
+			var oldNodes = cellNodes;
+			var oldG = cellG;
+			var oldStamps = cellStamps;
+			var oldGeneration = generation;
+			cellKeys = new long[oldKeys.length * 2];
+			cellNodes = new int[oldKeys.length * 2];
+			cellG = new double[oldKeys.length * 2];
+			cellStamps = new int[oldKeys.length * 2];
+			generation = 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldStamps[i] == oldGeneration) {
+					var slot = findSlot(oldKeys[i]);
+					cellStamps[slot] = generation;
+					cellKeys[slot] = oldKeys[i];
+					cellNodes[slot] = oldNodes[i];
+					cellG[slot] = oldG[i];
+				}
+			}
+		}
+
+		private long column(double lng) {
+			return (long) Math.floor(lng / cellSize);
+		}
+
+		private long row(double lat) {
+			return (long) Math.floor(lat / cellSize);
+		}
+
+		private static long cellKey(long column, long row) {
+			return (column << 32) ^ (row & 0xffffffffL);
+		}
+
+		private static int hash(long key) {
+			key ^= key >>> 33;
+			key *= 0xff51afd7ed558ccdL;
+			key ^= key >>> 33;
+			return (int) key;
+		}
+
+	}
+
+	// Returns the number of moves in a path of the given length.
+	private static int moveCount(double length) {
+		return (int) Math.round(length / MOVE_LENGTH);
+	}
+
+	// Returns the length of the fewest whole moves which cover the given
+	// distance - see AStarUtils.
+	private static double wholeMoves(double distance) {
+		if (distance <= 0) {
+			return 0;
+		}
+		return Math.ceil(distance / MOVE_LENGTH - 1e-9) * MOVE_LENGTH;
+	}
+
+	private static double distance(double lng1, double lat1, double lng2,
+			double lat2) {
+		var dLng = lng1 - lng2;
+		var dLat = lat1 - lat2;
+		return Math.sqrt(dLng*dLng + dLat*dLat);
+	}
+
+}
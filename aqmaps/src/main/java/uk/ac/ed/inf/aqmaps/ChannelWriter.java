@@ -0,0 +1,122 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+// ChannelWriter is the base of the output file writers. Text is encoded as
+// UTF-8 into a buffer which is written to the file's channel whenever it
+// fills, so a file is built up from many small records as the flight is
+// planned without ever holding the whole file in memory. A writer can also
+// be given any other channel, such as one over a ByteArrayOutputStream when
+// the output is wanted in memory rather than in a file.
+// Writing a record never throws: the first IOException is kept, everything
+// after it is dropped, and the exception is thrown by close. This means the
+// code producing records does not need to handle errors at every step.
+// A ChannelWriter is not thread safe; each file should have its own.
+public abstract class ChannelWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final WritableByteChannel channel;
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private IOException error;
+	private boolean isClosed;
+	// Time spent writing to the file, recorded in PlannerMetrics when it is
+	// closed
+	private long writeNanos;
+
+	// Creates the file, or empties it if it already exists.
+	protected ChannelWriter(Path file) throws IOException {
+		this(FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING));
+	}
+
+	// Writes to the channel, which is closed when the writer is.
+	protected ChannelWriter(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	// Appends text to the file.
+	protected void write(String text) {
+		if (error != null) {
+			return;
+		}
+		if (isClosed) {
+			throw new IllegalStateException("The writer has been closed");
+		}
+		var startNanos = System.nanoTime();
+		encode(CharBuffer.wrap(text), false);
+		writeNanos += System.nanoTime() - startNanos;
+	}
+
+	// Writes whatever is buffered and closes the file, then throws the first
+	// IOException met while writing, if there was one.
+	@Override
+	public void close() throws IOException {
+		if (isClosed) {
+			return;
+		}
+		isClosed = true;
+		var startNanos = System.nanoTime();
+		try {
+			if (error == null) {
+				encode(CharBuffer.allocate(0), true);
+			}
+			if (error == null) {
+				encoder.flush(buffer);
+				drain();
+			}
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				if (error == null) {
+					error = e;
+				}
+			}
+			PlannerMetrics.writeTime.record(
+					writeNanos + System.nanoTime() - startNanos);
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private void encode(CharBuffer chars, boolean endOfInput) {
+		while (error == null) {
+			var result = encoder.encode(chars, buffer, endOfInput);
+			if (!result.isOverflow()) {
+				return;
+			}
+			drain();
+		}
+	}
+
+	// Writes the buffer to the channel and empties it.
+	private void drain() {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+		buffer.clear();
+	}
+
+}
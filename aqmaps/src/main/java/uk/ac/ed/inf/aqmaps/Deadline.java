@@ -0,0 +1,79 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.concurrent.TimeUnit;
+
+
+// A Deadline bounds the time planning may take. It passes once its time
+// budget is spent, or as soon as it is cancelled, and the searches and tour
+// optimisers check it cooperatively: once it has passed, a search stops with
+// a CancellationException at its next check and an optimiser returns the best
+// tour it has found. A Deadline may be checked and cancelled from any thread.
+// A Deadline made with within also passes when the Deadline it was made from
+// passes, so cancelling a run cancels every phase of it.
+public class Deadline {
+
+	private final long startNanos;
+	private final long budgetNanos;
+	private final Deadline parent;
+	private volatile boolean isCancelled;
+
+	private Deadline(long budgetNanos, Deadline parent) {
+		startNanos = System.nanoTime();
+		this.budgetNanos = budgetNanos;
+		this.parent = parent;
+	}
+
+	// Returns a Deadline which passes the given number of milliseconds from
+	// now.
+	public static Deadline after(long millis) {
+		return new Deadline(TimeUnit.MILLISECONDS.toNanos(millis), null);
+	}
+
+	// Returns a Deadline which only passes if it is cancelled.
+	public static Deadline none() {
+		return new Deadline(Long.MAX_VALUE, null);
+	}
+
+	// Returns the Deadline set by the system property aqmaps.deadline, in
+	// milliseconds from now, or null if it is not set.
+	public static Deadline fromSystemProperties() {
+		var millis = System.getProperty("aqmaps.deadline");
+		return millis == null ? null : after(Long.parseLong(millis));
+	}
+
+	// Returns a Deadline which passes the given number of milliseconds from
+	// now, or when this one passes if that is sooner.
+	public Deadline within(long millis) {
+		return new Deadline(TimeUnit.MILLISECONDS.toNanos(millis), this);
+	}
+
+	// Makes the deadline pass now.
+	public void cancel() {
+		isCancelled = true;
+	}
+
+	public boolean hasPassed() {
+		return isCancelled || System.nanoTime() - startNanos >= budgetNanos
+				|| (parent != null && parent.hasPassed());
+	}
+
+	// Returns true if the deadline will pass at some time without being
+	// cancelled.
+	public boolean hasTimeLimit() {
+		return budgetNanos != Long.MAX_VALUE
+				|| (parent != null && parent.hasTimeLimit());
+	}
+
+	// Returns the time left before the deadline passes, in nanoseconds, or
+	// Long.MAX_VALUE if it has no time limit.
+	public long remainingNanos() {
+		if (isCancelled) {
+			return 0;
+		}
+		var remaining = budgetNanos == Long.MAX_VALUE ? Long.MAX_VALUE
+				: Math.max(0, budgetNanos - (System.nanoTime() - startNanos));
+		return parent == null ? remaining
+				: Math.min(remaining, parent.remainingNanos());
+	}
+
+}
@@ -1,35 +1,54 @@
 package uk.ac.ed.inf.aqmaps;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.net.URI;
+import java.util.concurrent.atomic.AtomicReference;
 import com.mapbox.geojson.Feature;
-import com.mapbox.geojson.FeatureCollection;
 import com.mapbox.geojson.Geometry;
 import com.mapbox.geojson.LineString;
 import com.mapbox.geojson.Point;
 import com.mapbox.geojson.Polygon;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 
 
 public class DroneController {
 
-	private LineString confinementArea;
-	private List<Polygon> noFlyZones = new ArrayList<>();
-	// NoFlyLineSegments are the line segments which the drone must not
-	// intersect, not to be mistaken with the line segments representing the no
-	// fly zones.
-	private List<LineSegment> noFlyLineSegments = new ArrayList<>();
+	// obstacleGrid indexes the line segments which the drone must not 
+	// intersect and the confinement area so that the legality of a move can
+	// be checked quickly. It is immutable, so one obstacleGrid can be shared
+	// by controllers planning different dates.
+	private ObstacleGrid obstacleGrid;
+	// legCostMatrix holds the number of moves, and the moves themselves, of
+	// the legs between the drone's start position and the sensors.
+	private LegCostMatrix legCostMatrix;
 	private List<Sensor> sensorList = new ArrayList<>();
-	private List<Feature> featureList = new ArrayList<>();
+	// An obstacleGrid for changed no fly zones, given by updateObstacleGrid
+	// and taken up before the drone's next move.
+	private final AtomicReference<ObstacleGrid> updatedObstacleGrid = 
+			new AtomicReference<>();
+	// True once legs are flown with an IncrementalSearch, so that they can be
+	// replanned quickly if the no fly zones change, and legSearch holds the 
+	// search for the leg being flown.
+	private volatile boolean isReplanning;
+	private IncrementalSearch legSearch;
 	private Drone drone;
-	private String flightPathString;
+	// The output files for the date, which are written to as the drone
+	// flies its tour.
+	private FlightPathWriter flightPathWriter;
+	private GeoJsonWriter readingsWriter;
+	// The directory the output files are written to
+	private Path outputDirectory = Paths.get("");
+	// Added to the names of the output files, so that the drones of a fleet
+	// can write files for the same date
+	private String fileSuffix = "";
+	// The channels the output is written to instead of the files, or null
+	// if it is written to the files
+	private WritableByteChannel flightPathChannel;
+	private WritableByteChannel readingsChannel;
 	private String year;
 	private String month;
 	private String day;
@@ -37,81 +56,157 @@ public class DroneController {
 	public DroneController(LineString confinementArea, String year, 
 			String month, String day, Drone drone, int webServerPort) {
 		
-		this.day = day;
+		this(confinementArea, year, month, day, drone, 
+				new HttpDataSource(webServerPort));
 		
-		this.month = month;
+	}
+	
+	// Creates a controller which loads the no fly zones and the sensors for
+	// the date from the given dataSource.
+	public DroneController(LineString confinementArea, String year, 
+			String month, String day, Drone drone, MapDataSource dataSource) {
 		
-		this.year = year;
+		this(loadObstacleGrid(confinementArea, dataSource), 
+				loadSensorList(year, month, day, dataSource), year, month, 
+				day, drone);
+		
+	}
+	
+	// Creates a controller from an obstacleGrid and a sensorList which have
+	// already been loaded, using loadObstacleGrid and loadSensorList.
+	public DroneController(ObstacleGrid obstacleGrid, List<Sensor> sensorList,
+			String year, String month, String day, Drone drone) {
 		
-		flightPathString = "";
+		this.day = day;
 		
-		setSensorList(this.year, this.month, this.day, webServerPort);
+		this.month = month;
 		
-		setNoFlyZones(webServerPort);
+		this.year = year;
 		
-		this.confinementArea = confinementArea;
+		this.sensorList = sensorList;
 		
-		// Note that the confinement area is also added to the noFlyLineSegments
-		// since the drone path should not intersect the lines defining the 
-		// confinement area
-		setNoFlyLineSegments(); 
+		this.obstacleGrid = obstacleGrid;
 		
 		this.drone = drone;
 		
 	}
 	
-	// setSensorList sets sensorList by reading the map for the given date
-	// from the web server at the given port.
-	private void setSensorList(String year, String month, String day, 
-			int webServerPort) {
-		var urlString = 
-				"http://localhost:" + webServerPort + "/maps/" + year + "/" 
-						+ month + "/" + day + "/air-quality-data.json";
-		
-		var jsonMapString = getResponseBody(urlString);
-		jsonMapString = jsonMapString.replaceAll("\"null\"", "\"NaN\"");
-		// Rather than just replacing all occurrences of null with NaN, we 
-		// replace all occurrences of "null" with "NaN", since the what3Words
-		// addresses might contain the word null.
-		
-		var listType = new TypeToken<ArrayList<Sensor>>() {}.getType();
-		sensorList = new Gson().fromJson(jsonMapString, listType);
-		
+	// Returns the sensorList for the given date, by reading the map for the
+	// date from the dataSource.
+	public static List<Sensor> loadSensorList(String year, String month, 
+			String day, MapDataSource dataSource) {
+		List<Sensor> sensorList;
+		try {
+			sensorList = dataSource.getSensorList(year, month, day);
+		} catch (IOException e) {
+			throw new IllegalStateException("No air quality data found for "
+					+ "date DD/MM/YY: " + day + month + year, e);
+		}
 		for (int i = 0; i < sensorList.size(); i++) {
-			sensorList.get(i).setPosition(webServerPort);
 			sensorList.get(i).setMarkerProperties("#aaaaaa", ""); // All markers start as unvisited.
 		}
-
+		return sensorList;
 	}
 	
-	// setNoFlyZones accesses the web server at the given port to set the 
-	// noFlyZones
-	private void setNoFlyZones(int webServerPort) {
-		
-		var urlString = "http://localhost:" + webServerPort 
-				+ "/buildings/no-fly-zones.geojson";
-		var noFlyZoneFeatures = 
-				FeatureCollection.fromJson(getResponseBody(urlString)).
-				features();
-		
-		for (int i = 0; i < noFlyZoneFeatures.size(); i++) {
-			noFlyZones.add((Polygon)noFlyZoneFeatures.get(i).geometry());
+	// Reads the no fly zones from the dataSource, and returns the 
+	// obstacleGrid built from them and the confinement area, with the 
+	// landmark distance fields for that geometry.
+	public static ObstacleGrid loadObstacleGrid(LineString confinementArea, 
+			MapDataSource dataSource) {
+		List<Polygon> noFlyZones;
+		var fetchStartNanos = System.nanoTime();
+		try {
+			noFlyZones = dataSource.getNoFlyZones();
+		} catch (IOException e) {
+			throw new IllegalStateException("No no fly zones found", e);
 		}
+		PlannerMetrics.fetchTime.recordSince(fetchStartNanos);
+		var buildStartNanos = System.nanoTime();
+		var obstacleGrid = new ObstacleGrid(getNoFlyLineSegments(noFlyZones),
+				confinementArea);
+		obstacleGrid = obstacleGrid.withLandmarkField(
+				LandmarkField.forGrid(obstacleGrid));
+		PlannerMetrics.segmentBuildTime.recordSince(buildStartNanos);
+		return obstacleGrid;
+	}
+	
+	// Returns the obstacleGrid built from the confinement area and the no fly
+	// zones, given as the geojson served by the web server, without landmark
+	// distance fields.
+	public static ObstacleGrid buildObstacleGrid(LineString confinementArea,
+			String noFlyZonesJson) {
+		return new ObstacleGrid(getNoFlyLineSegments(
+				MapDataSource.parseNoFlyZones(noFlyZonesJson)), 
+				confinementArea);
+	}
+	
+	// Sets the directory the output files are written to, which is the
+	// working directory unless this is called.
+	public void setOutputDirectory(Path outputDirectory) {
+		this.outputDirectory = outputDirectory;
+	}
+	
+	// Sets the suffix added to the names of the output files, before their
+	// extensions, which is empty unless this is called.
+	public void setFileSuffix(String fileSuffix) {
+		this.fileSuffix = fileSuffix;
+	}
+	
+	// Makes the flightpath and readings be written to the given channels,
+	// which are closed once they have been written, rather than to the
+	// output files.
+	public void setOutputChannels(WritableByteChannel flightPathChannel,
+			WritableByteChannel readingsChannel) {
+		this.flightPathChannel = flightPathChannel;
+		this.readingsChannel = readingsChannel;
+	}
+	
+	// Returns the text file which the drone's moves are written to.
+	public Path getFlightPathFile() {
+		return outputDirectory.resolve("flightpath-" + day + "-" + month + "-"
+				+ year + fileSuffix + ".txt");
+	}
+	
+	// Returns the geojson readings file which the drone's path and the 
+	// sensors are written to.
+	public Path getReadingsFile() {
+		return outputDirectory.resolve("readings-" + day + "-" + month + "-" 
+				+ year + fileSuffix + ".geojson");
+	}
+	
+	// Makes every leg be flown with an IncrementalSearch kept alongside, so
+	// that if the no fly zones change while it is flown only the affected 
+	// part of its search needs to be repaired.
+	public void enableReplanning() {
+		isReplanning = true;
+	}
+	
+	// Replaces the obstacleGrid with one for changed no fly zones, such as a
+	// building closed for the day. This may be called from another thread 
+	// while the drone is flying: the rest of the leg being flown is replanned
+	// from the drone's position before its next move, and later legs are 
+	// checked against the new obstacleGrid. Replanning is enabled from then
+	// on.
+	public void updateObstacleGrid(ObstacleGrid obstacleGrid) {
+		isReplanning = true;
+		updatedObstacleGrid.set(obstacleGrid);
 	}
 	
 	private Drone getDrone() {
 		return drone;
 	}
 	
-	private List<LineSegment> getNoFlyLineSegments() {
-		return noFlyLineSegments;
+	private ObstacleGrid getObstacleGrid() {
+		return obstacleGrid;
 	}
 	
-	// Sets noFlyLineSegments which is defined as the line segments which the
-	// drone should never cross, not to be mistaken with, purely, the line 
-	// segments defining the no-fly-zones these will also include the line 
-	// segments defining the confinement area.
-	private void setNoFlyLineSegments() {
+	// Returns the noFlyLineSegments, which are the line segments defining the
+	// given noFlyZones, which the drone should never cross. The confinement
+	// area is a rectangle, so rather than being turned into line segments too,
+	// the obstacleGrid checks that every move ends inside it.
+	private static List<LineSegment> getNoFlyLineSegments(
+			List<Polygon> noFlyZones) {
+		var noFlyLineSegments = new ArrayList<LineSegment>();
 		// Adding the line segments defining the no-fly-zones to 
 		// noFlyLineSegments
 		for (int i = 0; i < noFlyZones.size(); i++) {
@@ -133,62 +228,34 @@ public class DroneController {
 			}
 		}
 		
-		// Adding the line segments defining the confinement area to 
-		// noFlyLineSegments
-		var confinementAreaPointList = confinementArea.coordinates();
-		for (int i = 0; i < confinementAreaPointList.size() - 1 ; i++) {
-			var noFlyLineSegment = 
-					new LineSegment(confinementAreaPointList.get(i), 
-							confinementAreaPointList.get(i+1));
-			noFlyLineSegments.add(noFlyLineSegment);
-		}
+		return noFlyLineSegments;
 	}
 
-	// Writes the geojson readings file to contain the sensors with their
-	// updated reading and the features in featureList which should contain the
-	// path of the drone.
-	// Should be called with the fileName "readings-DD-MM-YYYY.geojson" for the
-	// appropriate date.
-	private void writeReadings(String fileName) {
+	// Writes the sensors with their updated readings to the geojson readings
+	// file, after the lines of the path of the drone. Should be called once
+	// the drone has finished its flight.
+	private void writeSensorFeatures() {
 		for (int i = 0; i < sensorList.size(); i++) {
-			var sensor = sensorList.get(i);
-			var sensorPoint = sensorList.get(i).getPosition();
-			var sensorFeature = Feature.fromGeometry((Geometry)sensorPoint);
-			sensorFeature.addStringProperty("location", sensor.getLocation());
-			sensorFeature.addStringProperty("rgb-string", 
-					sensor.getRgbString());
-			sensorFeature.addStringProperty("marker-color", 
-					sensor.getRgbString());
-			sensorFeature.addStringProperty("marker-symbol", 
-					sensor.getMarkerSymbol());
-			featureList.add(sensorFeature);
-		}
-        var featureCollection = FeatureCollection.fromFeatures(featureList);
-        var jsonString = featureCollection.toJson();
-		try {
-			var file = new FileWriter(fileName);
-	        file.write(jsonString);
-	        file.close();
-		} catch (IOException e2) {
-			e2.printStackTrace();
+			readingsWriter.writeFeature(getSensorFeature(sensorList.get(i)));
 		}
 	}
 	
-	// Writes the flightpath txt file to contain flightPathString.
-	// Should be called with the fileName "flightpath-DD-MM-YYYY.txt" for the
-	// appropriate date.
-	private void writeFlightPath(String fileName) {
-		try {
-			var file = new FileWriter(fileName);
-	        file.write(flightPathString);
-	        file.close();
-		} catch (IOException e2) {
-			e2.printStackTrace();
-		}
+	// Returns the feature which shows the sensor, and its readings if it has
+	// been read, in a geojson readings file.
+	public static Feature getSensorFeature(Sensor sensor) {
+		var sensorPoint = sensor.getPosition();
+		var sensorFeature = Feature.fromGeometry((Geometry)sensorPoint);
+		sensorFeature.addStringProperty("location", sensor.getLocation());
+		sensorFeature.addStringProperty("rgb-string", sensor.getRgbString());
+		sensorFeature.addStringProperty("marker-color", 
+				sensor.getRgbString());
+		sensorFeature.addStringProperty("marker-symbol", 
+				sensor.getMarkerSymbol());
+		return sensorFeature;
 	}
 
 	
-	// Moves the drone and updates the flight path string of the drone.
+	// Moves the drone and writes the move to the flightpath file.
 	// The Point, newPosition, must meet the requirements of drone's move 
  	// function - this should be confirmed before it is passed to this function.
 	private void moveDrone(Point newPosition) {
@@ -196,111 +263,205 @@ public class DroneController {
 		var angle = Math.toDegrees(PointUtils.angleBetweenPoints(
 				drone.getPosition(), newPosition));
 		var roundedAngle = (int) Math.round(angle);
-		// Update flightPathString
-		flightPathString = flightPathString + (151-drone.getMoveAllowance()) 
-				+ "," + drone.getPosition().longitude() + "," 
-				+ drone.getPosition().latitude() + "," + roundedAngle + "," 
-				+ newPosition.longitude() + "," 
-				+ newPosition.latitude() + ",";
+		flightPathWriter.writeMove(151-drone.getMoveAllowance(), 
+				drone.getPosition(), roundedAngle, newPosition);
 		
 		drone.move(newPosition);
 	}
 	
-	// droneRead makes the drone read the sensor and updates the flight path
-	// string accordingly.
+	// droneRead makes the drone read the sensor and updates the flightpath
+	// file accordingly.
 	private void droneRead(Sensor sensor) {
-		flightPathString = flightPathString + sensor.getLocation() + "\n";
+		flightPathWriter.writeLocation(sensor.getLocation());
 		getDrone().readSensor(sensor);
 	}
 	
 	// droneDontRead is used when the the drone is unable to read a sensor
-	// or we dont want it to and updates the flight path string accordingly.
+	// or we dont want it to and updates the flightpath file accordingly.
 	private void droneDontRead() {
-		flightPathString = flightPathString + "null\n";
+		flightPathWriter.writeLocation("null");
 	}
 	
 	// Sends the drone to visit all of the sensors on the given day, choosing
-	// to travel from its startPosition to the sensor with the shortest
-	// straight line distance between the two points, then from that sensor
-	// to the next closest sensor according to the straight line distance and
-	// so on without explicitly visiting the same sensor twice until the drone
-	// has visited all the sensors. At this point the drone is sent to return
-	// to the startPosition. This takes into account the drone's move allowance
-	// and will not return to the start position if it runs out of moves before
-	// visiting all sensors.
+	// to travel from its startPosition to the sensor which can be reached in
+	// the fewest moves, then from that sensor to the next closest sensor 
+	// according to the number of moves and so on without explicitly visiting
+	// the same sensor twice until the drone has visited all the sensors. At 
+	// this point the drone is sent to return to the startPosition. This takes
+	// into account the drone's move allowance and will not return to the 
+	// start position if it runs out of moves before visiting all sensors.
 	public void greedyFlightPath() {
+		optimisedFlightPath(null, 0);
+	}
+	
+	// Plans the same tour as greedyFlightPath, then gives the optimiser the
+	// time budget to find a tour of the sensors which needs fewer moves before
+	// sending the drone along it. If optimiser is null the greedy tour is 
+	// flown.
+	public void optimisedFlightPath(TourOptimiser optimiser, 
+			long timeBudgetMillis) {
+		flyPlannedTour(optimiser, Deadline.none(), timeBudgetMillis);
+	}
+	
+	// Plans a tour of the sensors by the deadline and sends the drone along
+	// it. The greedy tour is planned first, from the legs whose searches 
+	// finish before the deadline, so a feasible tour is always ready in time,
+	// and the optimiser (if not null) then improves it until the deadline
+	// passes. Cancelling the deadline from another thread makes planning end
+	// at once with the best tour found so far. Sensors whose legs were not
+	// found in time are left out of the tour.
+	public void anytimeFlightPath(TourOptimiser optimiser, Deadline deadline) {
+		flyPlannedTour(optimiser, deadline, Long.MAX_VALUE);
+	}
+	
+	// Plans a tour, with the leg searches stopped when the deadline passes 
+	// and the optimiser given at most timeBudgetMillis before it passes, and
+	// sends the drone along it.
+	private void flyPlannedTour(TourOptimiser optimiser, Deadline deadline,
+			long timeBudgetMillis) {
 		var startPosition = drone.getPosition();
-		var currentPosition = drone.getPosition();
-		for (int i = 0; i < sensorList.size(); i++) {
+		setLegCostMatrix(startPosition, deadline);
+		if (legCostMatrix.isIncomplete()) {
+			System.out.println("Planning deadline passed before every leg "
+					+ "was found on date DD/MM/YY: " + day + month + year);
+		}
+		
+		var tour = TourUtils.nearestNeighbourTour(legCostMatrix);
+		if (tour.length < legCostMatrix.size()) {
+			System.out.println("No path to some of the sensors on date "
+					+ "DD/MM/YY: " + day + month + year);
+		}
+		if (optimiser != null) {
+			tour = optimiser.optimise(tour, legCostMatrix, 
+					deadline.within(timeBudgetMillis));
+		}
+		
+		// The flightpath txt file and the geojson readings file (which
+		// contains the path of the drone and the updated sensor readings) for
+		// the day are written as the drone flies.
+		try (var flightPathWriter = flightPathChannel != null 
+						? new FlightPathWriter(flightPathChannel)
+						: new FlightPathWriter(getFlightPathFile());
+				var readingsWriter = readingsChannel != null 
+						? new GeoJsonWriter(readingsChannel)
+						: new GeoJsonWriter(getReadingsFile())) {
+			this.flightPathWriter = flightPathWriter;
+			this.readingsWriter = readingsWriter;
+			flyTour(tour, startPosition);
+			writeSensorFeatures();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			this.flightPathWriter = null;
+			this.readingsWriter = null;
+		}
+	}
+	
+	// Sends the drone to visit the sensors in the order given by the tour
+	// (see TourUtils) and then return to the startPosition, unless it runs
+	// out of moves first.
+	private void flyTour(int[] tour, Point startPosition) {
+		// currentIndex is the position in the legCostMatrix of the sensor
+		// last visited, or 0 for the start position.
+		var currentIndex = 0;
+		for (int i = 1; i < tour.length; i++) {
 			if (drone.getMoveAllowance() <= 0) {
 				System.out.println("Flightpath runs out of moves on date "
 						+ "DD/MM/YY: " + day + month + year + "- Cant visit all"
 						+ " sensors");
 				break;
 			}
-			
-			// First we find the closest sensor according to the straight line
-			// distance from currentPosition to the sensor.
-			var bestDistance = Double.POSITIVE_INFINITY;
-			var closestSensor = sensorList.get(0);
-			for (int j = 0; j < sensorList.size(); j++) {
-				var currentSensor = sensorList.get(j);
-				var currentSensorDistance = 
-						PointUtils.findDistanceBetween(currentPosition, 
-								currentSensor.getPosition());
-				if (currentSensorDistance < bestDistance && 
-						currentSensor.getMarkerSymbol() == "") {
-					bestDistance = currentSensorDistance;
-					closestSensor = currentSensor;
-				}
-			}
-			// The drone is sent to visit the closest sensor according to the
-			// straight line distance.
-			visitSensor(closestSensor);
-			
-			// The drone's current position is updated.
-			currentPosition = drone.getPosition();
+			visitSensor(currentIndex, tour[i]);
+			currentIndex = tour[i];
 		}
 
 		// Move the drone back to the start if it is not already close enough
-		if (PointUtils.findDistanceBetween(currentPosition, startPosition) >= 0.0003) {
-			returnDrone(startPosition);
+		if (PointUtils.findDistanceBetween(drone.getPosition(), startPosition) 
+				>= 0.0003) {
+			returnDrone(currentIndex);
 		}
-		
-		// Write the flightpath txt file for the day.
-		var flightPathFile = "flightpath-" + day + "-" + month + "-" + year
-				+ ".txt";
-		writeFlightPath(flightPathFile);
-		
-		// Write the geojson readings file for the day which contains the
-		// path of the drone and the updated sensor readings.
-		var readingsFile = "readings-" + day + "-" + month + "-" + year
-				+ ".geojson";
-		writeReadings(readingsFile);
 	}
 	
-	// Uses AStarUtils' pathfinding function, findBestPath, to move the drone 
-	// along the optimal path to a sensor and takes the sensor's readings.
-	private void visitSensor(Sensor sensor) {
-		
+	// Sets legCostMatrix to hold the legs between every pair of positions
+	// out of the startPosition (at index 0) and the sensors (sensor i at 
+	// index i + 1). Legs to a sensor end within 0.0002 degrees of it so that
+	// it can be read, and legs to the startPosition end within 0.0003 degrees
+	// of it. Legs not found before the deadline passes are left unreachable.
+	private void setLegCostMatrix(Point startPosition, Deadline deadline) {
+		var positions = new ArrayList<Point>();
+		var closeEnough = new double[sensorList.size() + 1];
+		positions.add(startPosition);
+		closeEnough[0] = 0.0003;
+		for (int i = 0; i < sensorList.size(); i++) {
+			positions.add(sensorList.get(i).getPosition());
+			closeEnough[i + 1] = 0.0002;
+		}
+		legCostMatrix = LegCostMatrix.compute(positions, closeEnough, 
+				getObstacleGrid(), deadline);
+	}
+	
+	// Returns the path of the leg from the position at index from in the
+	// legCostMatrix to the position at index to, starting from the drone's 
+	// current position. The path memoized in the legCostMatrix is reused if
+	// it can be flown from the current position, and otherwise AStarUtils'
+	// pathfinding function, findBestPath, is used to find a new path.
+	// Returns null if there is no path.
+	private List<Point> findLegPath(int from, int to, double closeEnough) {
 		var currentPosition = drone.getPosition();
+		var path = legCostMatrix.replayPath(from, to, currentPosition, 
+				getObstacleGrid());
+		if (path == null) {
+			PlannerMetrics.legSearches.increment();
+			path = AStarUtils.findBestPath(currentPosition, 
+					legCostMatrix.getPosition(to), getObstacleGrid(), 
+					closeEnough);
+		} else {
+			PlannerMetrics.legReplays.increment();
+		}
+		return path;
+	}
+	
+	// Moves the drone along the optimal path from the sensor at index from in
+	// the legCostMatrix to the sensor at index to and takes the sensor's 
+	// readings.
+	private void visitSensor(int from, int to) {
+		var sensor = sensorList.get(to - 1);
 		// First check that the drone is allowed to make moves.
 		if (drone.getMoveAllowance() > 0) {
-			List<Point> moves = 
-					AStarUtils.findBestPath(currentPosition, 
-							sensor.getPosition(), getNoFlyLineSegments(), 
-							0.0002);
+			List<Point> moves = findLegPath(from, to, 0.0002);
+			if (moves == null) {
+				System.out.println("No path to sensor " + sensor.getLocation()
+						+ " on date DD/MM/YY: " + day + month + year);
+				return;
+			}
+			startLegSearch(to, 0.0002);
 			for (int j = 0; j < moves.size() - 1; j++) {
 				// The drone should not perform any more moves if it has already
 				// reached its move limit.
 				if (drone.getMoveAllowance() <= 0) {
 					// Makes sure that the appropriate lines representing the 
-					// drone's moves are added to the featureList for the 
-					// geojson file later.
+					// drone's moves are written to the geojson file.
 					moves = moves.subList(0,j);
 					break;
 				}
 				
+				// If the no fly zones have changed, the rest of the leg is
+				// replanned and the part already flown is written as a line 
+				// of its own.
+				var replannedMoves = replanLeg(to, 0.0002);
+				if (replannedMoves != null) {
+					writeMoveLines(moves.subList(0, j + 1));
+					moves = replannedMoves;
+					j = 0;
+					if (moves.size() < 2) {
+						System.out.println("No path to sensor " 
+								+ sensor.getLocation() + " after the no fly "
+								+ "zones changed on date DD/MM/YY: " + day 
+								+ month + year);
+						return;
+					}
+				}
+				
 				// Since the first point in moves will be the drone's current 
 				// position
 				moveDrone(moves.get(j+1)); 
@@ -317,66 +478,123 @@ public class DroneController {
 					// take it's readings.
 				}
 			}
+			PlannerMetrics.legMoves.record(Math.max(0, moves.size() - 1));
 			var moveLines = LineString.fromLngLats(moves);
-			featureList.add(Feature.fromGeometry((Geometry)moveLines));	
+			readingsWriter.writeFeature(
+					Feature.fromGeometry((Geometry)moveLines));
 		}
 	}
 	
-	// Returns the drone from its current position to the point from where it
-	// was launched, using AStarUtils' pathfinding function, findBestPath, to 
-	// find the path back
-	private void returnDrone(Point startPosition) {
-		var currentPosition = drone.getPosition();
-
+	// Starts an IncrementalSearch for the leg to the position at index to in
+	// the legCostMatrix from the drone's position, if replanning is enabled.
+	// The leg is searched for straight away, so that if the no fly zones
+	// change while it is flown the search only needs to be repaired.
+	private void startLegSearch(int to, double closeEnough) {
+		legSearch = null;
+		if (isReplanning) {
+			legSearch = new IncrementalSearch(drone.getPosition(),
+					legCostMatrix.getPosition(to), getObstacleGrid(),
+					closeEnough);
+			legSearch.findBestMoves();
+		}
+	}
+	
+	// Returns the rest of the leg to the position at index to in the 
+	// legCostMatrix, replanned from the drone's position, if the obstacleGrid
+	// has been updated since the drone's last move, or null if it has not.
+	// The returned path only holds the drone's position if there is no path.
+	private List<Point> replanLeg(int to, double closeEnough) {
+		var obstacleGrid = updatedObstacleGrid.getAndSet(null);
+		if (obstacleGrid == null) {
+			return null;
+		}
+		var startNanos = System.nanoTime();
+		var position = drone.getPosition();
+		if (legSearch == null) {
+			// Replanning was only enabled during this leg, so there is no 
+			// search to repair.
+			legSearch = new IncrementalSearch(position, 
+					legCostMatrix.getPosition(to), obstacleGrid, closeEnough);
+		} else {
+			legSearch.moveTo(position);
+			legSearch.updateObstacleGrid(obstacleGrid);
+		}
+		this.obstacleGrid = obstacleGrid;
+		var moves = legSearch.findBestMoves();
+		PlannerMetrics.replanTime.recordSince(startNanos);
+		if (moves == null) {
+			return List.of(position);
+		}
+		return AStarUtils.replayMoves(position, moves);
+	}
+	
+	// Writes the moves flown as a line in the geojson readings file, if there
+	// are any.
+	private void writeMoveLines(List<Point> moves) {
+		if (moves.size() > 1) {
+			readingsWriter.writeFeature(Feature.fromGeometry(
+					(Geometry)LineString.fromLngLats(moves)));
+		}
+	}
+	
+	// Returns the drone from its current position, having last visited the
+	// sensor at index from in the legCostMatrix, to the point from where it
+	// was launched.
+	private void returnDrone(int from) {
 		if (drone.getMoveAllowance() > 0) {
-			List<Point> returnMoves = 
-					AStarUtils.findBestPath(currentPosition, startPosition, 
-							getNoFlyLineSegments(), 0.0003);
+			List<Point> returnMoves = findLegPath(from, 0, 0.0003);
+			if (returnMoves == null) {
+				System.out.println("No path back to the start point on date "
+						+ "DD/MM/YY: " + day + month + year);
+				return;
+			}
+			startLegSearch(0, 0.0003);
 			for (int i = 0; i < returnMoves.size() - 1; i++) {
 				// The drone should not perform any more moves if it has already
 				// reached its move limit.
 				if (drone.getMoveAllowance() <= 0) {
 					// Makes sure that the appropriate lines representing the 
-					// drone's moves are added to the featureList for the 
-					// geojson file later.
+					// drone's moves are written to the geojson file.
 					returnMoves = returnMoves.subList(0,i); 
 					System.out.println("Flightpath runs out of moves on date "
 							+ "DD/MM/YY: " + day + month + year + " - Cant "
 							+ "return to start point.");
 					break;
 				}
+				// As in visitSensor
+				var replannedMoves = replanLeg(0, 0.0003);
+				if (replannedMoves != null) {
+					writeMoveLines(returnMoves.subList(0, i + 1));
+					returnMoves = replannedMoves;
+					i = 0;
+					if (returnMoves.size() < 2) {
+						System.out.println("No path back to the start point "
+								+ "after the no fly zones changed on date "
+								+ "DD/MM/YY: " + day + month + year);
+						return;
+					}
+				}
 				// Since the first point in returnMoves is the current position.
 				moveDrone(returnMoves.get(i+1));
 				
 				droneDontRead();// we have read all sensors at this point
 			}
+			PlannerMetrics.legMoves.record(
+					Math.max(0, returnMoves.size() - 1));
 			var moveLines = LineString.fromLngLats(returnMoves);
-			featureList.add(Feature.fromGeometry((Geometry)moveLines));
+			readingsWriter.writeFeature(
+					Feature.fromGeometry((Geometry)moveLines));
 		}
 	}
 	
-	// Used to access the web server and return files as strings
+	// Used to access the web server and return files as strings - see 
+	// MapServerClient for more info.
 	public static String getResponseBody(String urlString) {
-		
-		var responseString = "";
-		
-		var client = HttpClient.newHttpClient();
-		var request = 
-				HttpRequest.newBuilder().uri(URI.create(urlString)).build();
-
-		try {
-			var response = client.send(request, BodyHandlers.ofString());
-			responseString = response.body();
-		} catch (IOException | InterruptedException e) {
-			e.printStackTrace();
-		}
-		
-		return responseString;
+		return MapServerClient.getResponseBody(urlString);
 	}
 
-	
-	public static void main(String[] args) {
-		// Setting up confinement area
+	// Returns the confinement area which the drone must stay inside.
+	public static LineString getConfinementArea() {
 		var point1 = Point.fromLngLat(-3.192473, 55.946233);
 		var point2 = Point.fromLngLat(-3.184319,55.946233);
 		var point3 = Point.fromLngLat(-3.184319, 55.942617);
@@ -388,7 +606,47 @@ public class DroneController {
 		pointList.add(point3);
 		pointList.add(point4);
 		pointList.add(point5);
-		var confinementArea = LineString.fromLngLats(pointList);		
+		return LineString.fromLngLats(pointList);
+	}
+	
+	public static void main(String[] args) {
+		// A range of dates is planned by the BatchPlanner instead.
+		if (args.length > 0 && args[0].equals("batch")) {
+			BatchPlanner.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		// Maps are converted to a MapBundle for later runs.
+		if (args.length > 0 && args[0].equals("bundle")) {
+			MapBundle.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		// Several drones are planned for one date by a FleetPlanner.
+		if (args.length > 0 && args[0].equals("fleet")) {
+			FleetPlanner.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		// A copy of the web server's files is served by a LocalMapServer.
+		if (args.length > 0 && args[0].equals("serve")) {
+			try {
+				LocalMapServer.main(Arrays.copyOfRange(args, 1, args.length));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		// Plans are served to other processes by a PlanningDaemon.
+		if (args.length > 0 && args[0].equals("daemon")) {
+			try {
+				PlanningDaemon.main(Arrays.copyOfRange(args, 1, args.length));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		// Setting up confinement area
+		var confinementArea = getConfinementArea();
 		
 		var day = args[0];
 		var month = args[1];
@@ -398,20 +656,52 @@ public class DroneController {
 				Point.fromLngLat(Double.parseDouble(args[4]), 
 						Double.parseDouble(args[3]));
 		
-		var webServerPort = Integer.parseInt(args[6]);
+		var seed = Long.parseLong(args[5]);
+		
+		// The web server's port, or a URL, directory, zip file or bundle to
+		// read the maps from - see MapDataSource.forLocation.
+		MapDataSource dataSource;
+		try {
+			dataSource = MapDataSource.forLocation(args[6]);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		
+		// The planning mode and its time budget in milliseconds are optional
+		var mode = args.length > 7 ? args[7] : "greedy";
+		var timeBudgetMillis = args.length > 8 ? Long.parseLong(args[8]) : 1000;
+		var optimiser = TourOptimiser.forMode(mode, seed);
 		
 		var drone = new Drone(launchPosition, 150);
 		
 		var droneController = 
 				new DroneController(confinementArea, year, month, day, drone, 
-						webServerPort);
+						dataSource);
+		
+		// If a planning deadline is set with aqmaps.deadline the tour is
+		// planned by then, and the optimiser is given whatever time is left.
+		var deadline = Deadline.fromSystemProperties();
+		if (deadline != null) {
+			droneController.anytimeFlightPath(optimiser, deadline);
+		} else {
+			droneController.optimisedFlightPath(optimiser, timeBudgetMillis);
+		}
 		
-		droneController.greedyFlightPath();
+		// The exact optimiser reports how close to optimal its tour is.
+		if (optimiser instanceof ExactOptimiser) {
+			var result = ((ExactOptimiser) optimiser).getLastResult();
+			if (result != null) {
+				System.out.println(result);
+			}
+		}
 		
 		System.out.println(
 				"Drone move allowance remaining: " + drone.getMoveAllowance());
 		
-		
-	
+		// The metrics are only written if aqmaps.metrics.dir names a 
+		// directory for them, never to the working directory.
+		PlannerMetrics.writeTo("metrics-" + day + "-" + month + "-" + year 
+				+ ".json");
 	}
 }
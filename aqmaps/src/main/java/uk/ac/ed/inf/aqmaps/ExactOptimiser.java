@@ -0,0 +1,453 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+// ExactOptimiser finds the tour of the positions in the given tour which
+// needs the fewest moves, by branch and bound over the true move counts in
+// the LegCostMatrix. A tour is built up one leg at a time from the start
+// position, and a partial tour is cut off once a lower bound on the moves
+// needed to complete it is no better than the best tour found so far (the
+// incumbent), which starts as the given tour.
+// Legs are not symmetric, so the bounds are taken over the cheaper direction
+// of each leg: the rest of a partial tour is a path from its last position
+// through every unvisited position back to the start, which spans them, so
+// it needs at least as many moves as their minimum spanning tree. The whole
+// tour is a cycle, so at the root the 1-tree (the minimum spanning tree of
+// the other positions plus the start's two cheapest legs) is used instead.
+// These are combined with the bounds given by the cheapest leg into and out
+// of each position still to be visited.
+// The first few levels of the search are split into tasks on a fork-join
+// pool, which balances them between the cores by work stealing, and deeper
+// levels are searched depth first within a task. The incumbent is shared
+// between the tasks through an AtomicReference, so a tour found by any task
+// tightens the bound for all of them at once.
+// If the deadline passes first, the best tour found so far is returned along
+// with a lower bound on the optimum, the smallest bound of the partial tours
+// left unexplored, so that the gap between the tour flown and the optimum is
+// known. The result of the last run is kept - see getLastResult.
+public class ExactOptimiser implements TourOptimiser {
+
+	// Partial tours with fewer positions than this are split into a task
+	// for each way of extending them.
+	private static final int SPLIT_DEPTH = 3;
+
+	private final ForkJoinPool pool;
+	private volatile Result lastResult;
+
+	public ExactOptimiser() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	public ExactOptimiser(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	// The outcome of a run: the best tour found, the number of moves it
+	// needs, a lower bound on the moves needed by any tour of the same
+	// positions, which equals the tour's cost if it is known to be optimal,
+	// and the number of moves needed by the tour the run was given.
+	public static class Result {
+
+		private final int[] tour;
+		private final long cost;
+		private final long lowerBound;
+		private final long givenCost;
+
+		private Result(int[] tour, long cost, long lowerBound,
+				long givenCost) {
+			this.tour = tour;
+			this.cost = cost;
+			this.lowerBound = lowerBound;
+			this.givenCost = givenCost;
+		}
+
+		public int[] getTour() {
+			return tour;
+		}
+
+		public long getCost() {
+			return cost;
+		}
+
+		public long getLowerBound() {
+			return lowerBound;
+		}
+
+		public long getGivenCost() {
+			return givenCost;
+		}
+
+		public boolean isOptimal() {
+			return lowerBound >= cost;
+		}
+
+		// Describes the tour found, how far it may be from the optimum and
+		// the tour it was found from.
+		@Override
+		public String toString() {
+			if (isOptimal()) {
+				return "Exact tour: " + cost + " moves (optimal), given tour: "
+						+ givenCost + " moves";
+			}
+			return "Exact tour: " + cost + " moves, optimum at least "
+					+ lowerBound + " moves, given tour: " + givenCost
+					+ " moves";
+		}
+
+	}
+
+	@Override
+	public int[] optimise(int[] tour, LegCostMatrix legCostMatrix,
+			Deadline deadline) {
+		return solve(tour, legCostMatrix, deadline).getTour();
+	}
+
+	// Returns the Result of the last run of optimise, or null if there has
+	// been none.
+	public Result getLastResult() {
+		return lastResult;
+	}
+
+	// Searches for the optimal tour of the positions in the given tour until
+	// the deadline passes.
+	public Result solve(int[] tour, LegCostMatrix legCostMatrix,
+			Deadline deadline) {
+		var cost = TourUtils.tourCost(tour, legCostMatrix);
+		Result result;
+		if (tour.length < 3 || tour.length > Long.SIZE
+				|| cost == LegCostMatrix.UNREACHABLE) {
+			// Tours of up to two positions have only one order, and larger
+			// tours than fit in the bit sets below are not searched.
+			var lowerBound = tour.length < 3 ? cost : 0;
+			result = new Result(tour, cost, lowerBound, cost);
+		} else {
+			result = new Search(tour, legCostMatrix, deadline).run(cost);
+		}
+		lastResult = result;
+		return result;
+	}
+
+	// The best tour found so far, as positions of the given tour
+	private static class Incumbent {
+
+		private final int[] path;
+		private final long cost;
+
+		private Incumbent(int[] path, long cost) {
+			this.path = path;
+			this.cost = cost;
+		}
+
+	}
+
+	// Search holds the state of one run. Positions are numbered by their
+	// index in the given tour, so the start is position 0 and a set of
+	// positions is a bit set in a long.
+	private class Search {
+
+		private final int[] tour;
+		private final int size;
+		// costs[i][j] is the number of moves of the leg from position i to
+		// position j, and symmetricCosts[i][j] the smaller of that and
+		// costs[j][i]. Legs with no path cost Long.MAX_VALUE / 4, which is
+		// large enough never to be used but small enough to add up safely.
+		private final long[][] costs;
+		private final long[][] symmetricCosts;
+		// nearest[i] holds the other positions ordered by the cost of the leg
+		// from position i, so that cheap legs are tried first.
+		private final int[][] nearest;
+		private final Deadline deadline;
+
+		private final AtomicReference<Incumbent> incumbent;
+		// The smallest lower bound of any partial tour left unexplored
+		// because the deadline passed
+		private final AtomicLong unexploredBound =
+				new AtomicLong(Long.MAX_VALUE);
+
+		private Search(int[] tour, LegCostMatrix legCostMatrix,
+				Deadline deadline) {
+			this.tour = tour;
+			this.deadline = deadline;
+			size = tour.length;
+			costs = new long[size][size];
+			symmetricCosts = new long[size][size];
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					var moveCount = legCostMatrix.getMoveCount(tour[i],
+							tour[j]);
+					costs[i][j] = moveCount == LegCostMatrix.UNREACHABLE
+							? Long.MAX_VALUE / 4 : moveCount;
+				}
+			}
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					symmetricCosts[i][j] = Math.min(costs[i][j], costs[j][i]);
+				}
+			}
+			nearest = new int[size][];
+			for (int i = 0; i < size; i++) {
+				var from = i;
+				var others = new ArrayList<Integer>();
+				for (int j = 1; j < size; j++) {
+					if (j != i) {
+						others.add(j);
+					}
+				}
+				others.sort(Comparator.comparingLong(j -> costs[from][j]));
+				nearest[i] = others.stream().mapToInt(Integer::intValue)
+						.toArray();
+			}
+			var identity = new int[size];
+			Arrays.setAll(identity, i -> i);
+			incumbent = new AtomicReference<>(new Incumbent(identity,
+					TourUtils.tourCost(tour, legCostMatrix)));
+		}
+
+		// Runs the search, given the number of moves needed by the tour it
+		// starts from.
+		private Result run(long givenCost) {
+			var path = new int[size];
+			var rootBound = lowerBound(0, allPositions() & ~1L);
+			pool.invoke(new SearchTask(path, 1, 1L, 0, rootBound));
+
+			var best = incumbent.get();
+			var bestTour = new int[size];
+			for (int i = 0; i < size; i++) {
+				bestTour[i] = tour[best.path[i]];
+			}
+			var lowerBound = Math.max(rootBound,
+					Math.min(best.cost, unexploredBound.get()));
+			return new Result(bestTour, best.cost,
+					Math.min(lowerBound, best.cost), givenCost);
+		}
+
+		// Extends the partial tour path[0..length-1], which visits the
+		// positions in the set visited and costs cost moves so far, and
+		// whose completions need at least bound moves.
+		private class SearchTask extends RecursiveAction {
+
+			private static final long serialVersionUID = 1L;
+
+			private final int[] path;
+			private final int length;
+			private final long visited;
+			private final long cost;
+			private final long bound;
+
+			private SearchTask(int[] path, int length, long visited,
+					long cost, long bound) {
+				this.path = path;
+				this.length = length;
+				this.visited = visited;
+				this.cost = cost;
+				this.bound = bound;
+			}
+
+			@Override
+			protected void compute() {
+				if (length >= SPLIT_DEPTH || length == size) {
+					search(path, length, visited, cost, bound);
+					return;
+				}
+				if (isCutOff(bound)) {
+					return;
+				}
+				var last = path[length - 1];
+				var tasks = new ArrayList<SearchTask>();
+				for (int next : nearest[last]) {
+					if ((visited & (1L << next)) != 0) {
+						continue;
+					}
+					var nextVisited = visited | (1L << next);
+					var nextCost = cost + costs[last][next];
+					var nextBound = nextCost
+							+ lowerBound(next, allPositions() & ~nextVisited);
+					if (nextBound >= incumbent.get().cost) {
+						continue;
+					}
+					var nextPath = Arrays.copyOf(path, size);
+					nextPath[length] = next;
+					tasks.add(new SearchTask(nextPath, length + 1,
+							nextVisited, nextCost, nextBound));
+				}
+				invokeAll(tasks);
+			}
+
+		}
+
+		// Searches every completion of the partial tour depth first.
+		private void search(int[] path, int length, long visited, long cost,
+				long bound) {
+			if (isCutOff(bound)) {
+				return;
+			}
+			var last = path[length - 1];
+			if (length == size) {
+				offer(path, cost + costs[last][0]);
+				return;
+			}
+			for (int next : nearest[last]) {
+				if ((visited & (1L << next)) != 0) {
+					continue;
+				}
+				var nextVisited = visited | (1L << next);
+				var nextCost = cost + costs[last][next];
+				var nextBound = nextCost
+						+ lowerBound(next, allPositions() & ~nextVisited);
+				if (nextBound >= incumbent.get().cost) {
+					continue;
+				}
+				path[length] = next;
+				search(path, length + 1, nextVisited, nextCost, nextBound);
+			}
+		}
+
+		// Returns true if a partial tour with the given bound need not be
+		// explored, either because it cannot beat the incumbent or because
+		// the deadline has passed, in which case its bound is recorded.
+		private boolean isCutOff(long bound) {
+			if (bound >= incumbent.get().cost) {
+				return true;
+			}
+			if (deadline.hasPassed()) {
+				unexploredBound.accumulateAndGet(bound, Math::min);
+				return true;
+			}
+			return false;
+		}
+
+		// Makes the complete tour the incumbent if it needs fewer moves.
+		private void offer(int[] path, long cost) {
+			var current = incumbent.get();
+			while (cost < current.cost) {
+				var candidate = new Incumbent(path.clone(), cost);
+				if (incumbent.compareAndSet(current, candidate)) {
+					return;
+				}
+				current = incumbent.get();
+			}
+		}
+
+		private long allPositions() {
+			return size == Long.SIZE ? -1L : (1L << size) - 1;
+		}
+
+		// Returns a lower bound on the moves of a path from position last
+		// through every position in the set unvisited and back to the start.
+		private long lowerBound(int last, long unvisited) {
+			if (unvisited == 0) {
+				return costs[last][0];
+			}
+			var spanning = last == 0 ? oneTree(unvisited)
+					: spanningTree(unvisited | (1L << last) | 1L);
+			return Math.max(spanning, Math.max(
+					cheapestLegsIn(last, unvisited),
+					cheapestLegsOut(last, unvisited)));
+		}
+
+		// Returns the weight of the minimum spanning tree of the positions in
+		// the set, found with Prim's algorithm.
+		private long spanningTree(long positions) {
+			var members = members(positions);
+			var distances = new long[members.length];
+			Arrays.fill(distances, Long.MAX_VALUE);
+			var inTree = new boolean[members.length];
+			distances[0] = 0;
+			var weight = 0L;
+			for (int k = 0; k < members.length; k++) {
+				var closest = -1;
+				for (int i = 0; i < members.length; i++) {
+					if (!inTree[i] && (closest == -1
+							|| distances[i] < distances[closest])) {
+						closest = i;
+					}
+				}
+				inTree[closest] = true;
+				weight += distances[closest];
+				for (int i = 0; i < members.length; i++) {
+					if (!inTree[i]) {
+						distances[i] = Math.min(distances[i], symmetricCosts
+								[members[closest]][members[i]]);
+					}
+				}
+			}
+			return weight;
+		}
+
+		// Returns the weight of the 1-tree of the start and the positions in
+		// the set: their minimum spanning tree plus the start's two cheapest
+		// legs to them.
+		private long oneTree(long positions) {
+			var first = Long.MAX_VALUE / 4;
+			var second = Long.MAX_VALUE / 4;
+			for (int i : members(positions)) {
+				var legCost = symmetricCosts[0][i];
+				if (legCost < first) {
+					second = first;
+					first = legCost;
+				} else if (legCost < second) {
+					second = legCost;
+				}
+			}
+			if (Long.bitCount(positions) < 2) {
+				second = 0;
+			}
+			return spanningTree(positions) + first + second;
+		}
+
+		// Returns the sum, over the start and the positions in the set
+		// unvisited, of the cheapest leg into them from last or an unvisited
+		// position, since the rest of the tour enters each of them once.
+		private long cheapestLegsIn(int last, long unvisited) {
+			var sources = members(unvisited | (1L << last));
+			var total = 0L;
+			for (int to : members(unvisited | 1L)) {
+				var cheapest = Long.MAX_VALUE / 4;
+				for (int from : sources) {
+					if (from != to) {
+						cheapest = Math.min(cheapest, costs[from][to]);
+					}
+				}
+				total += cheapest;
+			}
+			return total;
+		}
+
+		// Returns the sum, over last and the positions in the set unvisited,
+		// of the cheapest leg out of them to the start or an unvisited
+		// position, since the rest of the tour leaves each of them once.
+		private long cheapestLegsOut(int last, long unvisited) {
+			var targets = members(unvisited | 1L);
+			var total = 0L;
+			for (int from : members(unvisited | (1L << last))) {
+				var cheapest = Long.MAX_VALUE / 4;
+				for (int to : targets) {
+					if (from != to) {
+						cheapest = Math.min(cheapest, costs[from][to]);
+					}
+				}
+				total += cheapest;
+			}
+			return total;
+		}
+
+		// Returns the positions in the set in increasing order.
+		private int[] members(long positions) {
+			var members = new int[Long.bitCount(positions)];
+			var n = 0;
+			for (long rest = positions; rest != 0; rest &= rest - 1) {
+				members[n++] = Long.numberOfTrailingZeros(rest);
+			}
+			return members;
+		}
+
+	}
+
+}
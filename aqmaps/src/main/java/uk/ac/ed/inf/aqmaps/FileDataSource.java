@@ -0,0 +1,98 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+
+// FileDataSource reads the files straight from a copy of the web server's
+// files, laid out as the web server serves them (maps/YYYY/MM/DD/...,
+// words/.../details.json and buildings/no-fly-zones.geojson), in a directory
+// or a zip file. The files may also be inside a single top level directory,
+// as they are when the web server's directory is zipped.
+// A zip file is kept open until the data source is closed.
+public class FileDataSource implements MapDataSource, Closeable {
+
+	// A file found at the top of the web server's files, used to find where
+	// they start
+	private static final String MARKER_FILE = 
+			"buildings/no-fly-zones.geojson";
+
+	// The file system of the zip file, or null if the files are in a
+	// directory
+	private final FileSystem zipFileSystem;
+	private final Path root;
+
+	public FileDataSource(Path location) throws IOException {
+		if (Files.isDirectory(location)) {
+			zipFileSystem = null;
+			root = findRoot(location.toAbsolutePath().normalize());
+		} else {
+			zipFileSystem = FileSystems.newFileSystem(location, 
+					(ClassLoader) null);
+			try {
+				root = findRoot(zipFileSystem.getPath("/"));
+			} catch (RuntimeException e) {
+				zipFileSystem.close();
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public String getFile(String path) throws IOException {
+		return Files.readString(resolve(path));
+	}
+
+	// The file is read as it is parsed, rather than read whole first.
+	@Override
+	public Reader openFile(String path) throws IOException {
+		return Files.newBufferedReader(resolve(path));
+	}
+
+	// Returns the file at the given path. Paths which would lead outside the
+	// web server's files are treated as missing files.
+	private Path resolve(String path) throws NoSuchFileException {
+		var file = root.resolve(path).normalize();
+		if (!file.startsWith(root) || !Files.isRegularFile(file)) {
+			throw new NoSuchFileException(path, null, 
+					"not found in " + getLocation());
+		}
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (zipFileSystem != null) {
+			zipFileSystem.close();
+		}
+	}
+
+	private String getLocation() {
+		return zipFileSystem == null ? root.toString() 
+				: zipFileSystem.toString();
+	}
+
+	// Returns the given directory if the web server's files start there, or
+	// otherwise its only subdirectory which they start in.
+	private static Path findRoot(Path directory) throws IOException {
+		if (Files.exists(directory.resolve(MARKER_FILE))) {
+			return directory;
+		}
+		try (var children = Files.list(directory)) {
+			for (Path child : (Iterable<Path>) children::iterator) {
+				if (Files.exists(child.resolve(MARKER_FILE))) {
+					return child;
+				}
+			}
+		}
+		throw new IllegalArgumentException(directory + " does not hold the "
+				+ "web server's files (no " + MARKER_FILE + " found)");
+	}
+
+}
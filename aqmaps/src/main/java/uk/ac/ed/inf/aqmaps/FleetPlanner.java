@@ -0,0 +1,479 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.LineString;
+import com.mapbox.geojson.Point;
+
+
+// FleetPlanner plans a date for a fleet of drones, one launched from each of
+// the given launch positions, so that more sensors can be read than one drone
+// could read with its move allowance, and in less time since the drones fly
+// at once.
+// The sensors are first shared out between the drones by a capacitated
+// clustering on the leg costs: each drone may take at most its equal share of
+// the sensors, and each sensor goes to the drone with the cheapest round trip
+// to it from its launch position that still has room. Sensors are assigned in
+// order of regret, the extra moves it would cost to give them to their
+// second best drone, so that the sensors which matter most get their first
+// choice. Each drone's share is then checked against its move allowance by
+// estimating the moves of its tour, built by cheapest insertion: while a drone's tour needs
+// more moves than it has, the sensor whose removal saves the most moves is
+// moved to the drone which can insert it for the fewest moves and still stay
+// within its allowance, or is left unassigned if no drone can. Each drone's
+// tour of its sensors is then planned and flown by its own DroneController,
+// in parallel.
+// Each drone writes its own flightpath and readings files, named as for a
+// single drone with -droneN added, and a readings file for the whole fleet,
+// with -fleet added, holds every drone's path and every sensor.
+public class FleetPlanner {
+
+	private static final int MOVE_ALLOWANCE = 150;
+
+	private final ObstacleGrid obstacleGrid;
+	private final List<Point> launchPositions;
+	private final String mode;
+	private final long seed;
+	private final long timeBudgetMillis;
+	// The directory the output files are written to
+	private Path outputDirectory = Paths.get("");
+
+	public FleetPlanner(ObstacleGrid obstacleGrid, List<Point> launchPositions,
+			String mode, long seed, long timeBudgetMillis) {
+		if (launchPositions.isEmpty()) {
+			throw new IllegalArgumentException("A fleet needs at least one "
+					+ "launch position");
+		}
+		this.obstacleGrid = obstacleGrid;
+		this.launchPositions = launchPositions;
+		this.mode = mode;
+		this.seed = seed;
+		this.timeBudgetMillis = timeBudgetMillis;
+	}
+
+	// Sets the directory the output files are written to, which is the
+	// working directory unless this is called.
+	public void setOutputDirectory(Path outputDirectory) {
+		this.outputDirectory = outputDirectory;
+	}
+
+	// Plans and writes the flight paths of the fleet for the date, printing
+	// each drone's share of the sensors and remaining move allowance, and
+	// returns the number of sensors read.
+	public int planDate(List<Sensor> sensorList, String year, String month,
+			String day) {
+		var assignment = assignSensors(sensorList);
+		var droneCount = launchPositions.size();
+		var controllers = new ArrayList<DroneController>();
+		var drones = new ArrayList<Drone>();
+		for (int i = 0; i < droneCount; i++) {
+			var drone = new Drone(launchPositions.get(i), MOVE_ALLOWANCE);
+			var droneController = new DroneController(obstacleGrid,
+					assignment.get(i), year, month, day, drone);
+			droneController.setOutputDirectory(outputDirectory);
+			droneController.setFileSuffix("-drone" + (i + 1));
+			drones.add(drone);
+			controllers.add(droneController);
+		}
+
+		// Every drone is given the same aqmaps.deadline, if one is set, since
+		// they are planned at the same time.
+		var deadline = Deadline.fromSystemProperties();
+		var executor = Executors.newFixedThreadPool(Math.min(droneCount,
+				Runtime.getRuntime().availableProcessors()));
+		try {
+			var plans = new ArrayList<CompletableFuture<Void>>();
+			for (var droneController : controllers) {
+				var optimiser = TourOptimiser.forMode(mode, seed);
+				plans.add(CompletableFuture.runAsync(() -> {
+					if (deadline != null) {
+						droneController.anytimeFlightPath(optimiser, deadline);
+					} else {
+						droneController.optimisedFlightPath(optimiser,
+								timeBudgetMillis);
+					}
+				}, executor));
+			}
+			CompletableFuture.allOf(
+					plans.toArray(new CompletableFuture<?>[0])).join();
+		} finally {
+			executor.shutdown();
+		}
+
+		// The tours the drones fly may need more moves than the estimates
+		// the sensors were balanced by, so any sensors a drone ran out of
+		// moves for are reported.
+		for (int i = 0; i < droneCount; i++) {
+			var unreadCount = 0;
+			for (var sensor : assignment.get(i)) {
+				if (sensor.getRgbString().equals("#aaaaaa")) {
+					unreadCount++;
+				}
+			}
+			System.out.println("Drone " + (i + 1) + ": "
+					+ assignment.get(i).size() + " sensors, move allowance "
+					+ "remaining: " + drones.get(i).getMoveAllowance()
+					+ (unreadCount == 0 ? "" : ", ran out of moves with "
+							+ unreadCount + " sensors unread"));
+		}
+		writeFleetReadings(controllers, sensorList, outputDirectory.resolve(
+				"readings-" + day + "-" + month + "-" + year + "-fleet.geojson"));
+
+		var readCount = 0;
+		for (var sensor : sensorList) {
+			if (!sensor.getRgbString().equals("#aaaaaa")) {
+				readCount++;
+			}
+		}
+		return readCount;
+	}
+
+	// Returns the sensors assigned to each drone, in the order of the launch
+	// positions. Sensors which no drone can reach and return from, or which
+	// no drone has the moves left to read, are not assigned to any of them.
+	public List<List<Sensor>> assignSensors(List<Sensor> sensorList) {
+		var droneCount = launchPositions.size();
+		var sensorCount = sensorList.size();
+		// The legs between the launch positions and the sensors are found as
+		// the drones' own legs are, so that they are in the LegStore by the
+		// time the drones are planned.
+		var positions = new ArrayList<Point>(launchPositions);
+		var closeEnough = new double[droneCount + sensorCount];
+		for (int i = 0; i < droneCount; i++) {
+			closeEnough[i] = 0.0003;
+		}
+		for (int i = 0; i < sensorCount; i++) {
+			positions.add(sensorList.get(i).getPosition());
+			closeEnough[droneCount + i] = 0.0002;
+		}
+		var legCostMatrix = LegCostMatrix.compute(positions, closeEnough,
+				obstacleGrid);
+
+		// roundTrips[d][s] is the number of moves for drone d to fly to
+		// sensor s and back, or UNREACHABLE.
+		var roundTrips = new long[droneCount][sensorCount];
+		var isReachable = new boolean[sensorCount];
+		var reachableCount = 0;
+		for (int s = 0; s < sensorCount; s++) {
+			for (int d = 0; d < droneCount; d++) {
+				var out = legCostMatrix.getMoveCount(d, droneCount + s);
+				var back = legCostMatrix.getMoveCount(droneCount + s, d);
+				if (out == LegCostMatrix.UNREACHABLE
+						|| back == LegCostMatrix.UNREACHABLE) {
+					roundTrips[d][s] = LegCostMatrix.UNREACHABLE;
+				} else {
+					roundTrips[d][s] = out + back;
+					isReachable[s] = true;
+				}
+			}
+			if (isReachable[s]) {
+				reachableCount++;
+			}
+		}
+
+		var capacity = (reachableCount + droneCount - 1) / droneCount;
+		var assignment = assign(roundTrips, capacity);
+		balanceMoves(assignment, legCostMatrix, droneCount);
+		var assignedSensors = new ArrayList<List<Sensor>>();
+		for (int d = 0; d < droneCount; d++) {
+			assignedSensors.add(new ArrayList<>());
+		}
+		for (int s = 0; s < sensorCount; s++) {
+			if (!isReachable[s]) {
+				System.out.println("No path to sensor "
+						+ sensorList.get(s).getLocation()
+						+ " from any launch position");
+			} else if (assignment[s] == -1) {
+				System.out.println("No drone has the moves left to read "
+						+ "sensor " + sensorList.get(s).getLocation());
+			} else {
+				assignedSensors.get(assignment[s]).add(sensorList.get(s));
+			}
+		}
+		return assignedSensors;
+	}
+
+	// Returns the drone each sensor is assigned to, or -1 if it cannot be
+	// reached by any, given the cost of each drone serving each sensor and
+	// the number of sensors each drone may take. A sensor which can only be
+	// reached by drones which are already full goes to the cheapest of them.
+	private static int[] assign(long[][] costs, int capacity) {
+		var droneCount = costs.length;
+		var sensorCount = costs[0].length;
+		var assignment = new int[sensorCount];
+		var isAssigned = new boolean[sensorCount];
+		var loads = new int[droneCount];
+		for (int s = 0; s < sensorCount; s++) {
+			assignment[s] = -1;
+		}
+
+		for (int round = 0; round < sensorCount; round++) {
+			// Finds the unassigned sensor with the greatest regret
+			var chosenSensor = -1;
+			var chosenDrone = -1;
+			var chosenRegret = -1L;
+			var chosenCost = Long.MAX_VALUE;
+			for (int s = 0; s < sensorCount; s++) {
+				if (isAssigned[s]) {
+					continue;
+				}
+				var best = -1;
+				var bestCost = Long.MAX_VALUE;
+				var secondCost = Long.MAX_VALUE;
+				for (int d = 0; d < droneCount; d++) {
+					var cost = costs[d][s];
+					if (cost == LegCostMatrix.UNREACHABLE
+							|| loads[d] >= capacity) {
+						continue;
+					}
+					if (cost < bestCost) {
+						secondCost = bestCost;
+						bestCost = cost;
+						best = d;
+					} else if (cost < secondCost) {
+						secondCost = cost;
+					}
+				}
+				if (best == -1) {
+					continue;
+				}
+				var regret = secondCost == Long.MAX_VALUE ? Long.MAX_VALUE
+						: secondCost - bestCost;
+				if (regret > chosenRegret
+						|| (regret == chosenRegret && bestCost < chosenCost)) {
+					chosenSensor = s;
+					chosenDrone = best;
+					chosenRegret = regret;
+					chosenCost = bestCost;
+				}
+			}
+			if (chosenSensor == -1) {
+				break;
+			}
+			assignment[chosenSensor] = chosenDrone;
+			isAssigned[chosenSensor] = true;
+			loads[chosenDrone]++;
+		}
+
+		// Any sensors left can only be reached by full drones.
+		for (int s = 0; s < sensorCount; s++) {
+			if (isAssigned[s]) {
+				continue;
+			}
+			var bestCost = Long.MAX_VALUE;
+			for (int d = 0; d < droneCount; d++) {
+				if (costs[d][s] != LegCostMatrix.UNREACHABLE
+						&& costs[d][s] < bestCost) {
+					bestCost = costs[d][s];
+					assignment[s] = d;
+				}
+			}
+		}
+		return assignment;
+	}
+
+	// Moves sensors away from drones whose tours need more moves than their
+	// allowance, as described above, updating the assignment. Positions in
+	// the legCostMatrix are the launch positions followed by the sensors.
+	private static void balanceMoves(int[] assignment,
+			LegCostMatrix legCostMatrix, int droneCount) {
+		// The tour of each drone, as positions in the legCostMatrix starting
+		// from its launch position, and the moves it needs
+		var tours = new ArrayList<List<Integer>>();
+		var costs = new long[droneCount];
+		for (int d = 0; d < droneCount; d++) {
+			tours.add(new ArrayList<>(List.of(d)));
+		}
+		for (int s = 0; s < assignment.length; s++) {
+			if (assignment[s] != -1) {
+				var tour = tours.get(assignment[s]);
+				var position = cheapestInsertion(tour, droneCount + s,
+						legCostMatrix);
+				costs[assignment[s]] += insertionCost(tour, position,
+						droneCount + s, legCostMatrix);
+				tour.add(position + 1, droneCount + s);
+			}
+		}
+
+		for (int d = 0; d < droneCount; d++) {
+			var tour = tours.get(d);
+			while (costs[d] > MOVE_ALLOWANCE && tour.size() > 1) {
+				// Removes the sensor whose removal saves the most moves
+				var removed = 1;
+				var bestSaving = Long.MIN_VALUE;
+				for (int k = 1; k < tour.size(); k++) {
+					var saving = removalSaving(tour, k, legCostMatrix);
+					if (saving > bestSaving) {
+						bestSaving = saving;
+						removed = k;
+					}
+				}
+				var sensorPosition = tour.remove(removed);
+				costs[d] -= bestSaving;
+				var s = sensorPosition - droneCount;
+				assignment[s] = -1;
+
+				// Gives it to the drone which can take it for the fewest
+				// moves without going over its allowance
+				var bestDrone = -1;
+				var bestPosition = -1;
+				var bestCost = Long.MAX_VALUE;
+				for (int e = 0; e < droneCount; e++) {
+					if (e == d) {
+						continue;
+					}
+					var otherTour = tours.get(e);
+					var position = cheapestInsertion(otherTour, sensorPosition,
+							legCostMatrix);
+					var cost = insertionCost(otherTour, position,
+							sensorPosition, legCostMatrix);
+					if (costs[e] + cost <= MOVE_ALLOWANCE && cost < bestCost) {
+						bestDrone = e;
+						bestPosition = position;
+						bestCost = cost;
+					}
+				}
+				if (bestDrone != -1) {
+					tours.get(bestDrone).add(bestPosition + 1, sensorPosition);
+					costs[bestDrone] += bestCost;
+					assignment[s] = bestDrone;
+				}
+			}
+		}
+	}
+
+	// Returns the index in the tour after which the position can be inserted
+	// for the fewest extra moves.
+	private static int cheapestInsertion(List<Integer> tour, int position,
+			LegCostMatrix legCostMatrix) {
+		var best = 0;
+		var bestCost = Long.MAX_VALUE;
+		for (int k = 0; k < tour.size(); k++) {
+			var cost = insertionCost(tour, k, position, legCostMatrix);
+			if (cost < bestCost) {
+				best = k;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	// Returns the moves saved by no longer visiting the position at index k
+	// of the tour.
+	private static long removalSaving(List<Integer> tour, int k,
+			LegCostMatrix legCostMatrix) {
+		var before = tour.get(k - 1);
+		var position = tour.get(k);
+		var after = tour.get((k + 1) % tour.size());
+		return legCost(before, position, legCostMatrix)
+				+ legCost(position, after, legCostMatrix)
+				- legCost(before, after, legCostMatrix);
+	}
+
+	// Returns the extra moves needed to visit the position between index k
+	// of the tour and the next index, wrapping round to the start.
+	private static long insertionCost(List<Integer> tour, int k, int position,
+			LegCostMatrix legCostMatrix) {
+		var before = tour.get(k);
+		var after = tour.get((k + 1) % tour.size());
+		return legCost(before, position, legCostMatrix)
+				+ legCost(position, after, legCostMatrix)
+				- legCost(before, after, legCostMatrix);
+	}
+
+	// Returns the moves of the leg from position i to position j, which is
+	// none if they are the same position, as they are in a tour of only the
+	// launch position.
+	private static long legCost(int i, int j, LegCostMatrix legCostMatrix) {
+		return i == j ? 0 : legCostMatrix.getMoveCount(i, j);
+	}
+
+	// Writes the readings file for the whole fleet, holding the path of each
+	// drone, read back from its own readings file, followed by every sensor.
+	private static void writeFleetReadings(List<DroneController> controllers,
+			List<Sensor> sensorList, Path file) {
+		try (var readingsWriter = new GeoJsonWriter(file)) {
+			for (var droneController : controllers) {
+				var features = FeatureCollection.fromJson(Files.readString(
+						droneController.getReadingsFile(),
+						StandardCharsets.UTF_8)).features();
+				for (var feature : features) {
+					if (feature.geometry() instanceof LineString) {
+						readingsWriter.writeFeature(feature);
+					}
+				}
+			}
+			for (var sensor : sensorList) {
+				readingsWriter.writeFeature(
+						DroneController.getSensorFeature(sensor));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Takes the date (as DD MM YYYY), the launch positions as LATITUDE,
+	// LONGITUDE pairs separated by semicolons, then the same arguments as
+	// DroneController from the seed onwards.
+	public static void main(String[] args) {
+		if (args.length < 6) {
+			throw new IllegalArgumentException("Usage: fleet DD MM YYYY "
+					+ "LATITUDE,LONGITUDE[;LATITUDE,LONGITUDE...] SEED "
+					+ "PORT-OR-LOCATION [MODE] [TIME-BUDGET-MILLIS]");
+		}
+		var day = args[0];
+		var month = args[1];
+		var year = args[2];
+
+		var launchPositions = new ArrayList<Point>();
+		for (var launch : args[3].split(";")) {
+			var coordinates = launch.split(",");
+			if (coordinates.length != 2) {
+				throw new IllegalArgumentException("Expected a launch "
+						+ "position as LATITUDE,LONGITUDE but got " + launch);
+			}
+			launchPositions.add(Point.fromLngLat(
+					Double.parseDouble(coordinates[1].trim()),
+					Double.parseDouble(coordinates[0].trim())));
+		}
+
+		var seed = Long.parseLong(args[4]);
+
+		MapDataSource dataSource;
+		try {
+			dataSource = MapDataSource.forLocation(args[5]);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+
+		var mode = args.length > 6 ? args[6] : "greedy";
+		var timeBudgetMillis = args.length > 7 ? Long.parseLong(args[7]) : 1000;
+		// Check the mode before any work is done.
+		TourOptimiser.forMode(mode, seed);
+
+		var obstacleGrid = DroneController.loadObstacleGrid(
+				DroneController.getConfinementArea(), dataSource);
+		var sensorList = DroneController.loadSensorList(year, month, day,
+				dataSource);
+
+		var fleetPlanner = new FleetPlanner(obstacleGrid, launchPositions,
+				mode, seed, timeBudgetMillis);
+		var readCount = fleetPlanner.planDate(sensorList, year, month, day);
+		System.out.println("Sensors read by the fleet: " + readCount + " of "
+				+ sensorList.size());
+
+		// The metrics are only written if aqmaps.metrics.dir is set.
+		PlannerMetrics.writeTo("metrics-" + day + "-" + month + "-" + year
+				+ "-fleet.json");
+	}
+
+}
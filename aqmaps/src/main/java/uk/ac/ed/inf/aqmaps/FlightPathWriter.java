@@ -0,0 +1,38 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import com.mapbox.geojson.Point;
+
+
+// FlightPathWriter writes the flightpath txt file one move at a time as the
+// drone makes its moves. Each line records a move: the move number, the
+// position before the move, the angle of the move, the position after the
+// move and the location of the sensor read after the move, or null if none
+// was read.
+public class FlightPathWriter extends ChannelWriter {
+
+	public FlightPathWriter(Path file) throws IOException {
+		super(file);
+	}
+
+	public FlightPathWriter(WritableByteChannel channel) {
+		super(channel);
+	}
+
+	// Writes the start of the line for a move, up to the location of the
+	// sensor read, which must then be written with writeLocation.
+	public void writeMove(int moveNumber, Point from, int angle, Point to) {
+		write(moveNumber + "," + from.longitude() + "," + from.latitude()
+				+ "," + angle + "," + to.longitude() + "," + to.latitude()
+				+ ",");
+	}
+
+	// Ends the line for the last move with the location of the sensor read,
+	// or null if no sensor was read.
+	public void writeLocation(String location) {
+		write(location + "\n");
+	}
+
+}
@@ -0,0 +1,59 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.mapbox.geojson.Feature;
+import com.mapbox.geojson.GeometryAdapterFactory;
+import com.mapbox.geojson.gson.GeoJsonAdapterFactory;
+
+
+// GeoJsonWriter writes a geojson FeatureCollection one feature at a time, so
+// that each feature can be written as soon as it is known rather than the
+// whole collection being built first. The file is the same as the one given
+// by FeatureCollection.toJson for the same features.
+public class GeoJsonWriter extends ChannelWriter {
+
+	// Features are written with the same Gson as FeatureCollection.toJson
+	// uses, since Feature.toJson leaves out empty properties while
+	// FeatureCollection.toJson does not.
+	private static final Gson gson = new GsonBuilder()
+			.registerTypeAdapterFactory(GeoJsonAdapterFactory.create())
+			.registerTypeAdapterFactory(GeometryAdapterFactory.create())
+			.create();
+
+	private boolean isEmpty = true;
+	private boolean isEnded;
+
+	public GeoJsonWriter(Path file) throws IOException {
+		super(file);
+		write("{\"type\":\"FeatureCollection\",\"features\":[");
+	}
+
+	public GeoJsonWriter(WritableByteChannel channel) {
+		super(channel);
+		write("{\"type\":\"FeatureCollection\",\"features\":[");
+	}
+
+	// Adds the feature to the end of the collection.
+	public void writeFeature(Feature feature) {
+		if (!isEmpty) {
+			write(",");
+		}
+		write(gson.toJson(feature));
+		isEmpty = false;
+	}
+
+	// Ends the collection and closes the file.
+	@Override
+	public void close() throws IOException {
+		if (!isEnded) {
+			write("]}");
+			isEnded = true;
+		}
+		super.close();
+	}
+
+}
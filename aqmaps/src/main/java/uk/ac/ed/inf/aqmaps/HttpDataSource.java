@@ -0,0 +1,51 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.CompletableFuture;
+
+
+// HttpDataSource fetches the files from the web server through
+// MapServerClient, so requests share its HttpClient, its limit on requests
+// in flight and its ResponseCache.
+public class HttpDataSource implements MapDataSource {
+
+	private final String baseUrl;
+
+	// Creates a data source for the web server at the given port on
+	// localhost.
+	public HttpDataSource(int webServerPort) {
+		this("http://localhost:" + webServerPort);
+	}
+
+	// Creates a data source for the web server at the given base URL, such as
+	// "http://localhost:80".
+	public HttpDataSource(String baseUrl) {
+		this.baseUrl = baseUrl.endsWith("/") 
+				? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+	}
+
+	@Override
+	public String getFile(String path) throws IOException {
+		return MapServerClient.fetch(getUrl(path));
+	}
+
+	// The body is read from the connection as the file is parsed - see
+	// MapServerClient.open.
+	@Override
+	public Reader openFile(String path) throws IOException {
+		return MapServerClient.open(getUrl(path));
+	}
+
+	// The request is sent without waiting for the response - see
+	// MapServerClient.getResponseBodyAsync.
+	@Override
+	public CompletableFuture<String> getFileAsync(String path) {
+		return MapServerClient.getResponseBodyAsync(getUrl(path));
+	}
+
+	public String getUrl(String path) {
+		return baseUrl + "/" + path;
+	}
+
+}
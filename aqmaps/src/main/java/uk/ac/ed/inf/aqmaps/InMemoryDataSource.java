@@ -0,0 +1,30 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// InMemoryDataSource holds the files in memory, keyed by their path on the
+// web server. It is useful for testing and benchmarking the planner with
+// maps which are built by hand rather than served.
+public class InMemoryDataSource implements MapDataSource {
+
+	private final Map<String, String> files = new ConcurrentHashMap<>();
+
+	// Adds the file at the given path, replacing any file already there.
+	public InMemoryDataSource put(String path, String contents) {
+		files.put(path, contents);
+		return this;
+	}
+
+	@Override
+	public String getFile(String path) throws NoSuchFileException {
+		var contents = files.get(path);
+		if (contents == null) {
+			throw new NoSuchFileException(path);
+		}
+		return contents;
+	}
+
+}
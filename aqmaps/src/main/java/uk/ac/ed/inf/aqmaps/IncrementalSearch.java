@@ -0,0 +1,1130 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import com.mapbox.geojson.Point;
+
+
+// IncrementalSearch finds the path of one leg with D* Lite, and keeps its
+// search between calls so that the leg can be replanned while the drone is
+// flying it: when the no fly zones change, only the nodes with moves which
+// cross a segment that was added or removed are updated, and the search
+// repairs the part of its tree which depends on them rather than starting
+// again.
+// D* Lite searches backwards, from the goal positions to the drone, so the
+// distances it holds stay valid as the drone moves and only the heuristic
+// changes, which is allowed for by the key modifier km. The goal positions
+// are the target and a ring of positions around it. The positions reached
+// by moves from a point are dense in the plane, so the backward search
+// almost never reaches the drone's position exactly. It is joined instead to
+// the launch set, the drone's position and the ends of the legal moves from
+// it, at any expanded node within JOIN_FRACTION of closeEnough of one of
+// them, and that node's path is replayed from there. The ring is that much
+// inside the circle of positions close enough to the target, so the shifted
+// path still ends close enough. The path is followed from the drone's actual
+// positions, and where the shift makes one of its moves illegal the drone
+// is taken instead to a nearby node needing fewer moves to a goal; if no
+// join gives a legal path AStarUtils searches for one from scratch.
+// The search is held in primitive arrays indexed by node number, like
+// SearchState's, with its queue a binary heap like OpenSet's which can also
+// move and remove nodes. An expanded node only adds the predecessors whose
+// keys are no more than its own, and the rest once the search reaches their
+// keys, so that far fewer nodes are added than the search's 36 moves would
+// otherwise give. Most of the nodes added are never expanded, so the legal
+// moves from a node, the rhs values which depend on them, and the joins of a
+// node are only found once they are needed. Nodes are linked to the
+// predecessors they add, so that rhs values are recomputed without looking
+// nodes up, and every node is listed in a uniform grid of cells a move wide,
+// in which the nodes near the drone, near a changed segment or near a
+// replayed position are found.
+// An IncrementalSearch is not thread safe, and should only be used for the
+// leg it was made for.
+public class IncrementalSearch {
+
+	// The length of every drone move
+	private static final double MOVE_LENGTH = 0.0003;
+
+	// The number of goal positions on the ring around the target, which are
+	// added to the target itself.
+	private static final int RING_POSITIONS = 8;
+
+	// The distance within which a node is joined to the drone, as a fraction
+	// of the distance which is close enough to the target, as in
+	// BidirectionalSearch.
+	private static final double JOIN_FRACTION = 0.3;
+
+	// No leg can have more moves than the drone's move allowance, so the
+	// search gives up on paths longer than this.
+	private static final int MAX_MOVES = 150;
+
+	// The most nodes visited while following the paths of the join nodes
+	// from the drone's positions, before giving up on them.
+	private static final int MAX_FOLLOWED_NODES = 1000;
+
+	private static final double INFINITY = Double.POSITIVE_INFINITY;
+
+	// The legal moves of a node which have not been found yet. A
+	// legalMoveMask only ever has its lowest 36 bits set.
+	private static final long UNKNOWN_MOVES = -1L;
+
+	private static final long ALL_MOVES = (1L << 36) - 1;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private static final int MAX_CELLS = 1 << 16;
+
+	private ObstacleGrid obstacleGrid;
+	private final double targetLng;
+	private final double targetLat;
+	private final double closeEnough;
+	private final double joinDistance;
+	private final double goalDistance;
+
+	// Node arrays, indexed by node number. g and rhs are measured in moves
+	// from the node to a goal position, as in D* Lite, and nextNode is the
+	// successor which gave the node its rhs value, reached by a move at
+	// nextAngle, or -1 for a goal.
+	private long[] nodeKeys = new long[INITIAL_CAPACITY];
+	private double[] nodeLng = new double[INITIAL_CAPACITY];
+	private double[] nodeLat = new double[INITIAL_CAPACITY];
+	private boolean[] isGoal = new boolean[INITIAL_CAPACITY];
+	private double[] g = new double[INITIAL_CAPACITY];
+	private double[] rhs = new double[INITIAL_CAPACITY];
+	private int[] nextNode = new int[INITIAL_CAPACITY];
+	private int[] nextAngle = new int[INITIAL_CAPACITY];
+	// The moves which can be made from each node, as a legalMoveMask, or
+	// UNKNOWN_MOVES
+	private long[] legalMoves = new long[INITIAL_CAPACITY];
+	// The fewest moves from the drone to a position of the launch set
+	// within joinDistance of each node, or INFINITY if there is none, and
+	// the angle of that move, or -1 if it is the drone's position.
+	private double[] joinMoves = new double[INITIAL_CAPACITY];
+	private int[] joinAngle = new int[INITIAL_CAPACITY];
+	// The distance from each join node to the position it joins, and the
+	// number of the drone's position for which each node's joinMoves was
+	// found. Only nodes which have been expanded can be joined, so the
+	// joinMoves of the others are only found once they are expanded.
+	private double[] joinShift = new double[INITIAL_CAPACITY];
+	private int[] joinStart = new int[INITIAL_CAPACITY];
+	// The positions of the nodes in the queue, or -1
+	private int[] heapPositions = new int[INITIAL_CAPACITY];
+	// The legal moves of each node whose predecessors have not been added
+	// since the node was last expanded. Only the predecessors whose keys are
+	// no more than the node's are added when it is expanded, as in partial
+	// expansion A*, and the node stays queued with the lowest key of the
+	// rest until they are needed.
+	private long[] pendingMoves = new long[INITIAL_CAPACITY];
+	// The node reached by the move at angle i*10 from each node, plus one,
+	// at index node * 36 + i, or 0 if it has not been linked yet. A node is
+	// linked to the predecessors it has added, in both directions, so the
+	// successors which can give a node its rhs value never need to be
+	// looked up.
+	private int[] neighbours = new int[INITIAL_CAPACITY * 36];
+	// The moves from each node whose neighbours have been linked, as a
+	// legalMoveMask, so that only those are looked at.
+	private long[] linkedMoves = new long[INITIAL_CAPACITY];
+	private int nodeCount;
+	private int[] nextInCell = new int[INITIAL_CAPACITY];
+	private final double gridMinLng;
+	private final double gridMinLat;
+	private final double cellSize;
+	private final int columns;
+	private final int rows;
+	private final int[] cellHeads;
+
+	// Hash table from the lattice keys of the nodes' positions relative to
+	// the target (see SearchState) to node numbers plus one, so that an
+	// empty slot holds 0. The table outgrows the caches over a long leg, so
+	// each slot holds its key too, and a probe only reads the table.
+	private int[] tableNodes = new int[INITIAL_CAPACITY * 2];
+	private long[] tableKeys = new long[INITIAL_CAPACITY * 2];
+
+	// The queue of inconsistent nodes, with their keys held by position as
+	// OpenSet holds its scores
+	private int[] heapNodes = new int[INITIAL_CAPACITY];
+	private double[] heapKey1 = new double[INITIAL_CAPACITY];
+	private double[] heapKey2 = new double[INITIAL_CAPACITY];
+	private int heapSize;
+
+	// The nodes within joinDistance of a position of the launch set, and the
+	// fewest moves of a path from the drone through one of them which is
+	// consistent, which is found again once a join node changes.
+	private int[] joinNodes = new int[INITIAL_CAPACITY];
+	private int joinCount;
+	private double bestJoinMoves;
+	private boolean isBestJoinStale;
+
+	private double startLng;
+	private double startLat;
+	private double km;
+	// The legal moves from the drone's position, as a legalMoveMask, and the
+	// number of positions it has been given
+	private long startMoves;
+	private int startCount;
+
+	// The nodes which may still be visited by followPath, and the number of
+	// moves of the path it found
+	private int followBudget;
+	private int pathLength;
+
+	// Searches for a path from start to within closeEnough of target.
+	public IncrementalSearch(Point start, Point target,
+			ObstacleGrid obstacleGrid, double closeEnough) {
+		this.obstacleGrid = obstacleGrid;
+		targetLng = target.longitude();
+		targetLat = target.latitude();
+		this.closeEnough = closeEnough;
+		joinDistance = closeEnough * JOIN_FRACTION;
+		goalDistance = closeEnough - joinDistance;
+		gridMinLng = obstacleGrid.getMinLng();
+		gridMinLat = obstacleGrid.getMinLat();
+		var width = obstacleGrid.getMaxLng() - gridMinLng;
+		var height = obstacleGrid.getMaxLat() - gridMinLat;
+		// Cells a move wide keep the nodes near a position to a few cells,
+		// unless the confinement area is too large for that many.
+		cellSize = Math.max(MOVE_LENGTH,
+				Math.sqrt(width * height / MAX_CELLS));
+		columns = Math.max(1, (int) Math.ceil(width / cellSize));
+		rows = Math.max(1, (int) Math.ceil(height / cellSize));
+		cellHeads = new int[columns * rows];
+		Arrays.fill(cellHeads, -1);
+		setStart(start.longitude(), start.latitude());
+
+		for (int i = -1; i < RING_POSITIONS; i++) {
+			var angle = 2 * Math.PI * i / RING_POSITIONS;
+			var lng = i == -1 ? targetLng
+					: targetLng + goalDistance * Math.cos(angle);
+			var lat = i == -1 ? targetLat
+					: targetLat + goalDistance * Math.sin(angle);
+			var key = latticeKey(lng, lat);
+			if (obstacleGrid.isInsideConfinementArea(lng, lat)
+					&& findNode(key) == -1) {
+				addNode(key, lng, lat, -1, 0);
+			}
+		}
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	// Records that the drone has moved to the given position, which should be
+	// where the moves of the last path found took it.
+	public void moveTo(Point position) {
+		var lng = position.longitude();
+		var lat = position.latitude();
+		// Every heuristic value falls by at most the distance moved, in whole
+		// moves. Rounding errors may make this a move too many, which only
+		// makes the keys in the queue lower bounds, as they must be.
+		km += Math.ceil(distance(startLng, startLat, lng, lat) / MOVE_LENGTH
+				- 1e-9);
+		setStart(lng, lat);
+	}
+
+	// Sets the drone's position, and finds the join nodes for it among the
+	// nodes which have been expanded, which can only be within a move and
+	// joinDistance of it.
+	private void setStart(double lng, double lat) {
+		startLng = lng;
+		startLat = lat;
+		startCount++;
+		startMoves = obstacleGrid.legalMoveMask(lng, lat);
+		for (int i = 0; i < joinCount; i++) {
+			joinMoves[joinNodes[i]] = INFINITY;
+		}
+		joinCount = 0;
+		isBestJoinStale = true;
+		var reach = MOVE_LENGTH + joinDistance;
+		for (int row = row(lat - reach); row <= row(lat + reach); row++) {
+			for (int column = column(lng - reach);
+					column <= column(lng + reach); column++) {
+				for (int node = cellHeads[row * columns + column]; node != -1;
+						node = nextInCell[node]) {
+					if (g[node] != INFINITY) {
+						findJoin(node);
+					}
+				}
+			}
+		}
+	}
+
+	// Joins the node to the position of the launch set nearest it, if one is
+	// within joinDistance of it, preferring the drone's position, which needs
+	// no move.
+	private void findJoin(int node) {
+		joinMoves[node] = INFINITY;
+		joinStart[node] = startCount;
+		var dLng = nodeLng[node] - startLng;
+		var dLat = nodeLat[node] - startLat;
+		var distance = Math.sqrt(dLng*dLng + dLat*dLat);
+		if (distance < joinDistance) {
+			join(node, 0, -1, distance);
+			return;
+		}
+		if (Math.abs(distance - MOVE_LENGTH) >= joinDistance) {
+			return;
+		}
+		var bestAngle = -1;
+		var bestShift = joinDistance * joinDistance;
+		for (long rest = startMoves; rest != 0; rest &= rest - 1) {
+			var angle = Long.numberOfTrailingZeros(rest) * 10;
+			var sLng = dLng - PointUtils.moveLng(angle);
+			var sLat = dLat - PointUtils.moveLat(angle);
+			var shift = sLng*sLng + sLat*sLat;
+			if (shift < bestShift) {
+				bestAngle = angle;
+				bestShift = shift;
+			}
+		}
+		bestShift = Math.sqrt(bestShift);
+		if (bestAngle != -1) {
+			join(node, 1, bestAngle, bestShift);
+		}
+	}
+
+	private void join(int node, int moves, int angle, double shift) {
+		if (joinCount == joinNodes.length) {
+			joinNodes = Arrays.copyOf(joinNodes, joinCount * 2);
+		}
+		joinNodes[joinCount++] = node;
+		joinMoves[node] = moves;
+		joinAngle[node] = angle;
+		joinShift[node] = shift;
+		isBestJoinStale = true;
+	}
+
+	// Replaces the obstacleGrid with one in which no fly segments have been
+	// added or removed, and updates the moves of the nodes they affect. The
+	// search is repaired by the next call to findBestMoves.
+	public void updateObstacleGrid(ObstacleGrid updatedObstacleGrid) {
+		var removedSegments = missingSegments(obstacleGrid,
+				updatedObstacleGrid);
+		var addedSegments = missingSegments(updatedObstacleGrid, obstacleGrid);
+		obstacleGrid = updatedObstacleGrid;
+		if (removedSegments.isEmpty() && addedSegments.isEmpty()) {
+			return;
+		}
+		// The moves from the drone may have changed too.
+		if (obstacleGrid.legalMoveMask(startLng, startLat) != startMoves) {
+			setStart(startLng, startLat);
+		}
+		for (var segment : addedSegments) {
+			updateMoves(segment, true);
+		}
+		for (var segment : removedSegments) {
+			updateMoves(segment, false);
+		}
+	}
+
+	// Updates the moves of the nodes with moves crossing the segment, which
+	// has been added to the obstacleGrid or removed from it, and the rhs
+	// values which depend on them. A move can only cross the segment if it
+	// starts within a move of the segment's bounding box. Nodes added here
+	// take their moves from the new obstacleGrid, and so do nodes whose
+	// moves are not known yet.
+	private void updateMoves(double[] segment, boolean isAdded) {
+		var minLng = Math.min(segment[0], segment[2]) - MOVE_LENGTH;
+		var maxLng = Math.max(segment[0], segment[2]) + MOVE_LENGTH;
+		var minLat = Math.min(segment[1], segment[3]) - MOVE_LENGTH;
+		var maxLat = Math.max(segment[1], segment[3]) + MOVE_LENGTH;
+		var minColumn = column(minLng);
+		var maxColumn = column(maxLng);
+		for (int row = row(minLat); row <= row(maxLat); row++) {
+			for (int column = minColumn; column <= maxColumn; column++) {
+				for (int node = cellHeads[row * columns + column]; node != -1;
+						node = nextInCell[node]) {
+					var lng = nodeLng[node];
+					var lat = nodeLat[node];
+					if (legalMoves[node] == UNKNOWN_MOVES
+							|| lng < minLng || lng > maxLng
+							|| lat < minLat || lat > maxLat) {
+						continue;
+					}
+					// Only legal moves can cross an added segment, and only
+					// illegal ones a removed segment.
+					var changedMoves = ObstacleGrid.intersectingMoveMask(lng,
+							lat, segment[0], segment[1], segment[2],
+							segment[3], isAdded ? legalMoves[node]
+									: ~legalMoves[node] & ALL_MOVES);
+					// A move crossing a removed segment may still cross
+					// another one, or leave the confinement area.
+					if (!isAdded && changedMoves != 0) {
+						changedMoves = obstacleGrid.removeIllegalMoves(lng,
+								lat, changedMoves);
+					}
+					if (changedMoves != 0) {
+						legalMoves[node] ^= changedMoves;
+						updatePredecessors(node, changedMoves);
+					}
+				}
+			}
+		}
+	}
+
+	// Updates the rhs values of the predecessors reached by the moves of the
+	// node which have changed. Only nodes which have been expanded give their
+	// predecessors rhs values, and only the predecessors they have added
+	// and linked to can have taken one from them.
+	private void updatePredecessors(int node, long changedMoves) {
+		if (g[node] == INFINITY) {
+			return;
+		}
+		for (long rest = changedMoves; rest != 0; rest &= rest - 1) {
+			var i = Long.numberOfTrailingZeros(rest);
+			if ((legalMoves[node] & (1L << i)) != 0) {
+				pendingMoves[node] |= 1L << i;
+				continue;
+			}
+			pendingMoves[node] &= ~(1L << i);
+			var predecessor = neighbours[node * 36 + i] - 1;
+			if (predecessor != -1 && !isGoal[predecessor]
+					&& nextNode[predecessor] == node) {
+				rhs[predecessor] = computeRhs(predecessor);
+				updateVertex(predecessor);
+			}
+		}
+		updateVertex(node);
+	}
+
+	// Returns the angles of the moves along the shortest path from the
+	// drone's position to within closeEnough of the target, or null if there
+	// is none.
+	public int[] findBestMoves() {
+		// No path can leave a drone which cannot move.
+		if (startMoves == 0) {
+			return null;
+		}
+		computeShortestPath();
+		var candidates = new int[joinCount];
+		var candidateCount = 0;
+		for (int i = 0; i < joinCount; i++) {
+			var node = joinNodes[i];
+			if (g[node] == rhs[node] && g[node] != INFINITY) {
+				var j = candidateCount++;
+				for (; j > 0 && isBetterJoin(node, candidates[j-1]); j--) {
+					candidates[j] = candidates[j-1];
+				}
+				candidates[j] = node;
+			}
+		}
+		// The path of a join node is followed from the drone's actual
+		// positions, which may make it longer or illegal, so if no join
+		// gives a legal path the leg is searched again from scratch. Making
+		// more of the nodes near the joins consistent first costs more than
+		// that search does.
+		followBudget = MAX_FOLLOWED_NODES;
+		for (int i = 0; i < candidateCount; i++) {
+			var moves = extractMoves(candidates[i]);
+			if (moves != null) {
+				return moves;
+			}
+		}
+		return AStarUtils.findBestMoves(Point.fromLngLat(startLng, startLat),
+				Point.fromLngLat(targetLng, targetLat), obstacleGrid,
+				closeEnough);
+	}
+
+	// Returns true if the path through join node1 should be tried before the
+	// path through join node2.
+	private boolean isBetterJoin(int node1, int node2) {
+		var moves1 = joinMoves[node1] + g[node1];
+		var moves2 = joinMoves[node2] + g[node2];
+		if (moves1 != moves2) {
+			return moves1 < moves2;
+		}
+		return joinShift[node1] < joinShift[node2];
+	}
+
+	// Expands nodes until the best join with the drone is known, as D* Lite's
+	// ComputeShortestPath does for its start node.
+	private void computeShortestPath() {
+		while (heapSize > 0) {
+			// Every path through a node still in the queue needs at least
+			// as many moves as its key, less km, so the search can stop once
+			// that is no fewer than the best join's.
+			var node = heapNodes[0];
+			var oldKey1 = heapKey1[0];
+			var oldKey2 = heapKey2[0];
+			if (oldKey1 - km > MAX_MOVES
+					|| (oldKey1 - km >= bestJoinMoves() && oldKey2 >= 0)) {
+				return;
+			}
+			var newKey1 = g[node] == rhs[node] ? pendingKey1(node)
+					: calculateKey1(node);
+			var newKey2 = calculateKey2(node);
+			if (oldKey1 < newKey1) {
+				queue(node, newKey1, newKey2);
+			} else if (g[node] == rhs[node]) {
+				addPredecessors(node, oldKey1);
+				updateVertex(node);
+			} else if (g[node] > rhs[node]) {
+				if (!hasValidRhs(node)) {
+					rhs[node] = computeRhs(node);
+					updateVertex(node);
+					continue;
+				}
+				g[node] = rhs[node];
+				if (joinStart[node] != startCount) {
+					findJoin(node);
+				}
+				pendingMoves[node] = legalMoves(node);
+				addPredecessors(node, oldKey1);
+				updateVertex(node);
+			} else {
+				g[node] = INFINITY;
+				pendingMoves[node] = 0;
+				updateVertex(node);
+				var moves = legalMoves(node) & linkedMoves[node];
+				for (long rest = moves; rest != 0; rest &= rest - 1) {
+					var i = Long.numberOfTrailingZeros(rest);
+					var predecessor = neighbours[node * 36 + i] - 1;
+					if (!isGoal[predecessor]
+							&& nextNode[predecessor] == node) {
+						rhs[predecessor] = computeRhs(predecessor);
+						updateVertex(predecessor);
+					}
+				}
+			}
+		}
+	}
+
+	// Adds the nodes from which a pending move of the given node reaches it,
+	// and whose keys would be no more than the given key, and lowers the rhs
+	// values of those already added through it. Those are the predecessors
+	// within the reach of the drone which the key leaves, so most are told
+	// apart by their squared distances, and only the keys of those within
+	// rounding errors of that reach are computed.
+	private void addPredecessors(int node, double key1) {
+		var moves = key1 - 1 - g[node] - km;
+		if (moves < 0) {
+			return;
+		}
+		var reach = (moves + 1e-9) * MOVE_LENGTH + joinDistance
+				+ SearchState.LATTICE_QUANTUM;
+		var innerSquared = reach * reach * (1 - 1e-9);
+		var outerSquared = reach * reach * (1 + 1e-9);
+		for (long rest = pendingMoves[node]; rest != 0; rest &= rest - 1) {
+			var i = Long.numberOfTrailingZeros(rest);
+			var squared = predecessorDistanceSquared(node, i);
+			if (squared > outerSquared || (squared >= innerSquared
+					&& predecessorKey1(node, i) > key1)) {
+				continue;
+			}
+			pendingMoves[node] &= ~(1L << i);
+			addPredecessor(node, i);
+		}
+	}
+
+	// Returns the lowest key which a predecessor still to be added through a
+	// pending move of the node would have. That is the key of the
+	// predecessor nearest the drone, so only its key is computed.
+	private double pendingKey1(int node) {
+		if (pendingMoves[node] == 0) {
+			return INFINITY;
+		}
+		var nearest = -1;
+		var nearestSquared = INFINITY;
+		for (long rest = pendingMoves[node]; rest != 0; rest &= rest - 1) {
+			var i = Long.numberOfTrailingZeros(rest);
+			var squared = predecessorDistanceSquared(node, i);
+			if (squared < nearestSquared) {
+				nearest = i;
+				nearestSquared = squared;
+			}
+		}
+		return predecessorKey1(node, nearest);
+	}
+
+	// Returns the squared distance from the drone to the position reached by
+	// the move at angle i*10 from the node, rounded as the distance in
+	// predecessorKey1 is, so that the two put predecessors in the same order.
+	private double predecessorDistanceSquared(int node, int i) {
+		var dLng = nodeLng[node] + PointUtils.moveLng(i*10) - startLng;
+		var dLat = nodeLat[node] + PointUtils.moveLat(i*10) - startLat;
+		return dLng*dLng + dLat*dLat;
+	}
+
+	// Returns the key which the predecessor reached by the move at angle
+	// i*10 from the node would have through it. The predecessor may already
+	// have been added at a position up to a LATTICE_QUANTUM away, so the
+	// distance is reduced by that much to keep the key a lower bound.
+	private double predecessorKey1(int node, int i) {
+		var lng = nodeLng[node] + PointUtils.moveLng(i*10);
+		var lat = nodeLat[node] + PointUtils.moveLat(i*10);
+		return 1 + g[node] + wholeMoves(distance(lng, lat, startLng, startLat)
+				- joinDistance - SearchState.LATTICE_QUANTUM) + km;
+	}
+
+	// Adds the node reached by the move at angle i*10 from the given node,
+	// or lowers its rhs value if it has already been added, and links the
+	// two. The move from that predecessor to the node is the same line
+	// segment, so it is legal if the move from the node is.
+	private void addPredecessor(int node, int i) {
+		var predecessor = neighbours[node * 36 + i] - 1;
+		if (predecessor == -1) {
+			var lng = nodeLng[node] + PointUtils.moveLng(i*10);
+			var lat = nodeLat[node] + PointUtils.moveLat(i*10);
+			var key = latticeKey(lng, lat);
+			predecessor = findNode(key);
+			if (predecessor == -1) {
+				addNode(key, lng, lat, node, reverseAngle(i));
+				link(node, i, nodeCount - 1);
+				return;
+			}
+			link(node, i, predecessor);
+		}
+		lowerRhs(predecessor, node, reverseAngle(i));
+	}
+
+	// Links the node to the node reached by the move at angle i*10 from it,
+	// in both directions.
+	private void link(int node, int i, int neighbour) {
+		neighbours[node * 36 + i] = neighbour + 1;
+		neighbours[neighbour * 36 + (i + 18) % 36] = node + 1;
+		linkedMoves[node] |= 1L << i;
+		linkedMoves[neighbour] |= 1L << (i + 18) % 36;
+	}
+
+	// Lowers the predecessor's rhs value to a move more than the node's g
+	// value, if that is lower, where angle is the move's angle.
+	private void lowerRhs(int predecessor, int node, int angle) {
+		if (!isGoal[predecessor] && 1 + g[node] < rhs[predecessor]) {
+			rhs[predecessor] = 1 + g[node];
+			nextNode[predecessor] = node;
+			nextAngle[predecessor] = angle;
+			updateVertex(predecessor);
+		}
+	}
+
+	// Adds a node at the given position with the given lattice key, whose
+	// rhs value is taken from the node next, reached by a move at the given
+	// angle. A node added with no next node is a goal.
+	private void addNode(long key, double lng, double lat, int next,
+			int angle) {
+		if (nodeCount == nodeKeys.length) {
+			growNodes();
+		}
+		if ((nodeCount + 1) * 2 > tableNodes.length) {
+			growTable();
+		}
+		var node = nodeCount++;
+		nodeKeys[node] = key;
+		nodeLng[node] = lng;
+		nodeLat[node] = lat;
+		isGoal[node] = next == -1;
+		g[node] = INFINITY;
+		rhs[node] = isGoal[node] ? 0 : 1 + g[next];
+		nextNode[node] = isGoal[node] ? -1 : next;
+		nextAngle[node] = angle;
+		legalMoves[node] = UNKNOWN_MOVES;
+		heapPositions[node] = -1;
+		pendingMoves[node] = 0;
+		Arrays.fill(neighbours, node * 36, node * 36 + 36, 0);
+		linkedMoves[node] = 0;
+		joinMoves[node] = INFINITY;
+		joinStart[node] = 0;
+		insert(key, node);
+		addToCell(node);
+		updateVertex(node);
+	}
+
+	// Returns the moves which can be made from the node, finding them if
+	// they are not known yet.
+	private long legalMoves(int node) {
+		if (legalMoves[node] == UNKNOWN_MOVES) {
+			legalMoves[node] = obstacleGrid.legalMoveMask(nodeLng[node],
+					nodeLat[node]);
+		}
+		return legalMoves[node];
+	}
+
+	// Returns the fewest moves to a goal through the node's successors, and
+	// records the successor in nextNode. Only successors which have been
+	// expanded can give the node a path, and their moves are known, so the
+	// legality of each move is taken from the move back from the successor.
+	// A successor which has not added the node yet lowers its rhs value
+	// once it does.
+	private double computeRhs(int node) {
+		var best = INFINITY;
+		nextNode[node] = -1;
+		for (long rest = linkedMoves[node]; rest != 0; rest &= rest - 1) {
+			var i = Long.numberOfTrailingZeros(rest);
+			var successor = neighbours[node * 36 + i] - 1;
+			if (1 + g[successor] < best
+					&& (legalMoves(successor)
+							& (1L << (i + 18) % 36)) != 0) {
+				best = 1 + g[successor];
+				nextNode[node] = successor;
+				nextAngle[node] = i*10;
+			}
+		}
+		return best;
+	}
+
+	// Returns true if the node's rhs value is still one more than the g
+	// value of its next node, through a move which is still legal. rhs
+	// values are only recomputed when they are needed, so they may not be.
+	private boolean hasValidRhs(int node) {
+		if (isGoal[node]) {
+			return true;
+		}
+		var next = nextNode[node];
+		var reverse = (nextAngle[node] / 10 + 18) % 36;
+		return next != -1 && rhs[node] == 1 + g[next]
+				&& (legalMoves(next) & (1L << reverse)) != 0;
+	}
+
+	// Queues the node if it is inconsistent, and removes it from the queue
+	// otherwise.
+	private void updateVertex(int node) {
+		if (joinMoves[node] != INFINITY) {
+			isBestJoinStale = true;
+		}
+		if (g[node] != rhs[node]) {
+			queue(node, calculateKey1(node), calculateKey2(node));
+		} else if (pendingMoves[node] != 0) {
+			queue(node, pendingKey1(node), calculateKey2(node));
+		} else if (heapPositions[node] != -1) {
+			dequeue(node);
+		}
+	}
+
+	// Returns the fewest moves of a path from the drone through a
+	// consistent join node to a goal, or INFINITY if there is none yet.
+	private double bestJoinMoves() {
+		if (isBestJoinStale) {
+			bestJoinMoves = INFINITY;
+			for (int i = 0; i < joinCount; i++) {
+				var node = joinNodes[i];
+				if (g[node] == rhs[node]) {
+					bestJoinMoves = Math.min(bestJoinMoves,
+							joinMoves[node] + g[node]);
+				}
+			}
+			isBestJoinStale = false;
+		}
+		return bestJoinMoves;
+	}
+
+	private double calculateKey1(int node) {
+		return Math.min(g[node], rhs[node]) + heuristic(node) + km;
+	}
+
+	// Keys are whole numbers of moves, so many nodes share the first part of
+	// their keys, and of those the one nearest the drone is expanded first,
+	// as AStarUtils does towards the target. Since moves all cost one and
+	// the heuristic is consistent, a node whose key ties with a node about to
+	// be expanded can never give it a cheaper path, so D* Lite's usual second
+	// key, min(g, rhs), is not needed. Underconsistent nodes (g < rhs) come
+	// before every other node with the same first key, though, since the
+	// search stops at the first key of the best join, and an underconsistent
+	// node left with that key could be on the join's path with a g value
+	// which is too low.
+	private double calculateKey2(int node) {
+		if (g[node] < rhs[node]) {
+			return -1;
+		}
+		return distance(nodeLng[node], nodeLat[node], startLng, startLat);
+	}
+
+	// Returns a lower bound on the moves from the drone to within
+	// joinDistance of the node, which is no more than its joinMoves. It is
+	// rounded up to whole moves, which still changes by at most one between
+	// the ends of a move.
+	private double heuristic(int node) {
+		return wholeMoves(distance(nodeLng[node], nodeLat[node], startLng,
+				startLat) - joinDistance);
+	}
+
+	// Returns the fewest whole moves which cover the given distance, which
+	// is reduced slightly first so that rounding errors in it cannot add a
+	// move.
+	private static double wholeMoves(double distance) {
+		if (distance <= 0) {
+			return 0;
+		}
+		return Math.ceil(distance / MOVE_LENGTH - 1e-9);
+	}
+
+	// Returns the angle of the move back along the move at angle i*10.
+	private static int reverseAngle(int i) {
+		return (i + 18) % 36 * 10;
+	}
+
+	// Returns the moves from the drone through the join node to a goal, or
+	// null if no such path is legal when flown from the drone's position.
+	private int[] extractMoves(int join) {
+		var lng = startLng;
+		var lat = startLat;
+		var launchMoves = (int) joinMoves[join];
+		var moves = new int[launchMoves + (int) g[join]];
+		if (launchMoves == 1) {
+			moves[0] = joinAngle[join];
+			lng += PointUtils.moveLng(joinAngle[join]);
+			lat += PointUtils.moveLat(joinAngle[join]);
+		}
+		if (moves.length == 0
+				|| !followPath(join, lng, lat, moves, launchMoves)) {
+			return null;
+		}
+		return Arrays.copyOf(moves, pathLength);
+	}
+
+	// Follows the path from the node, which the drone reaches at the given
+	// position after the given number of moves, adding its moves to moves
+	// until the drone is close enough to the target. The node's own move is
+	// tried first; if it is illegal from the drone's position, or its path
+	// fails, each legal move is tried instead towards the best followable
+	// node within joinDistance of where it ends, which needs fewer moves
+	// than the node does. Returns false if there is no such path, or the
+	// followBudget runs out.
+	private boolean followPath(int node, double lng, double lat, int[] moves,
+			int index) {
+		if (index > 0
+				&& distance(lng, lat, targetLng, targetLat) < closeEnough) {
+			pathLength = index;
+			return true;
+		}
+		if (isGoal[node] || followBudget-- <= 0) {
+			return false;
+		}
+		var next = nextNode[node];
+		var angle = nextAngle[node];
+		if (next != -1 && rhs[next] + 1 == rhs[node] && isFollowable(next)
+				&& obstacleGrid.isLegalMove(lng, lat, angle)) {
+			moves[index] = angle;
+			if (followPath(next, lng + PointUtils.moveLng(angle),
+					lat + PointUtils.moveLat(angle), moves, index + 1)) {
+				return true;
+			}
+		}
+		var fromMoves = obstacleGrid.legalMoveMask(lng, lat);
+		for (long rest = fromMoves; rest != 0; rest &= rest - 1) {
+			var i = Long.numberOfTrailingZeros(rest);
+			var nextLng = lng + PointUtils.moveLng(i*10);
+			var nextLat = lat + PointUtils.moveLat(i*10);
+			var anchor = findAnchor(nextLng, nextLat, rhs[node] - 1);
+			if (anchor != -1 && !(anchor == next && i*10 == angle)) {
+				moves[index] = i*10;
+				if (followPath(anchor, nextLng, nextLat, moves, index + 1)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	// Returns true if the node's rhs value is the number of moves of a path
+	// from it which can be followed: it is consistent, or its rhs value is
+	// still valid and its next node is consistent, as the nodes the search
+	// stopped short of often are.
+	private boolean isFollowable(int node) {
+		if (g[node] == rhs[node] || isGoal[node]) {
+			return true;
+		}
+		var next = nextNode[node];
+		return rhs[node] != INFINITY && hasValidRhs(node)
+				&& g[next] == rhs[next];
+	}
+
+	// Returns the followable node within joinDistance of the given position
+	// with the lowest rhs value, no more than maxRhs, and of those the
+	// nearest, or -1 if there is none.
+	private int findAnchor(double lng, double lat, double maxRhs) {
+		var best = -1;
+		var bestDistance = joinDistance;
+		for (int row = row(lat - joinDistance); row <= row(lat + joinDistance);
+				row++) {
+			for (int column = column(lng - joinDistance);
+					column <= column(lng + joinDistance); column++) {
+				for (int node = cellHeads[row * columns + column]; node != -1;
+						node = nextInCell[node]) {
+					if (rhs[node] > maxRhs || !isFollowable(node)) {
+						continue;
+					}
+					var d = distance(nodeLng[node], nodeLat[node], lng, lat);
+					if (d < joinDistance && (best == -1
+							|| rhs[node] < rhs[best]
+							|| (rhs[node] == rhs[best] && d < bestDistance))) {
+						best = node;
+						bestDistance = d;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	// Adds the node to the list of nodes in the cell containing it.
+	private void addToCell(int node) {
+		var cell = row(nodeLat[node]) * columns + column(nodeLng[node]);
+		nextInCell[node] = cellHeads[cell];
+		cellHeads[cell] = node;
+	}
+
+	// Returns the column of the cell containing the given longitude, clamped
+	// to the grid, as ObstacleGrid does.
+	private int column(double lng) {
+		var column = (int) Math.floor((lng - gridMinLng) / cellSize);
+		return Math.min(columns - 1, Math.max(0, column));
+	}
+
+	// Returns the row of the cell containing the given latitude, clamped to
+	// the grid.
+	private int row(double lat) {
+		var row = (int) Math.floor((lat - gridMinLat) / cellSize);
+		return Math.min(rows - 1, Math.max(0, row));
+	}
+
+	// Adds the node to the queue with the given keys, or moves it there if
+	// it is already queued.
+	private void queue(int node, double key1, double key2) {
+		var position = heapPositions[node];
+		if (position == -1) {
+			if (heapSize == heapNodes.length) {
+				var capacity = heapSize * 2;
+				heapNodes = Arrays.copyOf(heapNodes, capacity);
+				heapKey1 = Arrays.copyOf(heapKey1, capacity);
+				heapKey2 = Arrays.copyOf(heapKey2, capacity);
+			}
+			siftUp(heapSize++, node, key1, key2);
+		} else if (isBefore(key1, key2, node, position)) {
+			siftUp(position, node, key1, key2);
+		} else {
+			siftDown(position, node, key1, key2);
+		}
+	}
+
+	private void dequeue(int node) {
+		var position = heapPositions[node];
+		heapPositions[node] = -1;
+		heapSize--;
+		if (position < heapSize) {
+			var last = heapNodes[heapSize];
+			var key1 = heapKey1[heapSize];
+			var key2 = heapKey2[heapSize];
+			if (isBefore(key1, key2, last, position)) {
+				siftUp(position, last, key1, key2);
+			} else {
+				siftDown(position, last, key1, key2);
+			}
+		}
+	}
+
+	// Places the node with the given keys at the position, which is empty,
+	// or at one of its ancestors, moving the entries it passes down.
+	private void siftUp(int position, int node, double key1, double key2) {
+		while (position > 0) {
+			var parent = (position - 1) / 2;
+			if (!isBefore(key1, key2, node, parent)) {
+				break;
+			}
+			move(parent, position);
+			position = parent;
+		}
+		place(position, node, key1, key2);
+	}
+
+	// Places the node with the given keys at the position, which is empty,
+	// or at one of its descendants, moving the entries it passes up.
+	private void siftDown(int position, int node, double key1, double key2) {
+		while (true) {
+			var child = 2 * position + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && isBefore(heapKey1[child + 1],
+					heapKey2[child + 1], heapNodes[child + 1], child)) {
+				child++;
+			}
+			if (!isBefore(heapKey1[child], heapKey2[child], heapNodes[child],
+					key1, key2, node)) {
+				break;
+			}
+			move(child, position);
+			position = child;
+		}
+		place(position, node, key1, key2);
+	}
+
+	// Returns true if the node with the given keys should be expanded before
+	// the entry at the position.
+	private boolean isBefore(double key1, double key2, int node,
+			int position) {
+		return isBefore(key1, key2, node, heapKey1[position],
+				heapKey2[position], heapNodes[position]);
+	}
+
+	// Returns true if node1 should be expanded before node2. Ties are broken
+	// by node number so that the order is always deterministic.
+	private static boolean isBefore(double key11, double key12, int node1,
+			double key21, double key22, int node2) {
+		if (key11 != key21) {
+			return key11 < key21;
+		}
+		if (key12 != key22) {
+			return key12 < key22;
+		}
+		return node1 < node2;
+	}
+
+	// Moves the entry at position from to position to, overwriting it.
+	private void move(int from, int to) {
+		place(to, heapNodes[from], heapKey1[from], heapKey2[from]);
+	}
+
+	private void place(int position, int node, double key1, double key2) {
+		heapNodes[position] = node;
+		heapKey1[position] = key1;
+		heapKey2[position] = key2;
+		heapPositions[node] = position;
+	}
+
+	// Returns the lattice key of the position, as SearchState.latticeKey
+	// does, relative to the target.
+	private long latticeKey(double lng, double lat) {
+		var x = Math.round((lng - targetLng) / SearchState.LATTICE_QUANTUM);
+		var y = Math.round((lat - targetLat) / SearchState.LATTICE_QUANTUM);
+		return (x << 32) | (y & 0xffffffffL);
+	}
+
+	// Returns the number of the node with the given lattice key, or -1 if
+	// there is none.
+	private int findNode(long key) {
+		var mask = tableNodes.length - 1;
+		for (int slot = hash(key) & mask; tableNodes[slot] != 0;
+				slot = (slot + 1) & mask) {
+			if (tableKeys[slot] == key) {
+				return tableNodes[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(long key, int node) {
+		var mask = tableNodes.length - 1;
+		var slot = hash(key) & mask;
+		while (tableNodes[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		tableNodes[slot] = node + 1;
+		tableKeys[slot] = key;
+	}
+
+	private void growNodes() {
+		var capacity = nodeKeys.length * 2;
+		nodeKeys = Arrays.copyOf(nodeKeys, capacity);
+		nodeLng = Arrays.copyOf(nodeLng, capacity);
+		nodeLat = Arrays.copyOf(nodeLat, capacity);
+		isGoal = Arrays.copyOf(isGoal, capacity);
+		g = Arrays.copyOf(g, capacity);
+		rhs = Arrays.copyOf(rhs, capacity);
+		nextNode = Arrays.copyOf(nextNode, capacity);
+		nextAngle = Arrays.copyOf(nextAngle, capacity);
+		legalMoves = Arrays.copyOf(legalMoves, capacity);
+		joinMoves = Arrays.copyOf(joinMoves, capacity);
+		joinAngle = Arrays.copyOf(joinAngle, capacity);
+		joinShift = Arrays.copyOf(joinShift, capacity);
+		joinStart = Arrays.copyOf(joinStart, capacity);
+		heapPositions = Arrays.copyOf(heapPositions, capacity);
+		pendingMoves = Arrays.copyOf(pendingMoves, capacity);
+		neighbours = Arrays.copyOf(neighbours, capacity * 36);
+		linkedMoves = Arrays.copyOf(linkedMoves, capacity);
+		nextInCell = Arrays.copyOf(nextInCell, capacity);
+	}
+
+	// Doubles the size of the hash table and reinserts every node.
+	private void growTable() {
+		tableNodes = new int[tableNodes.length * 2];
+		tableKeys = new long[tableKeys.length * 2];
+		for (int node = 0; node < nodeCount; node++) {
+			insert(nodeKeys[node], node);
+		}
+	}
+
+	// Spreads the bits of a lattice key, as SearchState does.
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	// Returns the segments of grid1, as {lng1, lat1, lng2, lat2}, which are
+	// not in grid2. Grids for changed no fly zones usually list the segments
+	// of the zones which did not change in the same order, so only the
+	// segments between the longest common prefix and suffix of the two lists
+	// are compared as sets.
+	private static List<double[]> missingSegments(ObstacleGrid grid1,
+			ObstacleGrid grid2) {
+		var missingSegments = new ArrayList<double[]>();
+		if (grid1 == grid2) {
+			return missingSegments;
+		}
+		var count1 = grid1.getSegmentCount();
+		var count2 = grid2.getSegmentCount();
+		var prefix = 0;
+		while (prefix < Math.min(count1, count2)
+				&& isSameSegment(grid1, prefix, grid2, prefix)) {
+			prefix++;
+		}
+		var suffix = 0;
+		while (suffix < Math.min(count1, count2) - prefix
+				&& isSameSegment(grid1, count1 - 1 - suffix, grid2,
+						count2 - 1 - suffix)) {
+			suffix++;
+		}
+		// Usually the segments of zones have only been added, or only been
+		// removed, so that the rest of one of the lists is empty and no
+		// segment needs to be hashed.
+		var segments2 = segments(grid2, prefix, count2 - suffix);
+		for (int i = prefix; i < count1 - suffix; i++) {
+			var segment = new double[] {grid1.getSegmentLng1(i),
+					grid1.getSegmentLat1(i), grid1.getSegmentLng2(i),
+					grid1.getSegmentLat2(i)};
+			if (segments2.isEmpty() || !segments2.contains(toList(segment))) {
+				missingSegments.add(segment);
+			}
+		}
+		return missingSegments;
+	}
+
+	private static boolean isSameSegment(ObstacleGrid grid1, int segment1,
+			ObstacleGrid grid2, int segment2) {
+		return grid1.getSegmentLng1(segment1) == grid2.getSegmentLng1(segment2)
+				&& grid1.getSegmentLat1(segment1)
+						== grid2.getSegmentLat1(segment2)
+				&& grid1.getSegmentLng2(segment1)
+						== grid2.getSegmentLng2(segment2)
+				&& grid1.getSegmentLat2(segment1)
+						== grid2.getSegmentLat2(segment2);
+	}
+
+	// Returns the segments of the grid numbered from to to - 1.
+	private static HashSet<List<Double>> segments(ObstacleGrid obstacleGrid,
+			int from, int to) {
+		var segments = new HashSet<List<Double>>();
+		for (int i = from; i < to; i++) {
+			segments.add(Arrays.asList(obstacleGrid.getSegmentLng1(i),
+					obstacleGrid.getSegmentLat1(i),
+					obstacleGrid.getSegmentLng2(i),
+					obstacleGrid.getSegmentLat2(i)));
+		}
+		return segments;
+	}
+
+	private static List<Double> toList(double[] segment) {
+		return Arrays.asList(segment[0], segment[1], segment[2], segment[3]);
+	}
+
+	// Returns the Pythagorean distance between two positions.
+	private static double distance(double lng1, double lat1, double lng2,
+			double lat2) {
+		var dLng = lng1 - lng2;
+		var dLat = lat1 - lat2;
+		return Math.sqrt(dLng*dLng + dLat*dLat);
+	}
+
+}
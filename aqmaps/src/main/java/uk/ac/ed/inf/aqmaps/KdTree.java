@@ -0,0 +1,247 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import com.mapbox.geojson.Point;
+
+
+// KdTree holds a set of positions, numbered by their index in the list it is
+// built from, so that they can be visited in order of their distance from a
+// point without measuring the distance to every one of them. Positions can
+// be removed, as each is visited by a tour, and are then skipped.
+// The tree is kept in one array: the node for a range of the array holds the
+// position at the middle of the range, and its children the ranges either
+// side of it, split alternately by longitude and latitude. Each node is
+// identified by its middle index, which holds its bounding box and the
+// number of positions in its range which have not been removed, so that
+// ranges which are empty are never searched.
+public class KdTree {
+
+	private final double[] lngs;
+	private final double[] lats;
+	// The positions, by number, in the order of the tree
+	private final int[] order;
+	// slots[p] is the index in order of position p, or -1 if position p is
+	// not in the tree.
+	private final int[] slots;
+	private final double[] minLngs;
+	private final double[] minLats;
+	private final double[] maxLngs;
+	private final double[] maxLats;
+	private final int[] liveCounts;
+	private final BitSet removed = new BitSet();
+
+	// Builds a tree holding the positions whose numbers are in members.
+	public KdTree(List<Point> positions, int[] members) {
+		lngs = new double[positions.size()];
+		lats = new double[positions.size()];
+		for (int i = 0; i < positions.size(); i++) {
+			lngs[i] = positions.get(i).longitude();
+			lats[i] = positions.get(i).latitude();
+		}
+		var size = members.length;
+		var boxed = Arrays.stream(members).boxed().toArray(Integer[]::new);
+		build(boxed, 0, size, 0);
+		order = Arrays.stream(boxed).mapToInt(Integer::intValue).toArray();
+		slots = new int[positions.size()];
+		Arrays.fill(slots, -1);
+		for (int i = 0; i < size; i++) {
+			slots[order[i]] = i;
+		}
+		minLngs = new double[size];
+		minLats = new double[size];
+		maxLngs = new double[size];
+		maxLats = new double[size];
+		liveCounts = new int[size];
+		computeBoxes(0, size);
+	}
+
+	// Returns true if position p is in the tree and has not been removed.
+	public boolean contains(int p) {
+		return p < slots.length && slots[p] != -1 && !removed.get(p);
+	}
+
+	// Removes position p, if it is in the tree.
+	public void remove(int p) {
+		if (!contains(p)) {
+			return;
+		}
+		removed.set(p);
+		var slot = slots[p];
+		var lo = 0;
+		var hi = order.length;
+		while (true) {
+			var mid = (lo + hi) >>> 1;
+			liveCounts[mid]--;
+			if (slot == mid) {
+				return;
+			}
+			if (slot < mid) {
+				hi = mid;
+			} else {
+				lo = mid + 1;
+			}
+		}
+	}
+
+	// Returns the positions which have not been removed in order of their
+	// distance from the given point, nearest first, as measured by
+	// PointUtils.findDistanceBetween. Positions at the same distance come in
+	// order of their numbers. The positions are found as they are asked for,
+	// so stopping early saves searching the rest of the tree.
+	public Nearest nearest(Point point) {
+		return new Nearest(point.longitude(), point.latitude());
+	}
+
+	// Visits the positions of a KdTree in order of distance from a point,
+	// expanding the nodes of the tree in order of the distance to their
+	// bounding boxes, which is never more than the distance to any of their
+	// positions.
+	public class Nearest {
+
+		private final double lng;
+		private final double lat;
+		private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+		private double distance = Double.NaN;
+
+		private Nearest(double lng, double lat) {
+			this.lng = lng;
+			this.lat = lat;
+			addNode(0, order.length);
+		}
+
+		// Returns the number of the next nearest position, or -1 if there
+		// are no more.
+		public int next() {
+			while (!queue.isEmpty()) {
+				var entry = queue.poll();
+				if (entry.position != -1) {
+					distance = entry.distance;
+					return entry.position;
+				}
+				var mid = (entry.lo + entry.hi) >>> 1;
+				if (liveCounts[mid] == 0) {
+					continue;
+				}
+				if (!removed.get(order[mid])) {
+					var position = order[mid];
+					queue.add(new Entry(distance(lngs[position],
+							lats[position]), position, 0, 0));
+				}
+				addNode(entry.lo, mid);
+				addNode(mid + 1, entry.hi);
+			}
+			distance = Double.NaN;
+			return -1;
+		}
+
+		// Returns the distance to the position last returned by next.
+		public double getDistance() {
+			return distance;
+		}
+
+		private void addNode(int lo, int hi) {
+			if (lo >= hi) {
+				return;
+			}
+			var mid = (lo + hi) >>> 1;
+			if (liveCounts[mid] == 0) {
+				return;
+			}
+			// The nearest point of the box is found by clamping, so it is
+			// never further than the positions in it, even after rounding.
+			var nearestLng = Math.max(minLngs[mid], Math.min(lng,
+					maxLngs[mid]));
+			var nearestLat = Math.max(minLats[mid], Math.min(lat,
+					maxLats[mid]));
+			queue.add(new Entry(distance(nearestLng, nearestLat), -1, lo, hi));
+		}
+
+		// The same formula as PointUtils.findDistanceBetween, so that
+		// distances are equal to the ones it gives.
+		private double distance(double lng, double lat) {
+			return Math.sqrt(Math.pow(this.lng - lng, 2)
+					+ Math.pow(this.lat - lat, 2));
+		}
+
+	}
+
+	// An entry of the queue of a search, which is either a position, or a
+	// node of the tree if position is -1. Nodes come before positions at the
+	// same distance, so that every position at a distance is queued before
+	// any of them is returned, and so can be returned in order of number.
+	private static class Entry implements Comparable<Entry> {
+
+		private final double distance;
+		private final int position;
+		private final int lo;
+		private final int hi;
+
+		private Entry(double distance, int position, int lo, int hi) {
+			this.distance = distance;
+			this.position = position;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			var comparison = Double.compare(distance, other.distance);
+			if (comparison != 0) {
+				return comparison;
+			}
+			return Integer.compare(position, other.position);
+		}
+
+	}
+
+	// Sorts the range of members into the order of the tree, splitting by
+	// longitude at even depths and by latitude at odd depths.
+	private void build(Integer[] members, int lo, int hi, int depth) {
+		if (hi - lo <= 1) {
+			return;
+		}
+		var coordinates = depth % 2 == 0 ? lngs : lats;
+		Arrays.sort(members, lo, hi, (p, q) -> Double.compare(
+				coordinates[p], coordinates[q]));
+		var mid = (lo + hi) >>> 1;
+		build(members, lo, mid, depth + 1);
+		build(members, mid + 1, hi, depth + 1);
+	}
+
+	// Sets the bounding box and live count of the node for the range, and
+	// of the nodes below it.
+	private void computeBoxes(int lo, int hi) {
+		if (lo >= hi) {
+			return;
+		}
+		var mid = (lo + hi) >>> 1;
+		computeBoxes(lo, mid);
+		computeBoxes(mid + 1, hi);
+		var position = order[mid];
+		minLngs[mid] = lngs[position];
+		maxLngs[mid] = lngs[position];
+		minLats[mid] = lats[position];
+		maxLats[mid] = lats[position];
+		liveCounts[mid] = 1;
+		if (lo < mid) {
+			addChild(mid, (lo + mid) >>> 1);
+		}
+		if (mid + 1 < hi) {
+			addChild(mid, (mid + 1 + hi) >>> 1);
+		}
+	}
+
+	// Widens the node's bounding box to hold the child's, and adds the
+	// child's live count to it.
+	private void addChild(int node, int child) {
+		minLngs[node] = Math.min(minLngs[node], minLngs[child]);
+		maxLngs[node] = Math.max(maxLngs[node], maxLngs[child]);
+		minLats[node] = Math.min(minLats[node], minLats[child]);
+		maxLats[node] = Math.max(maxLats[node], maxLats[child]);
+		liveCounts[node] += liveCounts[child];
+	}
+
+}
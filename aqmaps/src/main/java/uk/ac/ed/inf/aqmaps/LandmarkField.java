@@ -0,0 +1,630 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+// LandmarkField holds, for a few landmark points around the edge of the
+// confinement area, bounds on the shortest distance from the landmark to
+// every cell of a fine grid over the confinement area, going around the no
+// fly zones rather than through them. These give the A* search a heuristic
+// (the ALT heuristic) which knows about the no fly zones: by the triangle
+// inequality, the distance from a point to the target is at least the
+// difference of their distances from any landmark.
+// The distances are exact shortest paths around the no fly zones, found with
+// Dijkstra's algorithm on the visibility graph of the corners of the no fly
+// zones. A drone path never crosses a no fly zone, so it is never shorter
+// than the shortest path, which keeps the heuristic admissible. Each cell
+// stores a lower and an upper bound on the distance to any point in it. For
+// cells which no segment crosses these are within half the cell's diagonal
+// of the distance to its centre; for cells which a segment crosses only a
+// weaker lower bound is known.
+// The fields only depend on the geometry, so they are computed once and
+// stored on disk, keyed by ObstacleGrid's geometry hash. They are configured
+// with the system properties aqmaps.landmarks (set to true to enable them,
+// as they are disabled by default) and aqmaps.landmarks.dir.
+// A LandmarkField is immutable and so may be shared between threads.
+public class LandmarkField {
+
+	// Identifies a file holding a LandmarkField, followed by the version of
+	// the file format, which must change whenever what is computed changes.
+	private static final int FILE_MAGIC = 0x414c5446;
+	private static final int FILE_VERSION = 1;
+
+	// The side length of a cell in degrees
+	private static final double CELL_SIZE = 0.00005;
+
+	// Subtracted from every estimate so that rounding errors in the
+	// distances can never make it overestimate.
+	private static final double ROUNDING_MARGIN = 1e-12;
+
+	private final String geometryHash;
+	private final double minLng;
+	private final double minLat;
+	private final int columns;
+	private final int rows;
+	private final int landmarkCount;
+	// The bounds for landmark l and the cell with index c are held at index
+	// c * landmarkCount + l, where c = row * columns + column, so that the
+	// bounds for every landmark at a point are next to each other. Upper
+	// bounds which are not known are infinite.
+	private final double[] lowerBounds;
+	private final double[] upperBounds;
+
+	private LandmarkField(String geometryHash, double minLng, double minLat,
+			int columns, int rows, int landmarkCount, double[] lowerBounds,
+			double[] upperBounds) {
+		this.geometryHash = geometryHash;
+		this.minLng = minLng;
+		this.minLat = minLat;
+		this.columns = columns;
+		this.rows = rows;
+		this.landmarkCount = landmarkCount;
+		this.lowerBounds = lowerBounds;
+		this.upperBounds = upperBounds;
+	}
+
+	// Returns the LandmarkField for the geometry of obstacleGrid, loaded from
+	// disk if it has been computed before and otherwise computed and stored,
+	// or null if landmarks are disabled.
+	public static LandmarkField forGrid(ObstacleGrid obstacleGrid) {
+		if (!Boolean.parseBoolean(
+				System.getProperty("aqmaps.landmarks", "false"))) {
+			return null;
+		}
+		var directory = Paths.get(System.getProperty("aqmaps.landmarks.dir",
+				Paths.get(System.getProperty("user.home"), ".aqmaps",
+						"landmarks").toString()));
+		var geometryHash = obstacleGrid.getGeometryHash();
+		var file = directory.resolve(geometryHash + ".landmarks");
+		try {
+			var landmarkField = load(file);
+			if (landmarkField.geometryHash.equals(geometryHash)) {
+				PlannerMetrics.landmarkCacheHits.increment();
+				return landmarkField;
+			}
+		} catch (NoSuchFileException e) {
+			// The fields have not been computed for this geometry yet.
+		} catch (IOException e) {
+			// The file is unreadable or from an older version, so it is
+			// replaced.
+			e.printStackTrace();
+		}
+		PlannerMetrics.landmarkCacheMisses.increment();
+		var landmarkField = compute(obstacleGrid);
+		try {
+			Files.createDirectories(directory);
+			landmarkField.save(file);
+		} catch (IOException e) {
+			// Failing to store the fields is not fatal, since they can always
+			// be computed again.
+			e.printStackTrace();
+		}
+		return landmarkField;
+	}
+
+	// Computes the fields for the geometry of obstacleGrid. The landmarks are
+	// the corners and the midpoints of the sides of the confinement area.
+	public static LandmarkField compute(ObstacleGrid obstacleGrid) {
+		return new Builder(obstacleGrid).build();
+	}
+
+	// Reads a LandmarkField written by save.
+	public static LandmarkField load(Path file) throws IOException {
+		try (var input = new DataInputStream(new BufferedInputStream(
+				Files.newInputStream(file)))) {
+			if (input.readInt() != FILE_MAGIC
+					|| input.readInt() != FILE_VERSION) {
+				throw new IOException(file + " is not a LandmarkField file of "
+						+ "version " + FILE_VERSION);
+			}
+			var geometryHash = input.readUTF();
+			var minLng = input.readDouble();
+			var minLat = input.readDouble();
+			var columns = input.readInt();
+			var rows = input.readInt();
+			var landmarkCount = input.readInt();
+			var lowerBounds = new double[columns * rows * landmarkCount];
+			var upperBounds = new double[lowerBounds.length];
+			for (int i = 0; i < lowerBounds.length; i++) {
+				lowerBounds[i] = input.readDouble();
+			}
+			for (int i = 0; i < upperBounds.length; i++) {
+				upperBounds[i] = input.readDouble();
+			}
+			return new LandmarkField(geometryHash, minLng, minLat, columns,
+					rows, landmarkCount, lowerBounds, upperBounds);
+		}
+	}
+
+	// Writes the fields to the given file. They are written to a temporary
+	// file and then moved into place, so that a run reading the file never
+	// sees it partly written.
+	public void save(Path file) throws IOException {
+		var temporaryFile = Files.createTempFile(file.toAbsolutePath()
+				.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (var output = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(temporaryFile)))) {
+				output.writeInt(FILE_MAGIC);
+				output.writeInt(FILE_VERSION);
+				output.writeUTF(geometryHash);
+				output.writeDouble(minLng);
+				output.writeDouble(minLat);
+				output.writeInt(columns);
+				output.writeInt(rows);
+				output.writeInt(landmarkCount);
+				for (double bound : lowerBounds) {
+					output.writeDouble(bound);
+				}
+				for (double bound : upperBounds) {
+					output.writeDouble(bound);
+				}
+			}
+			try {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	public String getGeometryHash() {
+		return geometryHash;
+	}
+
+	// Returns the bounds on the distance from each landmark to any point
+	// within closeEnough of the target, used to estimate the distance to the
+	// target from the points of a search.
+	public Target target(double targetLng, double targetLat,
+			double closeEnough) {
+		var lowest = new double[landmarkCount];
+		var highest = new double[landmarkCount];
+		Arrays.fill(lowest, Double.POSITIVE_INFINITY);
+		Arrays.fill(highest, Double.NEGATIVE_INFINITY);
+		// Only cells in the grid are considered, since the drone can never
+		// be outside the confinement area.
+		var firstColumn = Math.max(0, column(targetLng - closeEnough));
+		var lastColumn = Math.min(columns - 1, column(targetLng + closeEnough));
+		var firstRow = Math.max(0, row(targetLat - closeEnough));
+		var lastRow = Math.min(rows - 1, row(targetLat + closeEnough));
+		for (int row = firstRow; row <= lastRow; row++) {
+			for (int column = firstColumn; column <= lastColumn; column++) {
+				// Cells which do not reach the circle of points close enough
+				// to the target are skipped.
+				var dLng = Math.max(0, Math.max(
+						minLng + column * CELL_SIZE - targetLng,
+						targetLng - minLng - (column + 1) * CELL_SIZE));
+				var dLat = Math.max(0, Math.max(
+						minLat + row * CELL_SIZE - targetLat,
+						targetLat - minLat - (row + 1) * CELL_SIZE));
+				if (dLng*dLng + dLat*dLat > closeEnough*closeEnough) {
+					continue;
+				}
+				var base = (row * columns + column) * landmarkCount;
+				for (int l = 0; l < landmarkCount; l++) {
+					lowest[l] = Math.min(lowest[l], lowerBounds[base + l]);
+					highest[l] = Math.max(highest[l], upperBounds[base + l]);
+				}
+			}
+		}
+		if (lowest.length > 0 && lowest[0] == Double.POSITIVE_INFINITY) {
+			// Nothing is known about a target outside the grid.
+			Arrays.fill(lowest, Double.NEGATIVE_INFINITY);
+			Arrays.fill(highest, Double.POSITIVE_INFINITY);
+		}
+		return new Target(lowest, highest);
+	}
+
+	// Target holds the bounds on the distance from each landmark to the
+	// points close enough to a target, as returned by LandmarkField.target.
+	public class Target {
+
+		private final double[] lowest;
+		private final double[] highest;
+
+		private Target(double[] lowest, double[] highest) {
+			this.lowest = lowest;
+			this.highest = highest;
+		}
+
+		// Returns a lower bound on the length of any path from the given
+		// position to a point close enough to the target which does not cross
+		// a no fly zone, or negative infinity if nothing is known about the
+		// position.
+		public double lowerBound(double lng, double lat) {
+			var column = column(lng);
+			var row = row(lat);
+			if (column < 0 || column >= columns || row < 0 || row >= rows) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			var base = (row * columns + column) * landmarkCount;
+			var bound = Double.NEGATIVE_INFINITY;
+			for (int l = 0; l < landmarkCount; l++) {
+				// The target is at least as far from the landmark as the
+				// position is, less the distance between them, and the other
+				// way around.
+				bound = Math.max(bound, Math.max(
+						lowest[l] - upperBounds[base + l],
+						lowerBounds[base + l] - highest[l]));
+			}
+			return bound - ROUNDING_MARGIN;
+		}
+
+	}
+
+	// Returns the column of the cell containing the given longitude, which
+	// may be outside the grid.
+	private int column(double lng) {
+		return (int) Math.floor((lng - minLng) / CELL_SIZE);
+	}
+
+	// Returns the row of the cell containing the given latitude, which may
+	// be outside the grid.
+	private int row(double lat) {
+		return (int) Math.floor((lat - minLat) / CELL_SIZE);
+	}
+
+	// Builder computes the fields for the geometry of an ObstacleGrid.
+	private static class Builder {
+
+		private final ObstacleGrid obstacleGrid;
+		private final int columns;
+		private final int rows;
+		// The distinct endpoints of the no fly line segments, which are the
+		// nodes of the visibility graph.
+		private final double[] vertexLng;
+		private final double[] vertexLat;
+		// The landmarks which lie outside every no fly zone
+		private final double[] landmarkLng;
+		private final double[] landmarkLat;
+		// vertexDistances[l][v] is the shortest distance from landmark l to
+		// vertex v.
+		private final double[][] vertexDistances;
+
+		private Builder(ObstacleGrid obstacleGrid) {
+			this.obstacleGrid = obstacleGrid;
+			columns = Math.max(1, (int) Math.ceil((obstacleGrid.getMaxLng()
+					- obstacleGrid.getMinLng()) / CELL_SIZE));
+			rows = Math.max(1, (int) Math.ceil((obstacleGrid.getMaxLat()
+					- obstacleGrid.getMinLat()) / CELL_SIZE));
+
+			var lngs = new ArrayList<Double>();
+			var lats = new ArrayList<Double>();
+			for (int i = 0; i < obstacleGrid.getSegmentCount(); i++) {
+				addVertex(lngs, lats, obstacleGrid.getSegmentLng1(i),
+						obstacleGrid.getSegmentLat1(i));
+				addVertex(lngs, lats, obstacleGrid.getSegmentLng2(i),
+						obstacleGrid.getSegmentLat2(i));
+			}
+			vertexLng = toArray(lngs);
+			vertexLat = toArray(lats);
+
+			lngs.clear();
+			lats.clear();
+			var minLng = obstacleGrid.getMinLng();
+			var minLat = obstacleGrid.getMinLat();
+			var maxLng = obstacleGrid.getMaxLng();
+			var maxLat = obstacleGrid.getMaxLat();
+			var midLng = (minLng + maxLng) / 2;
+			var midLat = (minLat + maxLat) / 2;
+			double[][] candidates = {
+					{minLng, minLat}, {midLng, minLat}, {maxLng, minLat},
+					{maxLng, midLat}, {maxLng, maxLat}, {midLng, maxLat},
+					{minLng, maxLat}, {minLng, midLat}};
+			for (double[] candidate : candidates) {
+				if (!isInsideNoFlyZone(candidate[0], candidate[1])) {
+					lngs.add(candidate[0]);
+					lats.add(candidate[1]);
+				}
+			}
+			landmarkLng = toArray(lngs);
+			landmarkLat = toArray(lats);
+
+			vertexDistances = new double[landmarkLng.length][];
+			var visibility = vertexVisibility();
+			for (int l = 0; l < landmarkLng.length; l++) {
+				vertexDistances[l] = shortestDistances(landmarkLng[l],
+						landmarkLat[l], visibility);
+			}
+		}
+
+		private LandmarkField build() {
+			var landmarkCount = landmarkLng.length;
+			var lowerBounds = new double[columns * rows * landmarkCount];
+			var upperBounds = new double[lowerBounds.length];
+			Arrays.fill(upperBounds, Double.POSITIVE_INFINITY);
+			var halfDiagonal = CELL_SIZE * Math.sqrt(2) / 2;
+			var visibleVertices = new int[vertexLng.length];
+
+			for (int row = 0; row < rows; row++) {
+				for (int column = 0; column < columns; column++) {
+					var cellMinLng = obstacleGrid.getMinLng()
+							+ column * CELL_SIZE;
+					var cellMinLat = obstacleGrid.getMinLat() + row * CELL_SIZE;
+					var cellMaxLng = cellMinLng + CELL_SIZE;
+					var cellMaxLat = cellMinLat + CELL_SIZE;
+					var centreLng = cellMinLng + CELL_SIZE / 2;
+					var centreLat = cellMinLat + CELL_SIZE / 2;
+					// Every point in a cell which no segment crosses, and
+					// which is not inside a no fly zone, can be reached in a
+					// straight line from the centre.
+					var isClear = !isInsideNoFlyZone(centreLng, centreLat)
+							&& !isCrossed(cellMinLng, cellMinLat, cellMaxLng,
+									cellMaxLat);
+					var visibleCount = 0;
+					if (isClear) {
+						for (int v = 0; v < vertexLng.length; v++) {
+							if (isVisible(centreLng, centreLat, vertexLng[v],
+									vertexLat[v])) {
+								visibleVertices[visibleCount++] = v;
+							}
+						}
+					}
+
+					var base = (row * columns + column) * landmarkCount;
+					for (int l = 0; l < landmarkCount; l++) {
+						// Whatever the shortest path to a point in the cell
+						// is, it comes straight from the landmark or from one
+						// of the vertices.
+						var lowerBound = distanceToCell(landmarkLng[l],
+								landmarkLat[l], cellMinLng, cellMinLat,
+								cellMaxLng, cellMaxLat);
+						for (int v = 0; v < vertexLng.length; v++) {
+							lowerBound = Math.min(lowerBound,
+									vertexDistances[l][v] + distanceToCell(
+											vertexLng[v], vertexLat[v],
+											cellMinLng, cellMinLat,
+											cellMaxLng, cellMaxLat));
+						}
+						if (isClear) {
+							var centreDistance = centreDistance(l, centreLng,
+									centreLat, visibleVertices, visibleCount);
+							if (centreDistance < Double.POSITIVE_INFINITY) {
+								lowerBound = Math.max(lowerBound,
+										centreDistance - halfDiagonal);
+								upperBounds[base + l] =
+										centreDistance + halfDiagonal;
+							}
+						}
+						lowerBounds[base + l] = lowerBound;
+					}
+				}
+			}
+			return new LandmarkField(obstacleGrid.getGeometryHash(),
+					obstacleGrid.getMinLng(), obstacleGrid.getMinLat(),
+					columns, rows, landmarkCount, lowerBounds, upperBounds);
+		}
+
+		// Returns the shortest distance from landmark l to the centre of a
+		// cell, given the vertices visible from the centre.
+		private double centreDistance(int l, double centreLng,
+				double centreLat, int[] visibleVertices, int visibleCount) {
+			var distance = Double.POSITIVE_INFINITY;
+			if (isVisible(landmarkLng[l], landmarkLat[l], centreLng,
+					centreLat)) {
+				distance = distance(landmarkLng[l], landmarkLat[l], centreLng,
+						centreLat);
+			}
+			for (int k = 0; k < visibleCount; k++) {
+				var v = visibleVertices[k];
+				distance = Math.min(distance, vertexDistances[l][v]
+						+ distance(vertexLng[v], vertexLat[v], centreLng,
+								centreLat));
+			}
+			return distance;
+		}
+
+		// Returns the shortest distances from the given point, which must be
+		// outside every no fly zone, to every vertex, using Dijkstra's
+		// algorithm on the visibility graph.
+		private double[] shortestDistances(double lng, double lat,
+				boolean[][] visibility) {
+			var vertexCount = vertexLng.length;
+			var distances = new double[vertexCount];
+			for (int v = 0; v < vertexCount; v++) {
+				distances[v] = isVisible(lng, lat, vertexLng[v], vertexLat[v])
+						? distance(lng, lat, vertexLng[v], vertexLat[v])
+						: Double.POSITIVE_INFINITY;
+			}
+			// The graph is small and dense, so the closest unsettled vertex
+			// is found by a linear scan rather than a heap.
+			var settled = new boolean[vertexCount];
+			for (int k = 0; k < vertexCount; k++) {
+				var closest = -1;
+				for (int v = 0; v < vertexCount; v++) {
+					if (!settled[v] && (closest == -1
+							|| distances[v] < distances[closest])) {
+						closest = v;
+					}
+				}
+				if (distances[closest] == Double.POSITIVE_INFINITY) {
+					break;
+				}
+				settled[closest] = true;
+				for (int v = 0; v < vertexCount; v++) {
+					if (!settled[v] && visibility[closest][v]) {
+						distances[v] = Math.min(distances[v],
+								distances[closest] + distance(
+										vertexLng[closest], vertexLat[closest],
+										vertexLng[v], vertexLat[v]));
+					}
+				}
+			}
+			return distances;
+		}
+
+		// Returns the visibility graph of the vertices, where two vertices are
+		// joined if the segment between them does not pass through a no fly
+		// zone.
+		private boolean[][] vertexVisibility() {
+			var vertexCount = vertexLng.length;
+			var visibility = new boolean[vertexCount][vertexCount];
+			for (int i = 0; i < obstacleGrid.getSegmentCount(); i++) {
+				var v1 = vertexIndex(obstacleGrid.getSegmentLng1(i),
+						obstacleGrid.getSegmentLat1(i));
+				var v2 = vertexIndex(obstacleGrid.getSegmentLng2(i),
+						obstacleGrid.getSegmentLat2(i));
+				visibility[v1][v2] = true;
+				visibility[v2][v1] = true;
+			}
+			for (int v1 = 0; v1 < vertexCount; v1++) {
+				for (int v2 = v1 + 1; v2 < vertexCount; v2++) {
+					if (visibility[v1][v2]) {
+						continue;
+					}
+					// A segment between two corners which touches no other
+					// segment lies either entirely inside or entirely outside
+					// the no fly zones, so its midpoint decides which.
+					var isVisible = isVisible(vertexLng[v1], vertexLat[v1],
+							vertexLng[v2], vertexLat[v2])
+							&& !isInsideNoFlyZone(
+									(vertexLng[v1] + vertexLng[v2]) / 2,
+									(vertexLat[v1] + vertexLat[v2]) / 2);
+					visibility[v1][v2] = isVisible;
+					visibility[v2][v1] = isVisible;
+				}
+			}
+			return visibility;
+		}
+
+		// Returns true if the segment between the two points intersects no
+		// no fly line segment, ignoring the segments which end at either
+		// point (so that a corner is visible from outside the no fly zone).
+		private boolean isVisible(double lng1, double lat1, double lng2,
+				double lat2) {
+			for (int i = 0; i < obstacleGrid.getSegmentCount(); i++) {
+				var segmentLng1 = obstacleGrid.getSegmentLng1(i);
+				var segmentLat1 = obstacleGrid.getSegmentLat1(i);
+				var segmentLng2 = obstacleGrid.getSegmentLng2(i);
+				var segmentLat2 = obstacleGrid.getSegmentLat2(i);
+				if (isEndpoint(lng1, lat1, i) || isEndpoint(lng2, lat2, i)) {
+					continue;
+				}
+				if (SegmentIntersection.intersects(lng1, lat1, lng2, lat2,
+						segmentLng1, segmentLat1, segmentLng2, segmentLat2)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean isEndpoint(double lng, double lat, int segment) {
+			return (lng == obstacleGrid.getSegmentLng1(segment)
+					&& lat == obstacleGrid.getSegmentLat1(segment))
+					|| (lng == obstacleGrid.getSegmentLng2(segment)
+					&& lat == obstacleGrid.getSegmentLat2(segment));
+		}
+
+		// Returns true if any no fly line segment touches the given cell.
+		private boolean isCrossed(double cellMinLng, double cellMinLat,
+				double cellMaxLng, double cellMaxLat) {
+			for (int i = 0; i < obstacleGrid.getSegmentCount(); i++) {
+				var lng1 = obstacleGrid.getSegmentLng1(i);
+				var lat1 = obstacleGrid.getSegmentLat1(i);
+				var lng2 = obstacleGrid.getSegmentLng2(i);
+				var lat2 = obstacleGrid.getSegmentLat2(i);
+				if (lng1 >= cellMinLng && lng1 <= cellMaxLng
+						&& lat1 >= cellMinLat && lat1 <= cellMaxLat) {
+					return true;
+				}
+				if (SegmentIntersection.intersects(lng1, lat1, lng2, lat2,
+						cellMinLng, cellMinLat, cellMaxLng, cellMinLat)
+						|| SegmentIntersection.intersects(lng1, lat1, lng2,
+								lat2, cellMaxLng, cellMinLat, cellMaxLng,
+								cellMaxLat)
+						|| SegmentIntersection.intersects(lng1, lat1, lng2,
+								lat2, cellMaxLng, cellMaxLat, cellMinLng,
+								cellMaxLat)
+						|| SegmentIntersection.intersects(lng1, lat1, lng2,
+								lat2, cellMinLng, cellMaxLat, cellMinLng,
+								cellMinLat)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// Returns true if the given point is inside a no fly zone, by counting
+		// the no fly line segments crossed by a ray going east from it.
+		private boolean isInsideNoFlyZone(double lng, double lat) {
+			var isInside = false;
+			for (int i = 0; i < obstacleGrid.getSegmentCount(); i++) {
+				var lng1 = obstacleGrid.getSegmentLng1(i);
+				var lat1 = obstacleGrid.getSegmentLat1(i);
+				var lng2 = obstacleGrid.getSegmentLng2(i);
+				var lat2 = obstacleGrid.getSegmentLat2(i);
+				if ((lat1 > lat) != (lat2 > lat) && lng < lng1
+						+ (lat - lat1) * (lng2 - lng1) / (lat2 - lat1)) {
+					isInside = !isInside;
+				}
+			}
+			return isInside;
+		}
+
+		private int vertexIndex(double lng, double lat) {
+			for (int v = 0; v < vertexLng.length; v++) {
+				if (vertexLng[v] == lng && vertexLat[v] == lat) {
+					return v;
+				}
+			}
+			throw new IllegalStateException("No vertex at " + lng + ", " + lat);
+		}
+
+		private static void addVertex(ArrayList<Double> lngs,
+				ArrayList<Double> lats, double lng, double lat) {
+			for (int v = 0; v < lngs.size(); v++) {
+				if (lngs.get(v) == lng && lats.get(v) == lat) {
+					return;
+				}
+			}
+			lngs.add(lng);
+			lats.add(lat);
+		}
+
+		private static double[] toArray(ArrayList<Double> values) {
+			var array = new double[values.size()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = values.get(i);
+			}
+			return array;
+		}
+
+		// Returns the distance from the given point to the nearest point of
+		// the given cell.
+		private static double distanceToCell(double lng, double lat,
+				double cellMinLng, double cellMinLat, double cellMaxLng,
+				double cellMaxLat) {
+			var dLng = Math.max(0, Math.max(cellMinLng - lng,
+					lng - cellMaxLng));
+			var dLat = Math.max(0, Math.max(cellMinLat - lat,
+					lat - cellMaxLat));
+			return Math.sqrt(dLng*dLng + dLat*dLat);
+		}
+
+		private static double distance(double lng1, double lat1, double lng2,
+				double lat2) {
+			var dLng = lng1 - lng2;
+			var dLat = lat1 - lat2;
+			return Math.sqrt(dLng*dLng + dLat*dLat);
+		}
+
+	}
+
+}
@@ -0,0 +1,235 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import com.mapbox.geojson.Point;
+
+
+// LegCostMatrix holds the true cost, as a number of moves, of flying each leg
+// between a set of positions (the launch point and the sensors), found by
+// running AStarUtils' pathfinding function between every ordered pair of
+// positions. Unlike the straight line distance, this takes the no fly zones
+// into account.
+// The searches are independent of each other, so they are split across the
+// cores with a fork-join pool. The moves of each leg are kept so that when a
+// tour is flown the legs do not need to be searched for again, and if the
+// LegStore is enabled legs are looked up there before being searched for, so
+// that legs searched for by earlier runs are not searched for again either.
+// The searches can be given a deadline, so that a matrix is ready in time even
+// if some of its legs are not: legs whose search is cancelled are left
+// unreachable, which leaves positions out of the tours built from the matrix
+// rather than making them wait for the searches.
+public class LegCostMatrix {
+
+	// The move count of a leg for which no path could be found.
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	// Pairs of positions searched by a single task without splitting further
+	private static final int PAIRS_PER_TASK = 4;
+
+	private final List<Point> positions;
+	// closeEnough[i] is how close the drone must get to position i for the
+	// leg to position i to be complete.
+	private final double[] closeEnough;
+	private final ObstacleGrid obstacleGrid;
+	private final Deadline deadline;
+	// The store legs are looked up in, or null if it is disabled
+	private final LegStore legStore;
+	// moves[i][j] holds the angles of the moves of the leg from position i to
+	// position j, or null if there is no such leg.
+	private final int[][][] moves;
+
+	// True if any leg's search was cancelled by the deadline
+	private volatile boolean isIncomplete;
+
+	private LegCostMatrix(List<Point> positions, double[] closeEnough,
+			ObstacleGrid obstacleGrid, Deadline deadline) {
+		this.positions = positions;
+		this.closeEnough = closeEnough;
+		this.obstacleGrid = obstacleGrid;
+		this.deadline = deadline;
+		legStore = obstacleGrid == null ? null
+				: LegStore.forGrid(obstacleGrid);
+		moves = new int[positions.size()][positions.size()][];
+	}
+
+	// Computes the matrix for the given positions on the common fork-join
+	// pool.
+	public static LegCostMatrix compute(List<Point> positions,
+			double[] closeEnough, ObstacleGrid obstacleGrid) {
+		return compute(positions, closeEnough, obstacleGrid,
+				ForkJoinPool.commonPool(), Deadline.none());
+	}
+
+	// Computes the matrix for the given positions on the common fork-join
+	// pool, leaving out the legs not found before the deadline passes.
+	public static LegCostMatrix compute(List<Point> positions,
+			double[] closeEnough, ObstacleGrid obstacleGrid,
+			Deadline deadline) {
+		return compute(positions, closeEnough, obstacleGrid,
+				ForkJoinPool.commonPool(), deadline);
+	}
+
+	// Computes the matrix for the given positions on the given fork-join
+	// pool. closeEnough must hold a value for each position.
+	public static LegCostMatrix compute(List<Point> positions,
+			double[] closeEnough, ObstacleGrid obstacleGrid,
+			ForkJoinPool pool, Deadline deadline) {
+		if (closeEnough.length != positions.size()) {
+			throw new IllegalArgumentException("Expected " + positions.size()
+					+ " closeEnough values but got " + closeEnough.length);
+		}
+		var matrix = new LegCostMatrix(positions, closeEnough, obstacleGrid,
+				deadline);
+		var size = positions.size();
+		pool.invoke(matrix.new SearchTask(0, size * size));
+		if (matrix.legStore != null) {
+			matrix.legStore.flush();
+		}
+		return matrix;
+	}
+
+	// Returns a matrix whose leg from position i to position j has
+	// moveCounts[i][j] moves, or is unreachable if that is UNREACHABLE, for
+	// testing the tour optimisers. Its positions are all the same point and
+	// it has no obstacle grid, so its paths cannot be replayed.
+	static LegCostMatrix fromMoveCounts(int[][] moveCounts) {
+		var size = moveCounts.length;
+		var matrix = new LegCostMatrix(Collections.nCopies(size,
+				Point.fromLngLat(0, 0)), new double[size], null,
+				Deadline.none());
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				if (i != j && moveCounts[i][j] != UNREACHABLE) {
+					matrix.moves[i][j] = new int[moveCounts[i][j]];
+				}
+			}
+		}
+		return matrix;
+	}
+
+	public int size() {
+		return positions.size();
+	}
+
+	public Point getPosition(int i) {
+		return positions.get(i);
+	}
+
+	// Returns how close the drone must get to position i for the leg to it
+	// to be complete.
+	public double getCloseEnough(int i) {
+		return closeEnough[i];
+	}
+
+	// Returns true if the deadline passed before every leg was found, so
+	// that some legs are unreachable only because they were not searched
+	// for.
+	public boolean isIncomplete() {
+		return isIncomplete;
+	}
+
+	// Returns the number of moves in the leg from position i to position j,
+	// or UNREACHABLE if no path was found.
+	public int getMoveCount(int i, int j) {
+		return moves[i][j] == null ? UNREACHABLE : moves[i][j].length;
+	}
+
+	// Returns the path of the leg from position i to position j, replayed
+	// from start, which is where the drone actually is. This will usually be
+	// near position i rather than exactly on it, so the replayed path is
+	// checked: if any of its moves is illegal or it does not get close enough
+	// to position j, null is returned and the caller should search for a new
+	// path. The replayed path is cut short if it gets close enough to
+	// position j before its last move.
+	public List<Point> replayPath(int i, int j, Point start) {
+		return replayPath(i, j, start, obstacleGrid);
+	}
+
+	// Returns the same path as replayPath(i, j, start), but checks its moves
+	// against the given obstacleGrid rather than the one the legs were found
+	// in, for when the no fly zones have changed since.
+	public List<Point> replayPath(int i, int j, Point start,
+			ObstacleGrid obstacleGrid) {
+		var legMoves = moves[i][j];
+		if (legMoves == null) {
+			return null;
+		}
+		var target = positions.get(j);
+		var lng = start.longitude();
+		var lat = start.latitude();
+		for (int k = 0; k < legMoves.length; k++) {
+			if (!obstacleGrid.isLegalMove(lng, lat, legMoves[k])) {
+				return null;
+			}
+			lng += PointUtils.moveLng(legMoves[k]);
+			lat += PointUtils.moveLat(legMoves[k]);
+			var dLng = lng - target.longitude();
+			var dLat = lat - target.latitude();
+			if (Math.sqrt(dLng*dLng + dLat*dLat) < closeEnough[j]) {
+				return AStarUtils.replayMoves(start, 
+						Arrays.copyOf(legMoves, k + 1));
+			}
+		}
+		return null;
+	}
+
+	// Returns the moves of the leg from start to within closeEnough of
+	// target, looked up in the legStore if it is enabled, or null if there
+	// is no path or the deadline passes before one is found. Legs in the
+	// legStore are still looked up once the deadline has passed.
+	private int[] findBestMoves(Point start, Point target,
+			double closeEnough) {
+		try {
+			if (legStore != null) {
+				return legStore.findBestMoves(start, target, obstacleGrid,
+						closeEnough, deadline);
+			}
+			return AStarUtils.findBestMoves(start, target, obstacleGrid,
+					closeEnough, deadline);
+		} catch (CancellationException e) {
+			isIncomplete = true;
+			return null;
+		}
+	}
+
+	// Searches for the legs numbered from to to - 1, where leg number k is
+	// the leg from position k / size() to position k % size(). Legs from a
+	// position to itself are not searched.
+	private class SearchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		private SearchTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > PAIRS_PER_TASK) {
+				var middle = (from + to) >>> 1;
+				invokeAll(new SearchTask(from, middle),
+						new SearchTask(middle, to));
+				return;
+			}
+			for (int k = from; k < to; k++) {
+				var i = k / size();
+				var j = k % size();
+				if (i != j) {
+					moves[i][j] = findBestMoves(positions.get(i),
+							positions.get(j), closeEnough[j]);
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,419 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import com.mapbox.geojson.Point;
+
+
+// LegStore keeps the moves of every leg searched for on disk, so that later
+// runs over the same no fly zones look legs up rather than searching for
+// them again. The sensors sit on the same what3words squares from day to
+// day, so once a few days have been planned most legs of a new day have been
+// searched before.
+// A leg is keyed by the exact coordinates of its start and target and by how
+// close to the target it must end. Sensor positions are fixed by their
+// what3words location, and the launch point, which has no location, is keyed
+// the same way. Each geometry has its own file, named by ObstacleGrid's
+// geometry hash and the kind of search, so a change to the no fly zones (or
+// to the search, which may find a different path of the same length) starts
+// a new file rather than reusing legs which may no longer be legal.
+// The file is a log of records appended while holding a lock on a separate
+// lock file beside it, so runs in other processes may read and add to it at
+// the same time. The lock file is never replaced, so the lock still excludes
+// other processes while the file is rewritten and moved into place. Within a
+// process a LegStore is shared by every thread: lookups go to a concurrent
+// map, and legs found by searching are queued and appended together by
+// flush. When a file holds damaged or repeated records it is rewritten
+// without them.
+// The store is configured with the system properties aqmaps.legs (set to
+// true to enable it, as it is disabled by default) and aqmaps.legs.dir.
+public class LegStore {
+
+	// Identifies a file holding a LegStore, followed by the version of the
+	// file format, which must change whenever what is stored changes.
+	private static final int FILE_MAGIC = 0x414c4547;
+	private static final int FILE_VERSION = 1;
+
+	// The move count stored for a leg with no path
+	private static final int UNREACHABLE = -1;
+	private static final int[] NO_PATH = new int[0];
+
+	// The open stores, keyed by file, so that every planner in the process
+	// shares one in memory copy of each file.
+	private static final Map<Path, LegStore> openStores =
+			new ConcurrentHashMap<>();
+
+	private final Path file;
+	private final Path lockFile;
+	private final String geometryHash;
+	// Moves of the legs known to the store, or NO_PATH for a leg with no
+	// path (ConcurrentHashMap does not hold null values).
+	private final Map<Key, int[]> legs = new ConcurrentHashMap<>();
+	// Records of legs which have been searched for but not yet appended to
+	// the file
+	private final ConcurrentLinkedQueue<ByteBuffer> pendingRecords =
+			new ConcurrentLinkedQueue<>();
+
+	private LegStore(Path file, String geometryHash) {
+		this.file = file;
+		lockFile = file.resolveSibling(file.getFileName() + ".lock");
+		this.geometryHash = geometryHash;
+	}
+
+	// Returns the LegStore for the geometry of obstacleGrid and the kind of
+	// search in use, loaded from disk the first time it is asked for, or null
+	// if the store is disabled.
+	public static LegStore forGrid(ObstacleGrid obstacleGrid) {
+		if (!Boolean.parseBoolean(System.getProperty("aqmaps.legs", "false"))) {
+			return null;
+		}
+		var directory = Paths.get(System.getProperty("aqmaps.legs.dir",
+				Paths.get(System.getProperty("user.home"), ".aqmaps",
+						"legs").toString()));
+		var geometryHash = obstacleGrid.getGeometryHash();
+		var file = directory.resolve(geometryHash + "-"
+				+ searchName(obstacleGrid) + ".legs");
+		return openStores.computeIfAbsent(file, key -> {
+			var legStore = new LegStore(file, geometryHash);
+			legStore.load(obstacleGrid);
+			return legStore;
+		});
+	}
+
+	// Returns the angles of the moves of the leg from start to within
+	// closeEnough of target, or null if there is no path. The leg is looked
+	// up in the store, and if it is not there it is searched for with
+	// AStarUtils.findBestMoves and added to the store. Legs added are only
+	// written to disk by flush. A search cancelled by the deadline throws a
+	// CancellationException and adds nothing to the store.
+	public int[] findBestMoves(Point start, Point target,
+			ObstacleGrid obstacleGrid, double closeEnough, Deadline deadline) {
+		var key = new Key(start.longitude(), start.latitude(),
+				target.longitude(), target.latitude(), closeEnough);
+		var moves = legs.get(key);
+		if (moves != null) {
+			PlannerMetrics.legStoreHits.increment();
+			return moves == NO_PATH ? null : moves.clone();
+		}
+		PlannerMetrics.legStoreMisses.increment();
+		var found = AStarUtils.findBestMoves(start, target, obstacleGrid,
+				closeEnough, deadline);
+		legs.put(key, found == null ? NO_PATH : found.clone());
+		pendingRecords.add(encode(key, found));
+		return found;
+	}
+
+	// Appends the legs added since the last flush to the file. Failing to
+	// write them is not fatal, since they can always be searched for again.
+	public synchronized void flush() {
+		if (pendingRecords.isEmpty()) {
+			return;
+		}
+		var records = new ArrayList<ByteBuffer>();
+		for (var record = pendingRecords.poll(); record != null;
+				record = pendingRecords.poll()) {
+			records.add(record);
+		}
+		try {
+			var lock = lock();
+			try (var channel = FileChannel.open(file,
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND)) {
+				if (channel.size() == 0) {
+					writeFully(channel, header());
+				}
+				writeFully(channel, concatenate(records));
+			} finally {
+				unlock(lock);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public int size() {
+		return legs.size();
+	}
+
+	// Reads the legs in the file into the store. Legs whose moves are no
+	// longer legal or do not reach their target are left out. If the file
+	// is damaged, or holds legs more than once, it is rewritten holding each
+	// good leg once. The lock is held throughout, so that no records are
+	// appended part way through being read or between reading and
+	// rewriting the file.
+	private void load(ObstacleGrid obstacleGrid) {
+		try {
+			var lock = lock();
+			try {
+				load(ByteBuffer.wrap(Files.readAllBytes(file)),
+						obstacleGrid);
+			} catch (NoSuchFileException e) {
+				// No legs have been stored for this geometry yet.
+			} finally {
+				unlock(lock);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void load(ByteBuffer contents, ObstacleGrid obstacleGrid)
+			throws IOException {
+		var recordCount = 0;
+		var isDamaged = false;
+		try {
+			if (contents.getInt() != FILE_MAGIC
+					|| contents.getInt() != FILE_VERSION
+					|| !geometryHash.equals(readString(contents))) {
+				throw new IOException(file + " is not a LegStore file of "
+						+ "version " + FILE_VERSION + " for this geometry");
+			}
+			while (contents.hasRemaining()) {
+				var record = readRecord(contents);
+				if (record == null) {
+					throw new IOException(file + " holds a damaged record");
+				}
+				var key = decodeKey(record);
+				var moves = decodeMoves(record);
+				if (moves == null || isValid(key, moves, obstacleGrid)) {
+					legs.put(key, moves == null ? NO_PATH : moves);
+				}
+				recordCount++;
+			}
+		} catch (IOException | BufferUnderflowException e) {
+			// Any records after the damage are lost, since the start of the
+			// next record cannot be found.
+			e.printStackTrace();
+			isDamaged = true;
+		}
+		if (isDamaged || recordCount > legs.size()) {
+			rewrite();
+		}
+	}
+
+	// Replaces the file with one holding every leg in the store once. The
+	// lock must be held.
+	private synchronized void rewrite() throws IOException {
+		var records = new ArrayList<ByteBuffer>();
+		records.add(header());
+		legs.forEach((key, moves) -> records.add(
+				encode(key, moves == NO_PATH ? null : moves)));
+		var temporaryFile = Files.createTempFile(file.toAbsolutePath()
+				.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (var channel = FileChannel.open(temporaryFile,
+					StandardOpenOption.WRITE)) {
+				writeFully(channel, concatenate(records));
+			}
+			try {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	// Takes the lock on the lock file, waiting for any other process
+	// holding it. It must be released with unlock.
+	private FileLock lock() throws IOException {
+		Files.createDirectories(lockFile.toAbsolutePath().getParent());
+		var channel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+		try {
+			return channel.lock();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void unlock(FileLock lock) throws IOException {
+		try {
+			lock.release();
+		} finally {
+			lock.channel().close();
+		}
+	}
+
+	// Returns true if the moves can be flown from the start of the leg and
+	// end within closeEnough of its target.
+	private static boolean isValid(Key key, int[] moves,
+			ObstacleGrid obstacleGrid) {
+		var lng = key.startLng;
+		var lat = key.startLat;
+		for (int angle : moves) {
+			if (!obstacleGrid.isLegalMove(lng, lat, angle)) {
+				return false;
+			}
+			lng += PointUtils.moveLng(angle);
+			lat += PointUtils.moveLat(angle);
+		}
+		var dLng = lng - key.targetLng;
+		var dLat = lat - key.targetLat;
+		return Math.sqrt(dLng*dLng + dLat*dLat) < key.closeEnough;
+	}
+
+	// Returns the name of the kind of search used for the grid, since
+	// different searches may find different paths for the same leg.
+	private static String searchName(ObstacleGrid obstacleGrid) {
+		var name = AStarUtils.isBidirectional() ? "bidirectional" : "astar";
+		return obstacleGrid.getLandmarkField() == null ? name : name + "-alt";
+	}
+
+	private ByteBuffer header() {
+		var hash = geometryHash.getBytes(StandardCharsets.US_ASCII);
+		var header = ByteBuffer.allocate(4 + 4 + 2 + hash.length);
+		header.putInt(FILE_MAGIC).putInt(FILE_VERSION);
+		header.putShort((short) hash.length).put(hash);
+		return header.flip();
+	}
+
+	// A record is the length of its body, the body and the CRC-32 of the
+	// body. The body is the key followed by the number of moves, or
+	// UNREACHABLE, and the angle / 10 of each move.
+	private static ByteBuffer encode(Key key, int[] moves) {
+		var moveCount = moves == null ? 0 : moves.length;
+		var body = ByteBuffer.allocate(5 * 8 + 2 + moveCount);
+		body.putDouble(key.startLng).putDouble(key.startLat);
+		body.putDouble(key.targetLng).putDouble(key.targetLat);
+		body.putDouble(key.closeEnough);
+		body.putShort((short) (moves == null ? UNREACHABLE : moveCount));
+		for (int i = 0; i < moveCount; i++) {
+			body.put((byte) (moves[i] / 10));
+		}
+		var crc = new CRC32();
+		crc.update(body.array());
+		var record = ByteBuffer.allocate(4 + body.capacity() + 4);
+		record.putInt(body.capacity()).put(body.array());
+		record.putInt((int) crc.getValue());
+		return record.flip();
+	}
+
+	// Reads the body of the next record, or returns null if its checksum
+	// does not match.
+	private static ByteBuffer readRecord(ByteBuffer contents) {
+		var length = contents.getInt();
+		if (length < 5 * 8 + 2 || length > contents.remaining() - 4) {
+			return null;
+		}
+		var body = new byte[length];
+		contents.get(body);
+		var crc = new CRC32();
+		crc.update(body);
+		if (contents.getInt() != (int) crc.getValue()) {
+			return null;
+		}
+		return ByteBuffer.wrap(body);
+	}
+
+	private static Key decodeKey(ByteBuffer record) {
+		return new Key(record.getDouble(), record.getDouble(),
+				record.getDouble(), record.getDouble(), record.getDouble());
+	}
+
+	// Returns the moves of a record whose key has been read, or null if the
+	// leg has no path.
+	private static int[] decodeMoves(ByteBuffer record) {
+		var moveCount = record.getShort();
+		if (moveCount == UNREACHABLE) {
+			return null;
+		}
+		var moves = new int[moveCount];
+		for (int i = 0; i < moveCount; i++) {
+			moves[i] = record.get() * 10;
+		}
+		return moves;
+	}
+
+	private static String readString(ByteBuffer contents) {
+		var bytes = new byte[contents.getShort()];
+		contents.get(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private static ByteBuffer concatenate(List<ByteBuffer> buffers) {
+		var size = 0;
+		for (var buffer : buffers) {
+			size += buffer.remaining();
+		}
+		var result = ByteBuffer.allocate(size);
+		for (var buffer : buffers) {
+			result.put(buffer);
+		}
+		return result.flip();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	// Identifies a leg by its start, its target and how close to the target
+	// it must end. Coordinates are compared exactly, since a leg's moves are
+	// only known to be legal from exactly where they were searched from.
+	private static class Key {
+
+		private final double startLng;
+		private final double startLat;
+		private final double targetLng;
+		private final double targetLat;
+		private final double closeEnough;
+
+		private Key(double startLng, double startLat, double targetLng,
+				double targetLat, double closeEnough) {
+			this.startLng = startLng;
+			this.startLat = startLat;
+			this.targetLng = targetLng;
+			this.targetLat = targetLat;
+			this.closeEnough = closeEnough;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			var key = (Key) other;
+			return Double.compare(startLng, key.startLng) == 0
+					&& Double.compare(startLat, key.startLat) == 0
+					&& Double.compare(targetLng, key.targetLng) == 0
+					&& Double.compare(targetLat, key.targetLat) == 0
+					&& Double.compare(closeEnough, key.closeEnough) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			var hash = Double.hashCode(startLng);
+			hash = 31 * hash + Double.hashCode(startLat);
+			hash = 31 * hash + Double.hashCode(targetLng);
+			hash = 31 * hash + Double.hashCode(targetLat);
+			return 31 * hash + Double.hashCode(closeEnough);
+		}
+
+	}
+
+}
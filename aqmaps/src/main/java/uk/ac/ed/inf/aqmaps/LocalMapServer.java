@@ -0,0 +1,96 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+// LocalMapServer is a stand in for the map web server: it serves the files of
+// a MapDataSource (usually a FileDataSource holding a copy of the web
+// server's files) over HTTP with the same paths as the web server. It can be
+// used to run or load test the drone controller without the web server.
+// Requests are handled by a bounded pool of threads.
+public class LocalMapServer {
+
+	private static final int HANDLER_THREADS = 16;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final MapDataSource dataSource;
+
+	// Creates a server for the data source on the given port of localhost,
+	// which is not started until start is called. If the port is 0 a free
+	// port is chosen - see getPort.
+	public LocalMapServer(MapDataSource dataSource, int port) 
+			throws IOException {
+		this.dataSource = dataSource;
+		server = HttpServer.create(
+				new InetSocketAddress("localhost", port), 0);
+		executor = Executors.newFixedThreadPool(HANDLER_THREADS);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	// Stops the server, waiting at most the given number of seconds for
+	// requests being handled to finish.
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		executor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				sendResponse(exchange, 405, "Method not allowed");
+				return;
+			}
+			var path = exchange.getRequestURI().getPath().substring(1);
+			try {
+				sendResponse(exchange, 200, dataSource.getFile(path));
+			} catch (NoSuchFileException e) {
+				sendResponse(exchange, 404, "Not found: " + path);
+			} catch (IOException e) {
+				e.printStackTrace();
+				sendResponse(exchange, 500, "Could not read " + path);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void sendResponse(HttpExchange exchange, int statusCode,
+			String body) throws IOException {
+		var bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(statusCode, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	// Takes the directory or zip file holding the web server's files and the
+	// port to serve them on, and serves them until the process is stopped.
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			throw new IllegalArgumentException("Usage: serve DIRECTORY-OR-ZIP "
+					+ "PORT");
+		}
+		var dataSource = MapDataSource.forLocation(args[0]);
+		var localMapServer = new LocalMapServer(dataSource, 
+				Integer.parseInt(args[1]));
+		localMapServer.start();
+		System.out.println("Serving " + args[0] + " on port " 
+				+ localMapServer.getPort());
+	}
+
+}
@@ -0,0 +1,255 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import com.mapbox.geojson.Point;
+import com.mapbox.geojson.Polygon;
+
+
+// MapBundle holds the sensors of every date in a range, with their positions
+// already resolved from their what3words locations, and the no fly zones in
+// one binary file. A bundle is built once from another MapDataSource by
+// write, and is then memory mapped by open, so that loading a date reads a
+// few hundred bytes from the mapping rather than fetching and parsing JSON
+// files.
+//
+// The file is laid out as follows, with all numbers big endian:
+//   header:    magic, version (ints), first date (long, epoch day),
+//              number of dates (int), offset of the no fly zones (int),
+//              offset of each date's sensors (int each, -1 if the date has
+//              no map)
+//   no fly:    number of zones (int), then for each zone the number of
+//              points (int) and each point's lng and lat (doubles)
+//   sensors:   number of sensors (int), then for each sensor the length of
+//              its location (short), its location (UTF-8), and its lng, lat,
+//              battery and reading (doubles)
+// A MapBundle only reads from its mapping, so it is safe to use from several
+// threads at once.
+public class MapBundle implements MapDataSource {
+
+	public static final String FILE_EXTENSION = ".bundle";
+
+	private static final int FILE_MAGIC = 0x41514d42;
+	private static final int FILE_VERSION = 1;
+	// Size of the header before the offsets of the dates
+	private static final int HEADER_SIZE = 24;
+
+	private final Path file;
+	private final ByteBuffer buffer;
+	private final LocalDate firstDate;
+	private final int dateCount;
+
+	private MapBundle(Path file, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != FILE_MAGIC
+				|| buffer.getInt(4) != FILE_VERSION) {
+			throw new IOException(file + " is not a map bundle of version "
+					+ FILE_VERSION);
+		}
+		firstDate = LocalDate.ofEpochDay(buffer.getLong(8));
+		dateCount = buffer.getInt(16);
+	}
+
+	// Maps the bundle in the given file. The file is closed once mapped; the
+	// mapping stays valid until the bundle is garbage collected.
+	public static MapBundle open(Path file) throws IOException {
+		try (var channel = FileChannel.open(file)) {
+			return new MapBundle(file, channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	public LocalDate getFirstDate() {
+		return firstDate;
+	}
+
+	public LocalDate getLastDate() {
+		return firstDate.plusDays(dateCount - 1);
+	}
+
+	// A bundle holds no files, only the sensors and no fly zones read from
+	// them.
+	@Override
+	public String getFile(String path) throws IOException {
+		throw new NoSuchFileException(path, null, 
+				"map bundles do not hold files");
+	}
+
+	// The time taken is recorded as fetch time, since the sensors' positions
+	// are read along with them.
+	@Override
+	public List<Sensor> getSensorList(String year, String month, String day)
+			throws IOException {
+		var startNanos = System.nanoTime();
+		var date = LocalDate.of(Integer.parseInt(year), 
+				Integer.parseInt(month), Integer.parseInt(day));
+		var index = date.toEpochDay() - firstDate.toEpochDay();
+		var offset = index < 0 || index >= dateCount ? -1 
+				: buffer.getInt(HEADER_SIZE + 4 * (int) index);
+		if (offset < 0) {
+			throw new NoSuchFileException(file.toString(), null, 
+					"no map for " + date);
+		}
+		
+		var sensorCount = buffer.getInt(offset);
+		offset += 4;
+		var sensorList = new ArrayList<Sensor>(sensorCount);
+		for (int i = 0; i < sensorCount; i++) {
+			var locationLength = buffer.getShort(offset);
+			offset += 2;
+			var locationBytes = new byte[locationLength];
+			for (int j = 0; j < locationLength; j++) {
+				locationBytes[j] = buffer.get(offset + j);
+			}
+			offset += locationLength;
+			var location = new String(locationBytes, StandardCharsets.UTF_8);
+			var position = Point.fromLngLat(buffer.getDouble(offset), 
+					buffer.getDouble(offset + 8));
+			sensorList.add(new Sensor(location, buffer.getDouble(offset + 16),
+					buffer.getDouble(offset + 24), position));
+			offset += 32;
+		}
+		PlannerMetrics.fetchTime.recordSince(startNanos);
+		return sensorList;
+	}
+
+	@Override
+	public List<Polygon> getNoFlyZones() {
+		var offset = buffer.getInt(20);
+		var zoneCount = buffer.getInt(offset);
+		offset += 4;
+		var noFlyZones = new ArrayList<Polygon>(zoneCount);
+		for (int i = 0; i < zoneCount; i++) {
+			var pointCount = buffer.getInt(offset);
+			offset += 4;
+			var points = new ArrayList<Point>(pointCount);
+			for (int j = 0; j < pointCount; j++) {
+				points.add(Point.fromLngLat(buffer.getDouble(offset), 
+						buffer.getDouble(offset + 8)));
+				offset += 16;
+			}
+			noFlyZones.add(Polygon.fromLngLats(List.of(points)));
+		}
+		return noFlyZones;
+	}
+
+	// Writes a bundle of the sensors of every date from firstDate to lastDate
+	// (inclusive) and the no fly zones, read from the dataSource, to the
+	// given file. Dates the dataSource has no map for are left out of the
+	// bundle. The bundle is written to a temporary file and then moved into
+	// place, so that a run reading the file never sees it partly written.
+	public static void write(MapDataSource dataSource, LocalDate firstDate,
+			LocalDate lastDate, Path file) throws IOException {
+		var dateCount = (int) (lastDate.toEpochDay() 
+				- firstDate.toEpochDay() + 1);
+		if (dateCount < 1) {
+			throw new IllegalArgumentException("The last date " + lastDate 
+					+ " is before the first date " + firstDate);
+		}
+		
+		// The no fly zones and sensors are written after the header, so their
+		// offsets start from the end of the header.
+		var bodyStart = HEADER_SIZE + 4 * dateCount;
+		var body = new ByteArrayOutputStream();
+		var bodyOutput = new DataOutputStream(body);
+		
+		var noFlyZones = dataSource.getNoFlyZones();
+		bodyOutput.writeInt(noFlyZones.size());
+		for (Polygon noFlyZone : noFlyZones) {
+			var points = noFlyZone.coordinates().get(0);
+			bodyOutput.writeInt(points.size());
+			for (Point point : points) {
+				bodyOutput.writeDouble(point.longitude());
+				bodyOutput.writeDouble(point.latitude());
+			}
+		}
+		
+		var dateOffsets = new int[dateCount];
+		for (int i = 0; i < dateCount; i++) {
+			var date = firstDate.plusDays(i);
+			List<Sensor> sensorList;
+			try {
+				sensorList = dataSource.getSensorList(
+						String.format("%04d", date.getYear()),
+						String.format("%02d", date.getMonthValue()),
+						String.format("%02d", date.getDayOfMonth()));
+			} catch (IOException e) {
+				System.out.println(date + ": No map - " + e.getMessage());
+				dateOffsets[i] = -1;
+				continue;
+			}
+			dateOffsets[i] = bodyStart + bodyOutput.size();
+			bodyOutput.writeInt(sensorList.size());
+			for (Sensor sensor : sensorList) {
+				var locationBytes = 
+						sensor.getLocation().getBytes(StandardCharsets.UTF_8);
+				bodyOutput.writeShort(locationBytes.length);
+				bodyOutput.write(locationBytes);
+				bodyOutput.writeDouble(sensor.getPosition().longitude());
+				bodyOutput.writeDouble(sensor.getPosition().latitude());
+				bodyOutput.writeDouble(sensor.getBattery());
+				bodyOutput.writeDouble(sensor.getReading());
+			}
+		}
+		
+		var temporaryFile = Files.createTempFile(file.toAbsolutePath()
+				.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			try (var output = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(temporaryFile)))) {
+				output.writeInt(FILE_MAGIC);
+				output.writeInt(FILE_VERSION);
+				output.writeLong(firstDate.toEpochDay());
+				output.writeInt(dateCount);
+				output.writeInt(bodyStart);
+				for (int dateOffset : dateOffsets) {
+					output.writeInt(dateOffset);
+				}
+				body.writeTo(output);
+			}
+			try {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	// Takes the location of the maps to convert (as for DroneController),
+	// the first and last dates (as YYYY-MM-DD) and the file to write the
+	// bundle to.
+	public static void main(String[] args) {
+		if (args.length < 4) {
+			throw new IllegalArgumentException("Usage: bundle "
+					+ "PORT-OR-LOCATION FIRST-DATE LAST-DATE OUTPUT-FILE");
+		}
+		try {
+			var dataSource = MapDataSource.forLocation(args[0]);
+			write(dataSource, LocalDate.parse(args[1]), 
+					LocalDate.parse(args[2]), Paths.get(args[3]));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
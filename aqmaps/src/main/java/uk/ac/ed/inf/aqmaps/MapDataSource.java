@@ -0,0 +1,127 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import com.mapbox.geojson.FeatureCollection;
+import com.mapbox.geojson.Polygon;
+
+
+// MapDataSource gives the files of the map web server by their path on the
+// server, such as "buildings/no-fly-zones.geojson". The files may be fetched
+// from the web server (HttpDataSource), read straight from a copy of the web
+// server's files in a directory or zip file (FileDataSource), or held in
+// memory (InMemoryDataSource). Reading the files directly avoids the cost of
+// an HTTP request for every file when the web server's files are at hand.
+// The sensors and no fly zones are parsed from the files by default, but a
+// data source holding them in another form, such as a MapBundle, can give
+// them directly.
+// Implementations must be safe to use from several threads at once.
+public interface MapDataSource {
+
+	// Returns the contents of the file at the given path, or throws an
+	// IOException if it could not be read.
+	String getFile(String path) throws IOException;
+
+	// Returns a future which completes with the contents of the file at the
+	// given path, or completes exceptionally if it could not be read. By
+	// default the file is read before this returns.
+	default CompletableFuture<String> getFileAsync(String path) {
+		try {
+			return CompletableFuture.completedFuture(getFile(path));
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	// Returns a reader of the contents of the file at the given path, or
+	// throws an IOException if it could not be opened. By default this reads
+	// the whole file with getFile, but data sources which can read a file
+	// as it is parsed should do so.
+	default Reader openFile(String path) throws IOException {
+		return new StringReader(getFile(path));
+	}
+
+	// Returns the sensors of the map for the given date, with their positions
+	// set from the what3words details of their locations. By default this
+	// parses the map's JSON file as it is read, with SensorJsonReader, and
+	// requests the details of every sensor together rather than one after
+	// another.
+	default List<Sensor> getSensorList(String year, String month, String day)
+			throws IOException {
+		var path = "maps/" + year + "/" + month + "/" + day 
+				+ "/air-quality-data.json";
+		
+		// The fetch time includes parsing, since the file is parsed as it is
+		// read.
+		var fetchStartNanos = System.nanoTime();
+		List<Sensor> sensorList;
+		try (var reader = openFile(path)) {
+			sensorList = SensorJsonReader.readSensorList(reader);
+		} catch (IllegalStateException | NumberFormatException e) {
+			throw new IOException("Malformed air quality data at " + path, e);
+		}
+		PlannerMetrics.fetchTime.recordSince(fetchStartNanos);
+		
+		var geocodeStartNanos = System.nanoTime();
+		var detailsRequests = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < sensorList.size(); i++) {
+			var sensor = sensorList.get(i);
+			detailsRequests.add(getFileAsync(sensor.getDetailsPath())
+					.thenAccept(sensor::setPosition));
+		}
+		CompletableFuture.allOf(detailsRequests.toArray(
+				new CompletableFuture<?>[0])).join();
+		PlannerMetrics.geocodeTime.recordSince(geocodeStartNanos);
+		
+		return sensorList;
+	}
+
+	// Returns the no fly zones, by default by parsing the geojson file the
+	// web server serves them in.
+	default List<Polygon> getNoFlyZones() throws IOException {
+		return parseNoFlyZones(getFile("buildings/no-fly-zones.geojson"));
+	}
+
+	// Returns the no fly zones in the given geojson string.
+	static List<Polygon> parseNoFlyZones(String noFlyZonesJson) {
+		var noFlyZoneFeatures = 
+				FeatureCollection.fromJson(noFlyZonesJson).features();
+		
+		var noFlyZones = new ArrayList<Polygon>();
+		for (int i = 0; i < noFlyZoneFeatures.size(); i++) {
+			noFlyZones.add((Polygon)noFlyZoneFeatures.get(i).geometry());
+		}
+		return noFlyZones;
+	}
+
+	// Returns the data source for the given location, which is either the
+	// port of the web server on localhost, the base URL of a web server, or
+	// the path of a directory or zip file holding the web server's files, or
+	// the path of a MapBundle (a file ending in .bundle).
+	static MapDataSource forLocation(String location) 
+			throws IOException {
+		if (location.matches("[0-9]+")) {
+			return new HttpDataSource(Integer.parseInt(location));
+		}
+		if (location.startsWith("http://") 
+				|| location.startsWith("https://")) {
+			return new HttpDataSource(location);
+		}
+		var path = Paths.get(location);
+		if (!Files.exists(path)) {
+			throw new IllegalArgumentException("No web server port, URL, "
+					+ "directory, zip file or bundle: " + location);
+		}
+		if (location.endsWith(MapBundle.FILE_EXTENSION)) {
+			return MapBundle.open(path);
+		}
+		return new FileDataSource(path);
+	}
+
+}
@@ -0,0 +1,231 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+
+// MapServerClient is used to access the web server and return files as
+// strings. Every request goes through a single shared HttpClient, so
+// connections to the web server are reused rather than a new client being
+// built for every file. Requests can be sent asynchronously, so that the many
+// small files needed for a date (such as the what3words details of every
+// sensor) are fetched together rather than one after another. The number of
+// requests in flight at once is bounded, and every request has a timeout.
+// If the ResponseCache is enabled, files are looked up in it before the web
+// server is accessed, and stored there once fetched. Otherwise a file can
+// also be read as it arrives, with open, rather than held as a string.
+public class MapServerClient {
+
+	// Maximum number of requests in flight at once
+	private static final int MAX_CONCURRENT_REQUESTS = 16;
+
+	private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+	private static final HttpClient client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(CONNECT_TIMEOUT)
+			.build();
+
+	private static final Semaphore requestPermits =
+			new Semaphore(MAX_CONCURRENT_REQUESTS);
+
+	// The cache of fetched files, or null if caching is disabled
+	private static final ResponseCache cache =
+			ResponseCache.fromSystemProperties();
+
+	// Returns the body of the file at the given URL, or an empty string if it
+	// could not be fetched.
+	public static String getResponseBody(String urlString) {
+
+		var responseString = "";
+
+		try {
+			responseString = fetch(urlString);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return responseString;
+	}
+
+	// Returns the body of the file at the given URL, or throws an IOException
+	// if it could not be fetched.
+	public static String fetch(String urlString) throws IOException {
+		var cachedString = getCached(urlString);
+		if (cachedString != null) {
+			return cachedString;
+		}
+		try {
+			requestPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to fetch "
+					+ urlString);
+		}
+		String responseString;
+		try {
+			var response = client.send(buildRequest(urlString),
+					BodyHandlers.ofString());
+			responseString = checkStatus(urlString, response.statusCode(),
+					response.body());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted fetching "
+					+ urlString);
+		} finally {
+			requestPermits.release();
+		}
+		putCached(urlString, responseString);
+		return responseString;
+	}
+
+	// Returns a reader of the body of the file at the given URL, or throws an
+	// IOException if it could not be fetched. Unless the cache is enabled,
+	// which stores files as strings, the body is read from the connection as
+	// the reader is read, and the request counts as in flight until the
+	// reader is closed.
+	public static Reader open(String urlString) throws IOException {
+		if (cache != null) {
+			return new StringReader(fetch(urlString));
+		}
+		try {
+			requestPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting to fetch "
+					+ urlString);
+		}
+		try {
+			var response = client.send(buildRequest(urlString),
+					BodyHandlers.ofInputStream());
+			var body = response.body();
+			if (response.statusCode() != 200) {
+				body.close();
+				checkStatus(urlString, response.statusCode(), null);
+			}
+			return new FilterReader(new InputStreamReader(body,
+					StandardCharsets.UTF_8)) {
+				private boolean closed;
+
+				@Override
+				public void close() throws IOException {
+					if (!closed) {
+						closed = true;
+						try {
+							super.close();
+						} finally {
+							requestPermits.release();
+						}
+					}
+				}
+			};
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			requestPermits.release();
+			throw new InterruptedIOException("Interrupted fetching "
+					+ urlString);
+		} catch (IOException | RuntimeException e) {
+			requestPermits.release();
+			throw e;
+		}
+	}
+
+	// Sends a request for the file at the given URL without waiting for the
+	// response, and returns a future which completes with the body of the
+	// file, or completes exceptionally if it could not be fetched. If the
+	// maximum number of requests are already in flight, this waits for one of
+	// them to finish before sending the request.
+	public static CompletableFuture<String> getResponseBodyAsync(
+			String urlString) {
+		try {
+			var cachedString = getCached(urlString);
+			if (cachedString != null) {
+				return CompletableFuture.completedFuture(cachedString);
+			}
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		try {
+			requestPermits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return CompletableFuture.failedFuture(e);
+		}
+		try {
+			return client.sendAsync(buildRequest(urlString),
+					BodyHandlers.ofString())
+					.whenComplete((response, e) -> requestPermits.release())
+					.thenApply(response -> {
+						try {
+							var body = checkStatus(urlString,
+									response.statusCode(), response.body());
+							putCached(urlString, body);
+							return body;
+						} catch (IOException e) {
+							throw new IllegalStateException(e.getMessage(), e);
+						}
+					});
+		} catch (RuntimeException e) {
+			requestPermits.release();
+			throw e;
+		}
+	}
+
+	// Returns the cached body of the file at the given URL, or null if it is
+	// not cached and should be fetched. Throws an IOException if it is not
+	// cached and the cache is in offline mode.
+	private static String getCached(String urlString) throws IOException {
+		if (cache == null) {
+			return null;
+		}
+		var cachedString = cache.get(urlString);
+		if (cachedString != null) {
+			PlannerMetrics.responseCacheHits.increment();
+		} else {
+			PlannerMetrics.responseCacheMisses.increment();
+		}
+		if (cachedString == null && cache.isOffline()) {
+			throw new IOException(urlString + " is not cached and the cache "
+					+ "is in offline mode");
+		}
+		return cachedString;
+	}
+
+	private static void putCached(String urlString, String body) {
+		if (cache != null) {
+			cache.put(urlString, body);
+		}
+	}
+
+	private static HttpRequest buildRequest(String urlString) {
+		return HttpRequest.newBuilder()
+				.uri(URI.create(urlString))
+				.timeout(REQUEST_TIMEOUT)
+				.build();
+	}
+
+	// Returns the body of a response, or throws an IOException if the web
+	// server did not return the file.
+	private static String checkStatus(String urlString, int statusCode,
+			String body) throws IOException {
+		if (statusCode != 200) {
+			throw new IOException("Web server returned status " + statusCode
+					+ " for " + urlString);
+		}
+		return body;
+	}
+
+}
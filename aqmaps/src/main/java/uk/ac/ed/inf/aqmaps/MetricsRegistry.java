@@ -0,0 +1,324 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+
+// MetricsRegistry holds named metrics of a run and exports them as a JSON
+// summary or in the Prometheus text format. There are four kinds of metric:
+// counters, maximums (the largest value recorded), timers (the number of
+// times and the total time taken) and histograms (the number of values
+// recorded at most each of a fixed set of bounds).
+// Recording a value only adds to a LongAdder or LongAccumulator, so metrics
+// may be recorded from many threads at once without contention, and
+// callers on hot paths should still total values locally and record them
+// once, e.g. once per search rather than once per node.
+public class MetricsRegistry {
+
+	// Metrics by name, in the order they were registered
+	private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+	public synchronized Counter counter(String name, String help) {
+		return register(new Counter(name, help));
+	}
+
+	public synchronized Maximum maximum(String name, String help) {
+		return register(new Maximum(name, help));
+	}
+
+	// Registers a timer, whose name should end in _seconds since it is
+	// exported in seconds.
+	public synchronized Timer timer(String name, String help) {
+		return register(new Timer(name, help));
+	}
+
+	// Registers a histogram with the given upper bounds, in increasing order.
+	public synchronized Histogram histogram(String name, String help, 
+			long... bounds) {
+		return register(new Histogram(name, help, bounds));
+	}
+
+	// Returns the metrics as a JSON object with a member for each metric.
+	public synchronized String toJson() {
+		var json = new JsonObject();
+		for (Metric metric : metrics.values()) {
+			metric.addJson(json);
+		}
+		return new GsonBuilder().setPrettyPrinting().create().toJson(json);
+	}
+
+	// Returns the metrics in the Prometheus text exposition format.
+	public synchronized String toPrometheus() {
+		var text = new StringBuilder();
+		for (Metric metric : metrics.values()) {
+			text.append("# HELP ").append(metric.getName()).append(' ')
+					.append(metric.getHelp()).append('\n');
+			text.append("# TYPE ").append(metric.getName()).append(' ')
+					.append(metric.getType()).append('\n');
+			metric.appendPrometheus(text);
+		}
+		return text.toString();
+	}
+
+	// Writes the metrics to the given file, as JSON if its name ends in
+	// .json and in the Prometheus text format otherwise. The file is written
+	// to a temporary file and then moved into place, so that a collector
+	// reading the file never sees it partly written.
+	public void write(Path file) throws IOException {
+		var text = file.getFileName().toString().endsWith(".json") 
+				? toJson() : toPrometheus();
+		var temporaryFile = Files.createTempFile(file.toAbsolutePath()
+				.getParent(), file.getFileName().toString(), ".tmp");
+		try {
+			Files.write(temporaryFile, text.getBytes(StandardCharsets.UTF_8));
+			try {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporaryFile, file,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+
+	private <T extends Metric> T register(T metric) {
+		if (metrics.containsKey(metric.getName())) {
+			throw new IllegalArgumentException("A metric named " 
+					+ metric.getName() + " is already registered");
+		}
+		metrics.put(metric.getName(), metric);
+		return metric;
+	}
+
+	public abstract static class Metric {
+
+		private final String name;
+		private final String help;
+
+		private Metric(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getHelp() {
+			return help;
+		}
+
+		abstract String getType();
+
+		abstract void addJson(JsonObject json);
+
+		abstract void appendPrometheus(StringBuilder text);
+
+	}
+
+	public static class Counter extends Metric {
+
+		private final LongAdder count = new LongAdder();
+
+		private Counter(String name, String help) {
+			super(name, help);
+		}
+
+		public void increment() {
+			count.increment();
+		}
+
+		public void add(long amount) {
+			count.add(amount);
+		}
+
+		public long get() {
+			return count.sum();
+		}
+
+		@Override
+		String getType() {
+			return "counter";
+		}
+
+		@Override
+		void addJson(JsonObject json) {
+			json.addProperty(getName(), get());
+		}
+
+		@Override
+		void appendPrometheus(StringBuilder text) {
+			text.append(getName()).append(' ').append(get()).append('\n');
+		}
+
+	}
+
+	public static class Maximum extends Metric {
+
+		private final LongAccumulator maximum = 
+				new LongAccumulator(Math::max, 0);
+
+		private Maximum(String name, String help) {
+			super(name, help);
+		}
+
+		public void record(long value) {
+			maximum.accumulate(value);
+		}
+
+		public long get() {
+			return maximum.get();
+		}
+
+		@Override
+		String getType() {
+			return "gauge";
+		}
+
+		@Override
+		void addJson(JsonObject json) {
+			json.addProperty(getName(), get());
+		}
+
+		@Override
+		void appendPrometheus(StringBuilder text) {
+			text.append(getName()).append(' ').append(get()).append('\n');
+		}
+
+	}
+
+	public static class Timer extends Metric {
+
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+
+		private Timer(String name, String help) {
+			super(name, help);
+		}
+
+		// Records a time taken, in nanoseconds.
+		public void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+		}
+
+		// Records the time since startNanos, a value of System.nanoTime.
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getTotalSeconds() {
+			return totalNanos.sum() / 1e9;
+		}
+
+		@Override
+		String getType() {
+			return "summary";
+		}
+
+		@Override
+		void addJson(JsonObject json) {
+			var timer = new JsonObject();
+			timer.addProperty("count", getCount());
+			timer.addProperty("sum", getTotalSeconds());
+			json.add(getName(), timer);
+		}
+
+		@Override
+		void appendPrometheus(StringBuilder text) {
+			text.append(getName()).append("_count ").append(getCount())
+					.append('\n');
+			text.append(getName()).append("_sum ").append(getTotalSeconds())
+					.append('\n');
+		}
+
+	}
+
+	public static class Histogram extends Metric {
+
+		private final long[] bounds;
+		// bucketCounts[i] counts the values at most bounds[i] and greater
+		// than any smaller bound, and the last bucket counts the values
+		// greater than every bound.
+		private final LongAdder[] bucketCounts;
+		private final LongAdder sum = new LongAdder();
+
+		private Histogram(String name, String help, long[] bounds) {
+			super(name, help);
+			this.bounds = bounds.clone();
+			bucketCounts = new LongAdder[bounds.length + 1];
+			for (int i = 0; i < bucketCounts.length; i++) {
+				bucketCounts[i] = new LongAdder();
+			}
+		}
+
+		public void record(long value) {
+			var bucket = 0;
+			while (bucket < bounds.length && value > bounds[bucket]) {
+				bucket++;
+			}
+			bucketCounts[bucket].increment();
+			sum.add(value);
+		}
+
+		@Override
+		String getType() {
+			return "histogram";
+		}
+
+		@Override
+		void addJson(JsonObject json) {
+			var histogram = new JsonObject();
+			var buckets = new JsonObject();
+			var count = 0L;
+			for (int i = 0; i < bucketCounts.length; i++) {
+				count += bucketCounts[i].sum();
+				buckets.addProperty(bucketName(i), count);
+			}
+			histogram.addProperty("count", count);
+			histogram.addProperty("sum", sum.sum());
+			histogram.add("buckets", buckets);
+			json.add(getName(), histogram);
+		}
+
+		// Buckets are exported cumulatively, as Prometheus expects.
+		@Override
+		void appendPrometheus(StringBuilder text) {
+			var count = 0L;
+			for (int i = 0; i < bucketCounts.length; i++) {
+				count += bucketCounts[i].sum();
+				text.append(getName()).append("_bucket{le=\"")
+						.append(bucketName(i)).append("\"} ").append(count)
+						.append('\n');
+			}
+			text.append(getName()).append("_sum ").append(sum.sum())
+					.append('\n');
+			text.append(getName()).append("_count ").append(count)
+					.append('\n');
+		}
+
+		private String bucketName(int bucket) {
+			return bucket < bounds.length ? Long.toString(bounds[bucket]) 
+					: "+Inf";
+		}
+
+	}
+
+}
@@ -0,0 +1,47 @@
+package uk.ac.ed.inf.aqmaps;
+
+
+// A MoveKernel tests a batch of drone moves from one position against a no
+// fly segment. ObstacleGrid runs it for each segment near a position it is
+// asked about, so every move from the position is tested against the same
+// segment at once.
+// ScalarMoveKernel tests the moves one at a time. VectorMoveKernel, which is
+// only built by the java17 Maven profile, tests them in SIMD lanes with the
+// Vector API. The kernel is chosen with the system property aqmaps.kernel
+// (scalar, the default, or vector); the vector kernel also needs the JVM to
+// be started with --add-modules jdk.incubator.vector. Both kernels give the
+// same masks as SegmentIntersection.intersects.
+public interface MoveKernel {
+
+	// Returns the mask of the moves in candidateMoves from (lng, lat) which
+	// intersect with the segment from (lng1, lat1) to (lng2, lat2). Bit i of
+	// a mask stands for the move at angle i*10.
+	long illegalMoveMask(double lng, double lat, double lng1, double lat1,
+			double lng2, double lat2, long candidateMoves);
+
+	// Returns the kernel selected by aqmaps.kernel, falling back to the
+	// scalar kernel if the vector kernel is selected but cannot be loaded.
+	static MoveKernel fromSystemProperties() {
+		var name = System.getProperty("aqmaps.kernel", "scalar");
+		switch (name) {
+		case "scalar":
+			return new ScalarMoveKernel();
+		case "vector":
+			try {
+				// The class is looked up by name since it is not compiled
+				// unless the java17 profile is active.
+				return (MoveKernel) Class.forName(
+						"uk.ac.ed.inf.aqmaps.VectorMoveKernel")
+						.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				System.out.println("The vector move kernel is not available ("
+						+ e + ") - using the scalar kernel");
+				return new ScalarMoveKernel();
+			}
+		default:
+			throw new IllegalArgumentException("Unknown move kernel " + name
+					+ " - expected scalar or vector");
+		}
+	}
+
+}
@@ -0,0 +1,371 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import com.mapbox.geojson.LineString;
+import com.mapbox.geojson.Point;
+
+
+// ObstacleGrid is a uniform grid index over the line segments of the no fly
+// zones, used to decide which moves the drone is allowed to make. A move only
+// needs to be tested against the segments in the cells it passes through
+// rather than against every segment. The confinement area is a rectangle, so
+// it is not indexed; instead a move is only legal if it ends strictly inside
+// the rectangle.
+// An ObstacleGrid may also carry a LandmarkField for the same geometry, which
+// the A* search uses for a better heuristic.
+// An ObstacleGrid is immutable once built and so may be shared between
+// threads.
+public class ObstacleGrid {
+
+	// The side length of a cell in degrees. This is the length of a move, so
+	// the moves from a point only cover a few cells.
+	private static final double CELL_SIZE = 0.0003;
+
+	// Tests the moves from a position against a segment - see MoveKernel
+	private static final MoveKernel moveKernel =
+			MoveKernel.fromSystemProperties();
+
+	// Bounds of the confinement area
+	private final double minLng;
+	private final double minLat;
+	private final double maxLng;
+	private final double maxLat;
+
+	// Endpoints of the segments, held as separate arrays of coordinates so
+	// that testing a move against them allocates nothing.
+	private final double[] segmentLng1;
+	private final double[] segmentLat1;
+	private final double[] segmentLng2;
+	private final double[] segmentLat2;
+	// Bounding boxes of the segments
+	private final double[] segmentMinLng;
+	private final double[] segmentMinLat;
+	private final double[] segmentMaxLng;
+	private final double[] segmentMaxLat;
+
+	private final int columns;
+	private final int rows;
+	// The segments which overlap the cell with index c are
+	// cellSegments[cellStart[c]] to cellSegments[cellStart[c+1] - 1], where
+	// c = row * columns + column.
+	private final int[] cellStart;
+	private final int[] cellSegments;
+
+	// The landmark distance fields for this geometry, or null if there are
+	// none.
+	private final LandmarkField landmarkField;
+
+	// Builds the grid from the segments which the drone should never cross
+	// and the rectangular confinement area, given as a closed LineString.
+	public ObstacleGrid(List<LineSegment> noFlyLineSegments,
+			LineString confinementArea) {
+		var minLng = Double.POSITIVE_INFINITY;
+		var minLat = Double.POSITIVE_INFINITY;
+		var maxLng = Double.NEGATIVE_INFINITY;
+		var maxLat = Double.NEGATIVE_INFINITY;
+		for (Point point : confinementArea.coordinates()) {
+			minLng = Math.min(minLng, point.longitude());
+			minLat = Math.min(minLat, point.latitude());
+			maxLng = Math.max(maxLng, point.longitude());
+			maxLat = Math.max(maxLat, point.latitude());
+		}
+		this.minLng = minLng;
+		this.minLat = minLat;
+		this.maxLng = maxLng;
+		this.maxLat = maxLat;
+
+		var segmentCount = noFlyLineSegments.size();
+		segmentLng1 = new double[segmentCount];
+		segmentLat1 = new double[segmentCount];
+		segmentLng2 = new double[segmentCount];
+		segmentLat2 = new double[segmentCount];
+		segmentMinLng = new double[segmentCount];
+		segmentMinLat = new double[segmentCount];
+		segmentMaxLng = new double[segmentCount];
+		segmentMaxLat = new double[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			var segment = noFlyLineSegments.get(i);
+			segmentLng1[i] = segment.getLng1();
+			segmentLat1[i] = segment.getLat1();
+			segmentLng2[i] = segment.getLng2();
+			segmentLat2[i] = segment.getLat2();
+			segmentMinLng[i] = Math.min(segmentLng1[i], segmentLng2[i]);
+			segmentMinLat[i] = Math.min(segmentLat1[i], segmentLat2[i]);
+			segmentMaxLng[i] = Math.max(segmentLng1[i], segmentLng2[i]);
+			segmentMaxLat[i] = Math.max(segmentLat1[i], segmentLat2[i]);
+		}
+
+		columns = Math.max(1, (int) Math.ceil((maxLng - minLng) / CELL_SIZE));
+		rows = Math.max(1, (int) Math.ceil((maxLat - minLat) / CELL_SIZE));
+
+		// Count the segments overlapping each cell, then fill in the cells.
+		// Segments are assigned by bounding box, which may place a segment in
+		// a few cells it does not actually cross but never misses one.
+		var cellCounts = new int[columns * rows + 1];
+		for (int i = 0; i < segmentCount; i++) {
+			for (int row = row(segmentMinLat[i]);
+					row <= row(segmentMaxLat[i]); row++) {
+				for (int column = column(segmentMinLng[i]);
+						column <= column(segmentMaxLng[i]); column++) {
+					cellCounts[row * columns + column]++;
+				}
+			}
+		}
+		cellStart = new int[columns * rows + 1];
+		for (int c = 0; c < columns * rows; c++) {
+			cellStart[c+1] = cellStart[c] + cellCounts[c];
+		}
+		cellSegments = new int[cellStart[columns * rows]];
+		var nextFree = new int[columns * rows];
+		for (int i = 0; i < segmentCount; i++) {
+			for (int row = row(segmentMinLat[i]);
+					row <= row(segmentMaxLat[i]); row++) {
+				for (int column = column(segmentMinLng[i]);
+						column <= column(segmentMaxLng[i]); column++) {
+					var c = row * columns + column;
+					cellSegments[cellStart[c] + nextFree[c]++] = i;
+				}
+			}
+		}
+		landmarkField = null;
+	}
+
+	// Copies obstacleGrid, sharing its arrays since neither grid changes
+	// them, but with the given landmarkField.
+	private ObstacleGrid(ObstacleGrid obstacleGrid,
+			LandmarkField landmarkField) {
+		minLng = obstacleGrid.minLng;
+		minLat = obstacleGrid.minLat;
+		maxLng = obstacleGrid.maxLng;
+		maxLat = obstacleGrid.maxLat;
+		segmentLng1 = obstacleGrid.segmentLng1;
+		segmentLat1 = obstacleGrid.segmentLat1;
+		segmentLng2 = obstacleGrid.segmentLng2;
+		segmentLat2 = obstacleGrid.segmentLat2;
+		segmentMinLng = obstacleGrid.segmentMinLng;
+		segmentMinLat = obstacleGrid.segmentMinLat;
+		segmentMaxLng = obstacleGrid.segmentMaxLng;
+		segmentMaxLat = obstacleGrid.segmentMaxLat;
+		columns = obstacleGrid.columns;
+		rows = obstacleGrid.rows;
+		cellStart = obstacleGrid.cellStart;
+		cellSegments = obstacleGrid.cellSegments;
+		this.landmarkField = landmarkField;
+	}
+
+	// Returns a grid for the same geometry which carries the given
+	// landmarkField, which must have been computed for this geometry.
+	public ObstacleGrid withLandmarkField(LandmarkField landmarkField) {
+		if (landmarkField != null && !landmarkField.getGeometryHash()
+				.equals(getGeometryHash())) {
+			throw new IllegalArgumentException("The LandmarkField was "
+					+ "computed for a different geometry");
+		}
+		return new ObstacleGrid(this, landmarkField);
+	}
+
+	// Returns the landmark distance fields for this geometry, or null if
+	// there are none.
+	public LandmarkField getLandmarkField() {
+		return landmarkField;
+	}
+
+	public double getMinLng() {
+		return minLng;
+	}
+
+	public double getMinLat() {
+		return minLat;
+	}
+
+	public double getMaxLng() {
+		return maxLng;
+	}
+
+	public double getMaxLat() {
+		return maxLat;
+	}
+
+	public int getSegmentCount() {
+		return segmentLng1.length;
+	}
+
+	public double getSegmentLng1(int segment) {
+		return segmentLng1[segment];
+	}
+
+	public double getSegmentLat1(int segment) {
+		return segmentLat1[segment];
+	}
+
+	public double getSegmentLng2(int segment) {
+		return segmentLng2[segment];
+	}
+
+	public double getSegmentLat2(int segment) {
+		return segmentLat2[segment];
+	}
+
+	// Returns a hash identifying the geometry (the confinement area and the
+	// no fly line segments), as a hexadecimal string, so that data computed
+	// from the geometry can be stored and reused by later runs.
+	public String getGeometryHash() {
+		var buffer = ByteBuffer.allocate(8 * (4 + 4 * getSegmentCount()));
+		buffer.putDouble(minLng).putDouble(minLat);
+		buffer.putDouble(maxLng).putDouble(maxLat);
+		for (int i = 0; i < getSegmentCount(); i++) {
+			buffer.putDouble(segmentLng1[i]).putDouble(segmentLat1[i]);
+			buffer.putDouble(segmentLng2[i]).putDouble(segmentLat2[i]);
+		}
+		try {
+			var digest = MessageDigest.getInstance("SHA-256")
+					.digest(buffer.array());
+			var hash = new StringBuilder();
+			for (byte b : digest) {
+				hash.append(String.format("%02x", b));
+			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Returns true if the given position lies strictly inside the
+	// confinement area.
+	public boolean isInsideConfinementArea(double lng, double lat) {
+		return lng > minLng && lng < maxLng && lat > minLat && lat < maxLat;
+	}
+
+	// Returns a mask of the moves which can be made from the given position
+	// such that the move ends inside the confinement area and does not
+	// intersect with any of the no fly line segments. Bit i of the mask is set
+	// if the move at angle i*10 is legal.
+	public long legalMoveMask(double lng, double lat) {
+		return legalMoveMask(lng, lat, null);
+	}
+
+	// Returns the same mask as legalMoveMask, counting the moves tested
+	// against no fly segments in the search's state, if it is not null.
+	public long legalMoveMask(double lng, double lat, SearchState state) {
+		var candidateMoves = 0L;
+		for (int i = 0; i < 36; i++) {
+			if (isInsideConfinementArea(lng + PointUtils.moveLng(i*10),
+					lat + PointUtils.moveLat(i*10))) {
+				candidateMoves |= 1L << i;
+			}
+		}
+		return removeIntersectingMoves(lng, lat, candidateMoves, state);
+	}
+
+	// Returns true if the move at the given angle from the given position
+	// ends inside the confinement area and does not intersect with any of the
+	// no fly line segments.
+	public boolean isLegalMove(double lng, double lat, int angle) {
+		if (!isInsideConfinementArea(lng + PointUtils.moveLng(angle),
+				lat + PointUtils.moveLat(angle))) {
+			return false;
+		}
+		return removeIntersectingMoves(lng, lat, 1L << (angle / 10), 
+				null) != 0;
+	}
+
+	// Returns candidateMoves, a mask of moves from the given position, with
+	// the moves which legalMoveMask would not allow removed.
+	public long removeIllegalMoves(double lng, double lat,
+			long candidateMoves) {
+		for (long rest = candidateMoves; rest != 0; rest &= rest - 1) {
+			var i = Long.numberOfTrailingZeros(rest);
+			if (!isInsideConfinementArea(lng + PointUtils.moveLng(i*10),
+					lat + PointUtils.moveLat(i*10))) {
+				candidateMoves &= ~(1L << i);
+			}
+		}
+		return removeIntersectingMoves(lng, lat, candidateMoves, null);
+	}
+
+	// Returns a mask of the moves in candidateMoves from the given position
+	// which intersect with the segment from (lng1, lat1) to (lng2, lat2),
+	// whether or not it is one of the no fly line segments, as legalMoveMask
+	// would test them.
+	public static long intersectingMoveMask(double lng, double lat,
+			double lng1, double lat1, double lng2, double lat2,
+			long candidateMoves) {
+		return moveKernel.illegalMoveMask(lng, lat, lng1, lat1, lng2, lat2,
+				candidateMoves);
+	}
+
+	// Returns candidateMoves, a mask of moves from the given position, with
+	// the moves which intersect with a no fly line segment removed. The
+	// number of moves tested is counted in state, if it is not null.
+	private long removeIntersectingMoves(double lng, double lat,
+			long candidateMoves, SearchState state) {
+		var legalMoves = candidateMoves;
+		var intersectionTests = 0;
+
+		// Every move from the position lies within a square of side 0.0006
+		// degrees centred on it, so only segments in the cells overlapping
+		// that square need to be tested.
+		var queryMinLng = lng - 0.0003;
+		var queryMinLat = lat - 0.0003;
+		var queryMaxLng = lng + 0.0003;
+		var queryMaxLat = lat + 0.0003;
+		for (int row = row(queryMinLat); row <= row(queryMaxLat); row++) {
+			for (int column = column(queryMinLng);
+					column <= column(queryMaxLng); column++) {
+				var c = row * columns + column;
+				for (int k = cellStart[c]; k < cellStart[c+1]; k++) {
+					var i = cellSegments[k];
+					if (segmentMaxLng[i] < queryMinLng ||
+							segmentMinLng[i] > queryMaxLng ||
+							segmentMaxLat[i] < queryMinLat ||
+							segmentMinLat[i] > queryMaxLat) {
+						continue;
+					}
+					// A segment may be in several of the cells being
+					// searched, so it is only tested in the cell containing
+					// the corner of the overlap of its bounding box with the
+					// query square.
+					if (row(Math.max(segmentMinLat[i], queryMinLat)) != row ||
+							column(Math.max(segmentMinLng[i], queryMinLng))
+							!= column) {
+						continue;
+					}
+					intersectionTests += Long.bitCount(legalMoves);
+					legalMoves &= ~illegalMoveMask(lng, lat, i, legalMoves);
+				}
+			}
+		}
+		if (state != null) {
+			state.countIntersectionTests(intersectionTests);
+		}
+		return legalMoves;
+	}
+
+	// Returns the mask of the moves in candidateMoves from the given position
+	// which intersect with the segment numbered segment.
+	private long illegalMoveMask(double lng, double lat, int segment,
+			long candidateMoves) {
+		return moveKernel.illegalMoveMask(lng, lat, segmentLng1[segment],
+				segmentLat1[segment], segmentLng2[segment],
+				segmentLat2[segment], candidateMoves);
+	}
+
+	// Returns the column of the cell containing the given longitude, clamped
+	// to the grid.
+	private int column(double lng) {
+		var column = (int) Math.floor((lng - minLng) / CELL_SIZE);
+		return Math.min(columns - 1, Math.max(0, column));
+	}
+
+	// Returns the row of the cell containing the given latitude, clamped to
+	// the grid.
+	private int row(double lat) {
+		var row = (int) Math.floor((lat - minLat) / CELL_SIZE);
+		return Math.min(rows - 1, Math.max(0, row));
+	}
+
+}
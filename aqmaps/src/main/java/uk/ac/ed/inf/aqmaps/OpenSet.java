@@ -0,0 +1,167 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.Arrays;
+
+
+// OpenSet is the set of nodes to be expanded by an A* search, held as an
+// indexed binary heap of node numbers (see SearchState). Each node appears in
+// the heap at most once and its position in the heap is recorded, so that
+// when a cheaper path to a node is found its fScore can be decreased in place
+// instead of adding a duplicate entry.
+// Nodes are ordered by fScore, then by heuristic score, so that among nodes
+// which look equally good the one closest to the target is expanded first,
+// and finally by node number so that the order is always deterministic.
+public class OpenSet {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// The heap, stored as an array in the usual way.
+	private int[] heapNodes = new int[INITIAL_CAPACITY];
+	private double[] heapF = new double[INITIAL_CAPACITY];
+	private double[] heapH = new double[INITIAL_CAPACITY];
+	private int size;
+	// heapPositions[node] is the position of node in the heap, or -1 if it is
+	// not in the heap.
+	private int[] heapPositions = new int[INITIAL_CAPACITY];
+	private int peakSize;
+
+	// Empties the set for a new search.
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			heapPositions[heapNodes[i]] = -1;
+		}
+		size = 0;
+		peakSize = 0;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// Returns the largest size the set has reached since it was last cleared.
+	public int getPeakSize() {
+		return peakSize;
+	}
+
+	// Must be called for every node when it is added to the SearchState,
+	// before it is offered to the set.
+	public void registerNode(int node) {
+		if (node >= heapPositions.length) {
+			var capacity = Math.max(node + 1, heapPositions.length * 2);
+			var oldCapacity = heapPositions.length;
+			heapPositions = Arrays.copyOf(heapPositions, capacity);
+			Arrays.fill(heapPositions, oldCapacity, capacity, -1);
+		}
+		heapPositions[node] = -1;
+	}
+
+	// Adds node to the set with the given fScore and heuristic score, or if
+	// it is already in the set, updates its scores. Callers only offer a node
+	// again once a cheaper path to it has been found, so its position only
+	// ever needs to move towards the top of the heap.
+	public void offer(int node, double f, double h) {
+		var position = heapPositions[node];
+		if (position == -1) {
+			if (size == heapNodes.length) {
+				var capacity = size * 2;
+				heapNodes = Arrays.copyOf(heapNodes, capacity);
+				heapF = Arrays.copyOf(heapF, capacity);
+				heapH = Arrays.copyOf(heapH, capacity);
+			}
+			position = size++;
+			peakSize = Math.max(peakSize, size);
+		}
+		heapNodes[position] = node;
+		heapF[position] = f;
+		heapH[position] = h;
+		heapPositions[node] = position;
+		siftUp(position);
+	}
+
+	// Returns the lowest fScore in the set, which must not be empty.
+	public double peekF() {
+		if (size == 0) {
+			throw new IllegalStateException("Cannot peek an empty OpenSet");
+		}
+		return heapF[0];
+	}
+
+	// Removes and returns the node with the lowest fScore.
+	public int poll() {
+		if (size == 0) {
+			throw new IllegalStateException("Cannot poll an empty OpenSet");
+		}
+		var top = heapNodes[0];
+		heapPositions[top] = -1;
+		size--;
+		if (size > 0) {
+			move(size, 0);
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int position) {
+		while (position > 0) {
+			var parent = (position - 1) / 2;
+			if (!isBefore(position, parent)) {
+				break;
+			}
+			swap(position, parent);
+			position = parent;
+		}
+	}
+
+	private void siftDown(int position) {
+		while (true) {
+			var child = 2 * position + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && isBefore(child + 1, child)) {
+				child++;
+			}
+			if (!isBefore(child, position)) {
+				break;
+			}
+			swap(position, child);
+			position = child;
+		}
+	}
+
+	// Returns true if the entry at position1 should be expanded before the
+	// entry at position2.
+	private boolean isBefore(int position1, int position2) {
+		if (heapF[position1] != heapF[position2]) {
+			return heapF[position1] < heapF[position2];
+		}
+		if (heapH[position1] != heapH[position2]) {
+			return heapH[position1] < heapH[position2];
+		}
+		return heapNodes[position1] < heapNodes[position2];
+	}
+
+	// Moves the entry at position from to position to, overwriting it.
+	private void move(int from, int to) {
+		heapNodes[to] = heapNodes[from];
+		heapF[to] = heapF[from];
+		heapH[to] = heapH[from];
+		heapPositions[heapNodes[to]] = to;
+	}
+
+	private void swap(int position1, int position2) {
+		var node = heapNodes[position1];
+		var f = heapF[position1];
+		var h = heapH[position1];
+		move(position2, position1);
+		heapNodes[position2] = node;
+		heapF[position2] = f;
+		heapH[position2] = h;
+		heapPositions[node] = position2;
+	}
+
+}
@@ -0,0 +1,53 @@
+package uk.ac.ed.inf.aqmaps;
+
+
+// OrOptOptimiser repeatedly moves a segment of one to three consecutive 
+// positions to another place in the tour, possibly reversing it, taking the
+// move which gives the largest saving in moves, until no move makes the tour
+// shorter or the deadline passes.
+public class OrOptOptimiser implements TourOptimiser {
+
+	private static final int MAX_SEGMENT_LENGTH = 3;
+	
+	@Override
+	public int[] optimise(int[] tour, LegCostMatrix legCostMatrix, 
+			Deadline deadline) {
+		var bestTour = tour;
+		var bestCost = TourUtils.tourCost(tour, legCostMatrix);
+		var improved = true;
+		while (improved && !deadline.hasPassed()) {
+			improved = false;
+			var passBestTour = bestTour;
+			var passBestCost = bestCost;
+			for (int length = 1; length <= MAX_SEGMENT_LENGTH; length++) {
+				// The start position at index 0 is never moved. A pass
+				// stopped by the deadline still keeps the best move it found.
+				for (int i = 1; i + length <= bestTour.length 
+						&& !deadline.hasPassed(); i++) {
+					for (int j = 0; j < bestTour.length; j++) {
+						if (j >= i - 1 && j < i + length) {
+							continue;
+						}
+						for (int r = 0; r < 2; r++) {
+							var candidate = TourUtils.moveSegment(bestTour, i, 
+									length, j, r == 1);
+							var cost = 
+									TourUtils.tourCost(candidate, legCostMatrix);
+							if (cost < passBestCost) {
+								passBestTour = candidate;
+								passBestCost = cost;
+							}
+						}
+					}
+				}
+			}
+			if (passBestCost < bestCost) {
+				bestTour = passBestTour;
+				bestCost = passBestCost;
+				improved = true;
+			}
+		}
+		return bestTour;
+	}
+	
+}
@@ -0,0 +1,89 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+
+// PlannerMetrics holds the metrics recorded by the planner over a run, in a
+// single MetricsRegistry shared by every thread. They are written out at the
+// end of a run if the system property aqmaps.metrics.dir names a directory
+// to write them to - see writeTo.
+public class PlannerMetrics {
+
+	public static final MetricsRegistry registry = new MetricsRegistry();
+
+	// Time spent in each phase of planning
+	public static final MetricsRegistry.Timer fetchTime = registry.timer(
+			"aqmaps_fetch_seconds", 
+			"Time spent reading maps and no fly zones.");
+	public static final MetricsRegistry.Timer geocodeTime = registry.timer(
+			"aqmaps_geocode_seconds", 
+			"Time spent resolving the what3words locations of sensors.");
+	public static final MetricsRegistry.Timer segmentBuildTime = 
+			registry.timer("aqmaps_segment_build_seconds", 
+					"Time spent building obstacle grids and landmark fields.");
+	public static final MetricsRegistry.Timer searchTime = registry.timer(
+			"aqmaps_search_seconds", "Time spent in A* searches.");
+	public static final MetricsRegistry.Timer replanTime = registry.timer(
+			"aqmaps_replan_seconds", 
+			"Time spent replanning legs after the no fly zones changed.");
+	public static final MetricsRegistry.Timer writeTime = registry.timer(
+			"aqmaps_write_seconds", "Time spent writing output files.");
+
+	// Work done by the A* searches
+	public static final MetricsRegistry.Counter nodesExpanded = 
+			registry.counter("aqmaps_nodes_expanded_total", 
+					"Nodes expanded by A* searches.");
+	public static final MetricsRegistry.Maximum openSetPeakSize = 
+			registry.maximum("aqmaps_open_set_peak_size", 
+					"Largest open set reached by an A* search.");
+	public static final MetricsRegistry.Counter intersectionTests = 
+			registry.counter("aqmaps_intersection_tests_total", 
+					"Moves tested against no fly segments.");
+
+	// Caches
+	public static final MetricsRegistry.Counter responseCacheHits = 
+			registry.counter("aqmaps_response_cache_hits_total", 
+					"Web server files found in the response cache.");
+	public static final MetricsRegistry.Counter responseCacheMisses = 
+			registry.counter("aqmaps_response_cache_misses_total", 
+					"Web server files not found in the response cache.");
+	public static final MetricsRegistry.Counter landmarkCacheHits = 
+			registry.counter("aqmaps_landmark_cache_hits_total", 
+					"Landmark fields loaded from disk.");
+	public static final MetricsRegistry.Counter landmarkCacheMisses = 
+			registry.counter("aqmaps_landmark_cache_misses_total", 
+					"Landmark fields computed.");
+	public static final MetricsRegistry.Counter legStoreHits = 
+			registry.counter("aqmaps_leg_store_hits_total", 
+					"Legs found in the leg store.");
+	public static final MetricsRegistry.Counter legStoreMisses = 
+			registry.counter("aqmaps_leg_store_misses_total", 
+					"Legs searched for because they were not in the leg store.");
+	public static final MetricsRegistry.Counter legReplays = 
+			registry.counter("aqmaps_leg_replays_total", 
+					"Legs flown by replaying the leg cost matrix's path.");
+	public static final MetricsRegistry.Counter legSearches = 
+			registry.counter("aqmaps_leg_searches_total", 
+					"Legs flown by searching again from the drone's position.");
+
+	public static final MetricsRegistry.Histogram legMoves = 
+			registry.histogram("aqmaps_leg_moves", "Moves flown per leg.", 
+					1, 2, 3, 5, 8, 13, 21, 34, 55, 89, 150);
+
+	// Writes the metrics to the file with the given name in the directory
+	// named by aqmaps.metrics.dir, if it is set. The file is JSON if its name
+	// ends in .json and in the Prometheus text format otherwise.
+	public static void writeTo(String fileName) {
+		var directory = System.getProperty("aqmaps.metrics.dir");
+		if (directory == null) {
+			return;
+		}
+		try {
+			registry.write(Paths.get(directory, fileName));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,374 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.mapbox.geojson.Point;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+// PlanningDaemon keeps a planner running between plans, so that each plan
+// does not pay for starting a JVM, loading classes, compiling the planner
+// and building the ObstacleGrid as a run of DroneController does. It plans
+// dates from launch positions given over HTTP on localhost:
+//   GET /plan?date=YYYY-MM-DD&lat=LATITUDE&lng=LONGITUDE
+//       [&seed=SEED][&mode=MODE][&budget=TIME-BUDGET-MILLIS]
+// returns a JSON object holding the drone's remaining move allowance, the
+// flightpath file and the readings geojson,
+//   POST /no-fly-zones
+// reads the no fly zones from the data source again, and
+//   GET /metrics
+// returns the planner's metrics in the Prometheus text format.
+// The ObstacleGrid is built once, and again only when the no fly zones are
+// reloaded; plans started after that use the new grid, and drones being
+// flown are given it to replan the rest of their flights with. The sensors
+// of each date are loaded the first time the date is planned, outside the
+// map of loaded dates so that loading one date never holds up another, and
+// copied for each plan after that. A plan's files are written into memory
+// rather than to disk.
+// Plans run on a pool with one thread per core, in front of which at most
+// queueCapacity plans wait; a plan requested while the queue is full is
+// refused at once with 503 rather than left to wait. The HTTP threads only
+// parse requests and hand them to the pool, which sends the responses.
+public class PlanningDaemon {
+
+	private static final int HANDLER_THREADS = 4;
+
+	private volatile ObstacleGrid obstacleGrid;
+	private final MapDataSource dataSource;
+	private final HttpServer server;
+	private final ExecutorService handlerExecutor;
+	private final ThreadPoolExecutor planningExecutor;
+	// The sensors of each date planned so far, keyed by date, as loaded and
+	// before any are read. A date's future is added before its sensors are
+	// loaded, so that plans of the same date wait for the one loading it.
+	private final ConcurrentHashMap<LocalDate, CompletableFuture<List<Sensor>>>
+			sensorLists = new ConcurrentHashMap<>();
+	// The controllers of the plans being made, which are given the new
+	// obstacleGrid when the no fly zones are reloaded
+	private final Set<DroneController> activeControllers =
+			ConcurrentHashMap.newKeySet();
+
+	// Creates a daemon which plans with the maps of the dataSource on the
+	// given port of localhost, and is not started until start is called. If
+	// the port is 0 a free port is chosen - see getPort.
+	public PlanningDaemon(ObstacleGrid obstacleGrid, MapDataSource dataSource,
+			int port, int queueCapacity) throws IOException {
+		this.obstacleGrid = obstacleGrid;
+		this.dataSource = dataSource;
+		var threads = Runtime.getRuntime().availableProcessors();
+		planningExecutor = new ThreadPoolExecutor(threads, threads, 0,
+				TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity));
+		handlerExecutor = Executors.newFixedThreadPool(HANDLER_THREADS);
+		server = HttpServer.create(
+				new InetSocketAddress("localhost", port), 0);
+		server.setExecutor(handlerExecutor);
+		server.createContext("/plan", this::handlePlan);
+		server.createContext("/no-fly-zones", this::handleNoFlyZones);
+		server.createContext("/metrics", this::handleMetrics);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	// Stops the server, waiting at most the given number of seconds for
+	// requests being handled to finish.
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		handlerExecutor.shutdown();
+		planningExecutor.shutdown();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	// Plans the date from the launch position and returns the response to a
+	// plan request, as described above.
+	public JsonObject plan(LocalDate date, Point launchPosition, long seed,
+			String mode, long timeBudgetMillis) {
+		var year = String.format("%04d", date.getYear());
+		var month = String.format("%02d", date.getMonthValue());
+		var day = String.format("%02d", date.getDayOfMonth());
+		var optimiser = TourOptimiser.forMode(mode, seed);
+		var sensorList = copySensorList(getSensorList(date, year, month,
+				day));
+
+		var drone = new Drone(launchPosition, 150);
+		var plannedGrid = obstacleGrid;
+		var droneController = new DroneController(plannedGrid, sensorList,
+				year, month, day, drone);
+		var flightPath = new ByteArrayOutputStream();
+		var readings = new ByteArrayOutputStream();
+		droneController.setOutputChannels(Channels.newChannel(flightPath),
+				Channels.newChannel(readings));
+		activeControllers.add(droneController);
+		try {
+			// The no fly zones may have been reloaded since the grid was
+			// taken, before the controller could be given the new one.
+			if (obstacleGrid != plannedGrid) {
+				droneController.updateObstacleGrid(obstacleGrid);
+			}
+			var deadline = Deadline.fromSystemProperties();
+			if (deadline != null) {
+				droneController.anytimeFlightPath(optimiser, deadline);
+			} else {
+				droneController.optimisedFlightPath(optimiser,
+						timeBudgetMillis);
+			}
+		} finally {
+			activeControllers.remove(droneController);
+		}
+
+		var response = new JsonObject();
+		response.addProperty("date", date.toString());
+		response.addProperty("moveAllowance", drone.getMoveAllowance());
+		response.addProperty("flightPath",
+				flightPath.toString(StandardCharsets.UTF_8));
+		response.add("readings", JsonParser.parseString(
+				readings.toString(StandardCharsets.UTF_8)));
+		return response;
+	}
+
+	// Reads the no fly zones from the data source again, bypassing the
+	// ResponseCache unless it is offline, and plans with them from then on.
+	// Returns the number of no fly segments read.
+	public int reloadNoFlyZones() {
+		var newGrid = DroneController.loadObstacleGrid(
+				DroneController.getConfinementArea(), dataSource);
+		obstacleGrid = newGrid;
+		for (var droneController : activeControllers) {
+			droneController.updateObstacleGrid(newGrid);
+		}
+		return newGrid.getSegmentCount();
+	}
+
+	// Returns the sensors of the date, loading them if the date has not
+	// been planned before. If another plan is loading them it waits for it.
+	// The sensors are loaded outside the map, so that the map is never
+	// locked while they are fetched, and a date which fails to load is
+	// removed so that it can be tried again.
+	private List<Sensor> getSensorList(LocalDate date, String year,
+			String month, String day) {
+		var loading = new CompletableFuture<List<Sensor>>();
+		var sensorList = sensorLists.putIfAbsent(date, loading);
+		if (sensorList == null) {
+			try {
+				loading.complete(DroneController.loadSensorList(year, month,
+						day, dataSource));
+			} catch (RuntimeException e) {
+				sensorLists.remove(date, loading);
+				loading.completeExceptionally(e);
+				throw e;
+			}
+			sensorList = loading;
+		}
+		try {
+			return sensorList.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	// Returns new sensors with the same locations, readings and positions as
+	// the given ones, all unvisited, so that the sensors loaded for a date
+	// are never changed by planning it.
+	private static List<Sensor> copySensorList(List<Sensor> sensorList) {
+		var copies = new ArrayList<Sensor>();
+		for (var sensor : sensorList) {
+			var copy = new Sensor(sensor.getLocation(), sensor.getBattery(),
+					sensor.getReading(), sensor.getPosition());
+			copy.setMarkerProperties("#aaaaaa", "");
+			copies.add(copy);
+		}
+		return copies;
+	}
+
+	private void handlePlan(HttpExchange exchange) throws IOException {
+		var isHandedOver = false;
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				sendResponse(exchange, 405, "text/plain", "Method not allowed");
+				return;
+			}
+			LocalDate date;
+			Point launchPosition;
+			long seed;
+			String mode;
+			long timeBudgetMillis;
+			try {
+				var query = parseQuery(exchange.getRequestURI().getRawQuery());
+				date = LocalDate.parse(requireParameter(query, "date"));
+				launchPosition = Point.fromLngLat(
+						Double.parseDouble(requireParameter(query, "lng")),
+						Double.parseDouble(requireParameter(query, "lat")));
+				seed = Long.parseLong(query.getOrDefault("seed", "0"));
+				mode = query.getOrDefault("mode", "greedy");
+				timeBudgetMillis = Long.parseLong(
+						query.getOrDefault("budget", "1000"));
+				// Check the mode before the plan is queued.
+				TourOptimiser.forMode(mode, seed);
+			} catch (IllegalArgumentException | DateTimeParseException e) {
+				sendResponse(exchange, 400, "text/plain", e.getMessage());
+				return;
+			}
+
+			try {
+				planningExecutor.execute(() -> respondWithPlan(exchange, date,
+						launchPosition, seed, mode, timeBudgetMillis));
+				isHandedOver = true;
+			} catch (RejectedExecutionException e) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendResponse(exchange, 503, "text/plain",
+						"Too many plans waiting");
+			}
+		} finally {
+			if (!isHandedOver) {
+				exchange.close();
+			}
+		}
+	}
+
+	// Plans the date and sends the plan as the response to the exchange,
+	// or the reason it could not be planned.
+	private void respondWithPlan(HttpExchange exchange, LocalDate date,
+			Point launchPosition, long seed, String mode,
+			long timeBudgetMillis) {
+		try {
+			try {
+				var response = plan(date, launchPosition, seed, mode,
+						timeBudgetMillis);
+				sendResponse(exchange, 200, "application/json",
+						response.toString());
+			} catch (IllegalStateException e) {
+				// The date has no map, or its no fly zones could not be read
+				sendResponse(exchange, 404, "text/plain", e.getMessage());
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				sendResponse(exchange, 500, "text/plain",
+						"Could not plan " + date);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleNoFlyZones(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				sendResponse(exchange, 405, "text/plain", "Method not allowed");
+				return;
+			}
+			try {
+				var segmentCount = reloadNoFlyZones();
+				sendResponse(exchange, 200, "text/plain",
+						"Reloaded " + segmentCount + " no fly segments");
+			} catch (IllegalStateException e) {
+				// The no fly zones could not be read, so the old ones are kept
+				e.printStackTrace();
+				sendResponse(exchange, 503, "text/plain", e.getMessage());
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("GET")) {
+				sendResponse(exchange, 405, "text/plain", "Method not allowed");
+				return;
+			}
+			sendResponse(exchange, 200, "text/plain; version=0.0.4",
+					PlannerMetrics.registry.toPrometheus());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	// Returns the parameters of a URL query string, decoded.
+	private static Map<String, String> parseQuery(String query) {
+		var parameters = new HashMap<String, String>();
+		if (query == null) {
+			return parameters;
+		}
+		for (var parameter : query.split("&")) {
+			var separator = parameter.indexOf('=');
+			if (separator == -1) {
+				continue;
+			}
+			parameters.put(URLDecoder.decode(parameter.substring(0, separator),
+					StandardCharsets.UTF_8), URLDecoder.decode(
+					parameter.substring(separator + 1),
+					StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+
+	private static String requireParameter(Map<String, String> query,
+			String name) {
+		var value = query.get(name);
+		if (value == null) {
+			throw new IllegalArgumentException("Missing parameter " + name);
+		}
+		return value;
+	}
+
+	private static void sendResponse(HttpExchange exchange, int statusCode,
+			String contentType, String body) throws IOException {
+		var bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(statusCode, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+
+	// Takes the web server's port, or a URL, directory, zip file or bundle to
+	// read the maps from, the port to take plan requests on, and optionally
+	// the number of plans which may wait, and serves plans until the process
+	// is stopped.
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			throw new IllegalArgumentException("Usage: daemon "
+					+ "PORT-OR-LOCATION PORT [QUEUE-CAPACITY]");
+		}
+		var dataSource = MapDataSource.forLocation(args[0]);
+		var queueCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		var obstacleGrid = DroneController.loadObstacleGrid(
+				DroneController.getConfinementArea(), dataSource);
+		var planningDaemon = new PlanningDaemon(obstacleGrid, dataSource,
+				Integer.parseInt(args[1]), queueCapacity);
+		planningDaemon.start();
+		System.out.println("Taking plan requests on port "
+				+ planningDaemon.getPort());
+	}
+
+}
@@ -3,6 +3,19 @@ package uk.ac.ed.inf.aqmaps;
 import com.mapbox.geojson.Point;
 
 public class PointUtils {
+	// The change in longitude and latitude of a move at each of the 36 legal
+	// angles (0, 10, ..., 350 degrees), indexed by angle / 10.
+	private static final double[] MOVE_LNG = new double[36];
+	private static final double[] MOVE_LAT = new double[36];
+	
+	static {
+		for (int i = 0; i < 36; i++) {
+			var radiansAngle = Math.toRadians(i*10);
+			MOVE_LNG[i] = Math.cos(radiansAngle)*0.0003;
+			MOVE_LAT[i] = Math.sin(radiansAngle)*0.0003;
+		}
+	}
+	
 	// Returns the Pythagorean distance between two points.
 	public static double findDistanceBetween(Point point1, Point point2) {
 		return Math.sqrt(Math.pow(point1.longitude() - point2.longitude(),2) + 
@@ -13,16 +26,26 @@ public class PointUtils {
 	// magnitude of the move is 0.0003 degrees.
 	// Takes an angle in degrees as the argument, with 0 representing a move
 	// east, 90 representing north, 180 representing west and 270 representing
-	// south.
+	// south. The angle must be a multiple of 10 between 0 and 350 (inclusive).
 	public static Point pointAfterMove(Point startPoint, int angle) {
-		var radiansAngle = Math.toRadians(angle);
-
-		// The following expressions are derived using basic trigonometry.
-		var newLng = startPoint.longitude() + Math.cos(radiansAngle)*0.0003;
-		var newLat = startPoint.latitude() + Math.sin(radiansAngle)*0.0003;
+		var newLng = startPoint.longitude() + moveLng(angle);
+		var newLat = startPoint.latitude() + moveLat(angle);
 		return Point.fromLngLat(newLng, newLat);
 	}
 	
+	// Returns the change in longitude of a move at the given angle, which
+	// must be a multiple of 10 between 0 and 350 (inclusive). This is derived
+	// using basic trigonometry.
+	public static double moveLng(int angle) {
+		return MOVE_LNG[angle / 10];
+	}
+	
+	// Returns the change in latitude of a move at the given angle, which
+	// must be a multiple of 10 between 0 and 350 (inclusive).
+	public static double moveLat(int angle) {
+		return MOVE_LAT[angle / 10];
+	}
+	
 	// Returns a Point with the coordinates of point1 - point2
 	public static Point subtractPoints(Point point1, Point point2) {
 		return Point.fromLngLat(point1.longitude() - point2.longitude(),
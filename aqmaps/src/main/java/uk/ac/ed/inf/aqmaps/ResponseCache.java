@@ -0,0 +1,254 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+
+// ResponseCache keeps the files fetched from the web server on disk, keyed by
+// the path of their URL so that the same files served on another port share
+// entries, and later runs do not need to fetch them again. Only files which
+// never change once published are used from the cache: the what3words
+// details, and the air quality data of dates before today. The air quality
+// data of today and later dates may still be updated, and other files are
+// never cached. The no fly zones can change at any time, so they are stored
+// but always fetched again unless the cache is offline.
+// The total size of the cache is capped, and when it is exceeded the least
+// recently used entries are deleted. Entries are written to a temporary file
+// and then moved into place, so a run which is killed part way through never
+// leaves a partly written entry behind. In offline mode the web server is
+// never accessed and only cached files can be used.
+// The cache is configured with the system properties aqmaps.cache (set to
+// true to enable it, as it is disabled by default), aqmaps.cache.dir, aqmaps.cache.maxBytes and
+// aqmaps.cache.offline.
+public class ResponseCache {
+
+	private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	private static final Pattern MAP_PATH = Pattern.compile(
+			"/maps/(\\d{4})/(\\d{2})/(\\d{2})/[^/]+");
+	private static final Pattern WORDS_PATH = Pattern.compile("/words/.+");
+	private static final String NO_FLY_ZONES_PATH =
+			"/buildings/no-fly-zones.geojson";
+
+	private final Path directory;
+	private final long maxBytes;
+	private final boolean offline;
+	// Sizes of the entries in the cache, keyed by file name, in order from
+	// least to most recently used.
+	private final LinkedHashMap<String, Long> entrySizes =
+			new LinkedHashMap<>(16, 0.75f, true);
+	private long totalBytes;
+
+	public ResponseCache(Path directory, long maxBytes, boolean offline)
+			throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.offline = offline;
+		Files.createDirectories(directory);
+		loadEntries();
+	}
+
+	// Returns the cache configured by the system properties, or null if the
+	// cache is disabled or its directory cannot be used.
+	public static ResponseCache fromSystemProperties() {
+		if (!Boolean.parseBoolean(System.getProperty("aqmaps.cache", "false"))) {
+			return null;
+		}
+		var directory = Paths.get(System.getProperty("aqmaps.cache.dir",
+				Paths.get(System.getProperty("user.home"), ".aqmaps",
+						"cache").toString()));
+		var maxBytes = Long.parseLong(System.getProperty(
+				"aqmaps.cache.maxBytes", Long.toString(DEFAULT_MAX_BYTES)));
+		var offline =
+				Boolean.parseBoolean(System.getProperty("aqmaps.cache.offline"));
+		try {
+			return new ResponseCache(directory, maxBytes, offline);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	// Returns true if the web server should never be accessed.
+	public boolean isOffline() {
+		return offline;
+	}
+
+	// Returns the cached body of the file at the given URL, or null if it is
+	// not in the cache or should be fetched again.
+	public String get(String urlString) {
+		var path = URI.create(urlString).getPath();
+		if (!isCached(path) 
+				|| (path.equals(NO_FLY_ZONES_PATH) && !offline)) {
+			return null;
+		}
+		var fileName = fileName(path);
+		synchronized (this) {
+			if (entrySizes.get(fileName) == null) {
+				return null;
+			}
+		}
+		var file = directory.resolve(fileName);
+		try {
+			var body = Files.readString(file, StandardCharsets.UTF_8);
+			// The modification time records when the entry was last used,
+			// so that the order of use survives between runs.
+			Files.setLastModifiedTime(file,
+					FileTime.fromMillis(System.currentTimeMillis()));
+			return body;
+		} catch (IOException e) {
+			// The entry was evicted, possibly by another run sharing the
+			// cache, after it was looked up.
+			synchronized (this) {
+				var size = entrySizes.remove(fileName);
+				if (size != null) {
+					totalBytes -= size;
+				}
+			}
+			return null;
+		}
+	}
+
+	// Stores the body of the file at the given URL in the cache, if it is a
+	// file which is cached, evicting the least recently used entries if the
+	// cache grows too large.
+	public void put(String urlString, String body) {
+		var path = URI.create(urlString).getPath();
+		if (!isCached(path)) {
+			return;
+		}
+		var fileName = fileName(path);
+		var bytes = body.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > maxBytes) {
+			return;
+		}
+		try {
+			var temporaryFile = Files.createTempFile(directory, fileName,
+					".tmp");
+			try {
+				Files.write(temporaryFile, bytes);
+				moveIntoPlace(temporaryFile, directory.resolve(fileName));
+			} finally {
+				Files.deleteIfExists(temporaryFile);
+			}
+		} catch (IOException e) {
+			// Failing to cache a file is not fatal, since it can always be
+			// fetched again.
+			e.printStackTrace();
+			return;
+		}
+		synchronized (this) {
+			var oldSize = entrySizes.put(fileName, (long) bytes.length);
+			totalBytes += bytes.length - (oldSize == null ? 0 : oldSize);
+			evict();
+		}
+	}
+
+	// Returns true if the file at the given URL path is kept in the cache.
+	private static boolean isCached(String path) {
+		if (path == null) {
+			return false;
+		}
+		if (WORDS_PATH.matcher(path).matches() 
+				|| path.equals(NO_FLY_ZONES_PATH)) {
+			return true;
+		}
+		var matcher = MAP_PATH.matcher(path);
+		if (!matcher.matches()) {
+			return false;
+		}
+		try {
+			var date = LocalDate.of(Integer.parseInt(matcher.group(1)),
+					Integer.parseInt(matcher.group(2)),
+					Integer.parseInt(matcher.group(3)));
+			return date.isBefore(LocalDate.now());
+		} catch (DateTimeException e) {
+			return false;
+		}
+	}
+
+	// Deletes the least recently used entries until the cache fits in
+	// maxBytes.
+	private void evict() {
+		var iterator = entrySizes.entrySet().iterator();
+		while (totalBytes > maxBytes && iterator.hasNext()) {
+			var entry = iterator.next();
+			try {
+				Files.deleteIfExists(directory.resolve(entry.getKey()));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			totalBytes -= entry.getValue();
+			iterator.remove();
+		}
+	}
+
+	// Reads the entries already in the cache directory, ordered by when they
+	// were last used.
+	private void loadEntries() throws IOException {
+		try (var files = Files.list(directory)) {
+			var entries = files
+					.filter(file -> file.getFileName().toString()
+							.endsWith(".body"))
+					.sorted(Comparator.comparing(ResponseCache::lastModified))
+					.collect(Collectors.toList());
+			for (Path file : entries) {
+				var size = Files.size(file);
+				entrySizes.put(file.getFileName().toString(), size);
+				totalBytes += size;
+			}
+		}
+		evict();
+	}
+
+	private static void moveIntoPlace(Path source, Path target)
+			throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static FileTime lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	// Returns the name of the file holding the entry for the given URL path,
+	// which is the SHA-256 hash of the path so that any path gives a valid
+	// file name.
+	private static String fileName(String path) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256")
+					.digest(path.getBytes(StandardCharsets.UTF_8));
+			var name = new StringBuilder();
+			for (byte b : digest) {
+				name.append(String.format("%02x", b));
+			}
+			return name.append(".body").toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
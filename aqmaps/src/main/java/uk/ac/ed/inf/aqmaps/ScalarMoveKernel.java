@@ -0,0 +1,26 @@
+package uk.ac.ed.inf.aqmaps;
+
+
+// ScalarMoveKernel tests each candidate move against the segment in turn with
+// SegmentIntersection.intersects.
+public class ScalarMoveKernel implements MoveKernel {
+
+	@Override
+	public long illegalMoveMask(double lng, double lat, double lng1,
+			double lat1, double lng2, double lat2, long candidateMoves) {
+		var illegalMoves = 0L;
+		for (int i = 0; i < 36; i++) {
+			if ((candidateMoves & (1L << i)) == 0) {
+				continue;
+			}
+			if (SegmentIntersection.intersects(lng, lat,
+					lng + PointUtils.moveLng(i*10),
+					lat + PointUtils.moveLat(i*10),
+					lng1, lat1, lng2, lat2)) {
+				illegalMoves |= 1L << i;
+			}
+		}
+		return illegalMoves;
+	}
+
+}
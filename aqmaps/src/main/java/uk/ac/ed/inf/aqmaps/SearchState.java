@@ -0,0 +1,265 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import com.mapbox.geojson.Point;
+
+
+// SearchState holds the bookkeeping of an A* search (cameFrom, gScore and
+// fScore) in primitive arrays rather than in maps keyed by Point objects.
+// Every position reached by the search is snapped to a lattice key, a long
+// packing the position's offset from the search origin in units of
+// LATTICE_QUANTUM degrees, so that positions which only differ by floating
+// point errors are considered the same node.
+// Nodes are numbered densely in the order they are added, and an open
+// addressing hash table maps lattice keys to node numbers. The arrays are
+// kept between searches and the hash table is cleared by bumping a
+// generation stamp, so a SearchState should be reused for every leg flown
+// on a thread rather than reallocated. The search's OpenSet is kept alongside
+// for the same reason.
+public class SearchState {
+
+	// Positions within this many degrees of each other on both axes snap to
+	// the same lattice key. This is far smaller than the length of a move
+	// (0.0003 degrees) but far larger than the floating point errors which
+	// build up over a path.
+	public static final double LATTICE_QUANTUM = 1e-9;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// The deadline is checked once every this many expansions, which must be
+	// a power of two. This keeps the check off the hot path while stopping a
+	// search within a fraction of a millisecond of its deadline.
+	private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+	// Node arrays, indexed by node number.
+	private long[] nodeKeys = new long[INITIAL_CAPACITY];
+	private double[] nodeLng = new double[INITIAL_CAPACITY];
+	private double[] nodeLat = new double[INITIAL_CAPACITY];
+	private double[] gScore = new double[INITIAL_CAPACITY];
+	private double[] fScore = new double[INITIAL_CAPACITY];
+	// cameFrom holds the number of the node which each node came from in the
+	// cheapest known path to it, or -1 for the start node, and cameFromAngle
+	// holds the angle of the move made from that node.
+	private int[] cameFrom = new int[INITIAL_CAPACITY];
+	private int[] cameFromAngle = new int[INITIAL_CAPACITY];
+	private int nodeCount;
+
+	// Hash table from lattice keys to node numbers. A slot is only occupied
+	// if its stamp matches the current generation.
+	private int[] tableNodes = new int[INITIAL_CAPACITY * 2];
+	private int[] tableStamps = new int[INITIAL_CAPACITY * 2];
+	private int generation = 1;
+
+	private double originLng;
+	private double originLat;
+
+	private final OpenSet openSet = new OpenSet();
+
+	// Work done by the current search, recorded in PlannerMetrics once it
+	// ends
+	private long expansionCount;
+	private long intersectionTestCount;
+
+	// The deadline of the current search
+	private Deadline deadline;
+
+	// Clears the state for a new search whose lattice keys are taken relative
+	// to the given origin, which should be the start of the search.
+	public void reset(Point origin) {
+		reset(origin, Deadline.none());
+	}
+
+	// Clears the state for a new search, as reset(origin) does, which is
+	// cancelled by countExpansion once the deadline passes.
+	public void reset(Point origin, Deadline deadline) {
+		this.deadline = deadline;
+		originLng = origin.longitude();
+		originLat = origin.latitude();
+		nodeCount = 0;
+		openSet.clear();
+		expansionCount = 0;
+		intersectionTestCount = 0;
+		generation++;
+		if (generation == Integer.MAX_VALUE) {
+			// Stamps from previous generations could otherwise be mistaken
+			// for occupied slots once the generation wraps around.
+			Arrays.fill(tableStamps, 0);
+			generation = 1;
+		}
+	}
+
+	// Returns the lattice key of the given position.
+	public long latticeKey(double lng, double lat) {
+		var x = Math.round((lng - originLng) / LATTICE_QUANTUM);
+		var y = Math.round((lat - originLat) / LATTICE_QUANTUM);
+		if (x != (int) x || y != (int) y) {
+			throw new IllegalArgumentException("Position (" + lng + ", " + lat
+					+ ") is too far from the search origin to be given a "
+					+ "lattice key.");
+		}
+		return (x << 32) | (y & 0xffffffffL);
+	}
+
+	// Returns the number of the node with the given lattice key, or -1 if
+	// the search has not reached it.
+	public int findNode(long key) {
+		var mask = tableNodes.length - 1;
+		var slot = hash(key) & mask;
+		while (tableStamps[slot] == generation) {
+			var node = tableNodes[slot];
+			if (nodeKeys[node] == key) {
+				return node;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	// Adds a node with the given lattice key and position and returns its
+	// number. The key should not already be in the state.
+	public int addNode(long key, double lng, double lat) {
+		if (nodeCount == nodeKeys.length) {
+			growNodes();
+		}
+		if ((nodeCount + 1) * 2 > tableNodes.length) {
+			growTable();
+		}
+		var node = nodeCount++;
+		nodeKeys[node] = key;
+		nodeLng[node] = lng;
+		nodeLat[node] = lat;
+		cameFrom[node] = -1;
+		insert(key, node);
+		openSet.registerNode(node);
+		return node;
+	}
+
+	// Counts a node expanded by the search. Throws a CancellationException
+	// if the search's deadline has passed, which is checked before the first
+	// expansion and then every DEADLINE_CHECK_INTERVAL expansions.
+	public void countExpansion() {
+		if ((expansionCount & (DEADLINE_CHECK_INTERVAL - 1)) == 0
+				&& deadline.hasPassed()) {
+			throw new CancellationException("The search's deadline passed");
+		}
+		expansionCount++;
+	}
+
+	// Counts moves tested against no fly segments by the search.
+	public void countIntersectionTests(long count) {
+		intersectionTestCount += count;
+	}
+
+	public long getExpansionCount() {
+		return expansionCount;
+	}
+
+	public long getIntersectionTestCount() {
+		return intersectionTestCount;
+	}
+
+	public OpenSet getOpenSet() {
+		return openSet;
+	}
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public double getLng(int node) {
+		return nodeLng[node];
+	}
+
+	public double getLat(int node) {
+		return nodeLat[node];
+	}
+
+	public double getGScore(int node) {
+		return gScore[node];
+	}
+
+	public double getFScore(int node) {
+		return fScore[node];
+	}
+
+	// Returns the node which the cheapest known path to node comes from, or
+	// -1 if node is where the search started.
+	public int getCameFrom(int node) {
+		return cameFrom[node];
+	}
+
+	// Returns the angle of the move from getCameFrom(node) to node.
+	public int getCameFromAngle(int node) {
+		return cameFromAngle[node];
+	}
+
+	// Records that the cheapest known path to node comes from the node
+	// previous by a move at the given angle, with the given scores.
+	public void update(int node, int previous, int angle, double g,
+			double f) {
+		cameFrom[node] = previous;
+		cameFromAngle[node] = angle;
+		gScore[node] = g;
+		fScore[node] = f;
+	}
+
+	// Returns the angles of the moves along the cheapest known path from the
+	// start of the search to the given node, in the order they are made.
+	public int[] reconstructMoves(int node) {
+		var moveCount = 0;
+		for (int n = node; cameFrom[n] != -1; n = cameFrom[n]) {
+			moveCount++;
+		}
+
+		var moves = new int[moveCount];
+		for (int i = moveCount - 1; i >= 0; i--) {
+			moves[i] = cameFromAngle[node];
+			node = cameFrom[node];
+		}
+
+		return moves;
+	}
+
+	private void insert(long key, int node) {
+		var mask = tableNodes.length - 1;
+		var slot = hash(key) & mask;
+		while (tableStamps[slot] == generation) {
+			slot = (slot + 1) & mask;
+		}
+		tableNodes[slot] = node;
+		tableStamps[slot] = generation;
+	}
+
+	private void growNodes() {
+		var capacity = nodeKeys.length * 2;
+		nodeKeys = Arrays.copyOf(nodeKeys, capacity);
+		nodeLng = Arrays.copyOf(nodeLng, capacity);
+		nodeLat = Arrays.copyOf(nodeLat, capacity);
+		gScore = Arrays.copyOf(gScore, capacity);
+		fScore = Arrays.copyOf(fScore, capacity);
+		cameFrom = Arrays.copyOf(cameFrom, capacity);
+		cameFromAngle = Arrays.copyOf(cameFromAngle, capacity);
+	}
+
+	// Doubles the size of the hash table and reinserts every node of the
+	// current search.
+	private void growTable() {
+		tableNodes = new int[tableNodes.length * 2];
+		tableStamps = new int[tableStamps.length * 2];
+		generation = 1;
+		for (int node = 0; node < nodeCount; node++) {
+			insert(nodeKeys[node], node);
+		}
+	}
+
+	// Spreads the bits of a lattice key so that neighbouring keys do not
+	// cluster in the hash table.
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+}
@@ -0,0 +1,104 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.math.BigDecimal;
+
+
+// SegmentIntersection tests whether two line segments, given directly by the
+// coordinates of their endpoints, intersect. Segments which touch, including
+// collinear segments which overlap or share an endpoint, are considered to
+// intersect.
+// The test is built on the orientation predicate (which side of the line
+// through a and b the point c lies on), so no gradients or intercepts are
+// computed. The predicate is evaluated in floating point and only recomputed
+// exactly when the result is too close to zero for its sign to be trusted,
+// which only happens for (nearly) collinear points. The common case
+// therefore allocates nothing, while collinear and touching segments still
+// get exact answers.
+public class SegmentIntersection {
+
+	// Relative error bound of the floating point orientation determinant,
+	// taken from Shewchuk's "Adaptive Precision Floating-Point Arithmetic and
+	// Fast Robust Geometric Predicates". VectorMoveKernel uses the same bound
+	// to decide which lanes need the exact test.
+	public static final double ORIENTATION_ERROR_BOUND =
+			(3.0 + 16.0 * Math.ulp(1.0) / 2) * Math.ulp(1.0) / 2;
+
+	// Returns true if the segment from (lng1, lat1) to (lng2, lat2) intersects
+	// the segment from (lng3, lat3) to (lng4, lat4) and false otherwise.
+	public static boolean intersects(double lng1, double lat1, double lng2,
+			double lat2, double lng3, double lat3, double lng4, double lat4) {
+		// Segments whose bounding boxes do not overlap cannot intersect. This
+		// rejects almost every pair tested while planning.
+		if (Math.max(lng1, lng2) < Math.min(lng3, lng4) ||
+				Math.max(lng3, lng4) < Math.min(lng1, lng2) ||
+				Math.max(lat1, lat2) < Math.min(lat3, lat4) ||
+				Math.max(lat3, lat4) < Math.min(lat1, lat2)) {
+			return false;
+		}
+
+		var o1 = orientation(lng1, lat1, lng2, lat2, lng3, lat3);
+		var o2 = orientation(lng1, lat1, lng2, lat2, lng4, lat4);
+		var o3 = orientation(lng3, lat3, lng4, lat4, lng1, lat1);
+		var o4 = orientation(lng3, lat3, lng4, lat4, lng2, lat2);
+
+		// General case: the endpoints of each segment lie strictly on opposite
+		// sides of the other segment's line.
+		if (o1 * o2 < 0 && o3 * o4 < 0) {
+			return true;
+		}
+
+		// Otherwise the segments can only intersect if an endpoint of one lies
+		// on the other. Since the bounding boxes overlap and the endpoint is
+		// collinear with the other segment, it is on that segment exactly when
+		// it lies within the segment's bounding box.
+		return (o1 == 0 && isWithinBounds(lng3, lat3, lng1, lat1, lng2, lat2))
+				|| (o2 == 0 &&
+						isWithinBounds(lng4, lat4, lng1, lat1, lng2, lat2))
+				|| (o3 == 0 &&
+						isWithinBounds(lng1, lat1, lng3, lat3, lng4, lat4))
+				|| (o4 == 0 &&
+						isWithinBounds(lng2, lat2, lng3, lat3, lng4, lat4));
+	}
+
+	// Returns 1 if (lngC, latC) lies to the left of the directed line from
+	// (lngA, latA) to (lngB, latB), -1 if it lies to the right and 0 if the
+	// three points are collinear.
+	public static int orientation(double lngA, double latA, double lngB,
+			double latB, double lngC, double latC) {
+		var left = (lngB - lngA) * (latC - latA);
+		var right = (latB - latA) * (lngC - lngA);
+		var determinant = left - right;
+		var errorBound =
+				ORIENTATION_ERROR_BOUND * (Math.abs(left) + Math.abs(right));
+		if (determinant > errorBound) {
+			return 1;
+		}
+		if (-determinant > errorBound) {
+			return -1;
+		}
+		return exactOrientation(lngA, latA, lngB, latB, lngC, latC);
+	}
+
+	// Evaluates the orientation determinant exactly. Every double is exactly
+	// representable as a BigDecimal, and BigDecimal addition, subtraction and
+	// multiplication are exact, so the sign of the result is always correct.
+	private static int exactOrientation(double lngA, double latA, double lngB,
+			double latB, double lngC, double latC) {
+		var ax = new BigDecimal(lngA);
+		var ay = new BigDecimal(latA);
+		var left = new BigDecimal(lngB).subtract(ax)
+				.multiply(new BigDecimal(latC).subtract(ay));
+		var right = new BigDecimal(latB).subtract(ay)
+				.multiply(new BigDecimal(lngC).subtract(ax));
+		return left.compareTo(right);
+	}
+
+	// Returns true if (lng, lat) lies within the bounding box of the segment
+	// from (lng1, lat1) to (lng2, lat2).
+	private static boolean isWithinBounds(double lng, double lat, double lng1,
+			double lat1, double lng2, double lat2) {
+		return lng >= Math.min(lng1, lng2) && lng <= Math.max(lng1, lng2) &&
+				lat >= Math.min(lat1, lat2) && lat <= Math.max(lat1, lat2);
+	}
+
+}
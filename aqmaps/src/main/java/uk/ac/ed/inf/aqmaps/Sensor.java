@@ -1,7 +1,6 @@
 package uk.ac.ed.inf.aqmaps;
 
 import com.mapbox.geojson.Point;
-import com.google.gson.Gson;
 
 public class Sensor {
 	
@@ -12,6 +11,16 @@ public class Sensor {
 	private String rgbString;
 	private String markerSymbol;
 	
+	// Creates a sensor whose position has already been resolved from its
+	// what3words location.
+	public Sensor(String location, double battery, double reading, 
+			Point position) {
+		this.location = location;
+		this.battery = battery;
+		this.reading = reading;
+		this.position = position;
+	}
+	
 	public double getReading() {
 		return reading;
 	}
@@ -36,17 +45,16 @@ public class Sensor {
 		return markerSymbol;
 	}
 	
-	// Sets the position according to the sensor's what3words location
-	public void setPosition(int webServerPort) {
-		var urlString = 
-				"http://localhost:" + webServerPort + "/words/" 
-						+ location.replaceAll("\\.","/") + "/details.json";
-
-		var jsonDetailsString = DroneController.getResponseBody(urlString);
-		
-		var details = new Gson().fromJson(jsonDetailsString, Details.class);
-		
-		position = Point.fromLngLat(details.getLng(), details.getLat());
+	// Returns the path on the web server of the what3words details of the
+	// sensor's location.
+	public String getDetailsPath() {
+		return "words/" + location.replaceAll("\\.","/") + "/details.json";
+	}
+	
+	// Sets the position according to the what3words details of the sensor's
+	// location, given as the JSON string served at getDetailsPath.
+	public void setPosition(String jsonDetailsString) {
+		position = SensorJsonReader.readPosition(jsonDetailsString);
 	}
 	
 	public void setMarkerProperties(String rgbString, String markerSymbol) {
@@ -0,0 +1,119 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.mapbox.geojson.Point;
+
+
+// SensorJsonReader reads the sensors of a map (air-quality-data.json) and
+// the positions of their what3words locations (details.json) as a stream of
+// JSON tokens, taking only the fields the drone uses straight into
+// primitives and skipping the rest. The whole file is never held as a
+// string unless the data source gives it as one, and no objects are built
+// for the fields which are skipped.
+// A reading of "null", from a sensor whose battery is too low to be trusted,
+// is read as NaN.
+public class SensorJsonReader {
+
+	// Returns the sensors in the JSON array of a map, without positions.
+	public static List<Sensor> readSensorList(Reader reader)
+			throws IOException {
+		var jsonReader = new JsonReader(reader);
+		var sensorList = new ArrayList<Sensor>();
+		jsonReader.beginArray();
+		while (jsonReader.hasNext()) {
+			String location = null;
+			var battery = Double.NaN;
+			var reading = Double.NaN;
+			jsonReader.beginObject();
+			while (jsonReader.hasNext()) {
+				switch (jsonReader.nextName()) {
+				case "location":
+					location = jsonReader.nextString();
+					break;
+				case "battery":
+					battery = nextDouble(jsonReader);
+					break;
+				case "reading":
+					reading = nextDouble(jsonReader);
+					break;
+				default:
+					jsonReader.skipValue();
+				}
+			}
+			jsonReader.endObject();
+			if (location == null) {
+				throw new IOException("Sensor without a location at "
+						+ jsonReader.getPath());
+			}
+			sensorList.add(new Sensor(location, battery, reading, null));
+		}
+		jsonReader.endArray();
+		return sensorList;
+	}
+
+	// Returns the position given by the coordinates of the what3words
+	// details of a location.
+	public static Point readPosition(Reader reader) throws IOException {
+		var jsonReader = new JsonReader(reader);
+		jsonReader.beginObject();
+		while (jsonReader.hasNext()) {
+			if (!jsonReader.nextName().equals("coordinates")) {
+				jsonReader.skipValue();
+				continue;
+			}
+			var lng = Double.NaN;
+			var lat = Double.NaN;
+			jsonReader.beginObject();
+			while (jsonReader.hasNext()) {
+				switch (jsonReader.nextName()) {
+				case "lng":
+					lng = jsonReader.nextDouble();
+					break;
+				case "lat":
+					lat = jsonReader.nextDouble();
+					break;
+				default:
+					jsonReader.skipValue();
+				}
+			}
+			jsonReader.endObject();
+			if (Double.isNaN(lng) || Double.isNaN(lat)) {
+				break;
+			}
+			return Point.fromLngLat(lng, lat);
+		}
+		throw new IOException("No coordinates found in what3words details");
+	}
+
+	// Returns the position given by the what3words details, as a string.
+	public static Point readPosition(String jsonDetailsString) {
+		try {
+			return readPosition(new StringReader(jsonDetailsString));
+		} catch (IOException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+
+	// Returns the next value, which may be a number, a string holding a
+	// number, or null or "null" for a missing value, which is read as NaN.
+	private static double nextDouble(JsonReader jsonReader)
+			throws IOException {
+		if (jsonReader.peek() == JsonToken.NULL) {
+			jsonReader.nextNull();
+			return Double.NaN;
+		}
+		if (jsonReader.peek() == JsonToken.STRING) {
+			var value = jsonReader.nextString();
+			return value.equals("null") ? Double.NaN
+					: Double.parseDouble(value);
+		}
+		return jsonReader.nextDouble();
+	}
+
+}
@@ -0,0 +1,41 @@
+package uk.ac.ed.inf.aqmaps;
+
+
+// A TourOptimiser takes a tour of the positions in a LegCostMatrix (see
+// TourUtils for how tours are represented) and tries to find a tour of the
+// same positions which needs fewer moves, stopping once its deadline passes
+// (see Deadline), which it checks often enough to return soon after the
+// deadline is cancelled. The returned tour is never worse than the given one.
+public interface TourOptimiser {
+
+	int[] optimise(int[] tour, LegCostMatrix legCostMatrix, 
+			Deadline deadline);
+	
+	// Optimises the tour for at most the given number of milliseconds.
+	default int[] optimise(int[] tour, LegCostMatrix legCostMatrix, 
+			long timeBudgetMillis) {
+		return optimise(tour, legCostMatrix, Deadline.after(timeBudgetMillis));
+	}
+	
+	// Returns the optimiser selected by the given mode, as given on the 
+	// command line, or null for the "greedy" mode which keeps the nearest
+	// neighbour tour.
+	static TourOptimiser forMode(String mode, long seed) {
+		switch (mode) {
+		case "greedy":
+			return null;
+		case "2opt":
+			return new TwoOptOptimiser();
+		case "oropt":
+			return new OrOptOptimiser();
+		case "anneal":
+			return new AnnealingOptimiser(seed);
+		case "exact":
+			return new ExactOptimiser();
+		default:
+			throw new IllegalArgumentException("Unknown planning mode " + mode
+					+ " - expected greedy, 2opt, oropt, anneal or exact");
+		}
+	}
+	
+}
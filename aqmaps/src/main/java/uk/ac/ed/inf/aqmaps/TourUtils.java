@@ -0,0 +1,147 @@
+package uk.ac.ed.inf.aqmaps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import com.mapbox.geojson.Point;
+
+
+// Tours are represented as arrays of indices into a LegCostMatrix. A tour
+// always starts at index 0, the drone's start position, visits each of the
+// other positions in it once and then returns to index 0, so the return leg
+// is not stored in the array.
+public class TourUtils {
+
+	// The length of every drone move
+	private static final double MOVE_LENGTH = 0.0003;
+
+	// Returns the number of moves needed to fly the tour, including the leg
+	// back to the start position, or LegCostMatrix.UNREACHABLE if any of its
+	// legs has no path.
+	public static long tourCost(int[] tour, LegCostMatrix legCostMatrix) {
+		var cost = 0L;
+		for (int i = 0; i < tour.length; i++) {
+			var moveCount = legCostMatrix.getMoveCount(tour[i], 
+					tour[(i + 1) % tour.length]);
+			if (moveCount == LegCostMatrix.UNREACHABLE) {
+				return LegCostMatrix.UNREACHABLE;
+			}
+			cost += moveCount;
+		}
+		return cost;
+	}
+	
+	// Returns the tour built by starting at the start position and always
+	// travelling to the unvisited position which can be reached in the fewest
+	// moves. Many positions can be the same number of moves away, so ties are
+	// broken by the straight line distance. Positions which cannot be reached
+	// from the start position, or which cannot get back to it, are left out.
+	// The unvisited positions are kept in a KdTree and looked at nearest
+	// first, and no leg ends further than its closeEnough from its position
+	// or is longer than its moves, so the search for the next position stops
+	// at the first one too far away to need fewer moves than the best found.
+	// This gives the same tour as looking at every unvisited position, but
+	// usually only looks at a few of them.
+	public static int[] nearestNeighbourTour(LegCostMatrix legCostMatrix) {
+		var size = legCostMatrix.size();
+		var positions = new ArrayList<Point>();
+		var members = new ArrayList<Integer>();
+		var maxCloseEnough = 0.0;
+		for (int j = 0; j < size; j++) {
+			positions.add(legCostMatrix.getPosition(j));
+			if (j > 0 && isReachable(legCostMatrix, j)) {
+				members.add(j);
+				maxCloseEnough = Math.max(maxCloseEnough, 
+						legCostMatrix.getCloseEnough(j));
+			}
+		}
+		var unvisited = new KdTree(positions, 
+				members.stream().mapToInt(Integer::intValue).toArray());
+		var tour = new ArrayList<Integer>();
+		tour.add(0);
+		var current = 0;
+		while (true) {
+			var bestMoveCount = LegCostMatrix.UNREACHABLE;
+			var bestDistance = Double.POSITIVE_INFINITY;
+			var closest = -1;
+			var nearest = unvisited.nearest(legCostMatrix.getPosition(current));
+			for (int j = nearest.next(); j != -1; j = nearest.next()) {
+				var distance = nearest.getDistance();
+				var fewestMoves = minimumMoveCount(distance, maxCloseEnough);
+				if (fewestMoves > bestMoveCount || (fewestMoves >= bestMoveCount
+						&& distance >= bestDistance)) {
+					break;
+				}
+				var moveCount = legCostMatrix.getMoveCount(current, j);
+				if (moveCount < bestMoveCount || 
+						(moveCount == bestMoveCount && 
+						moveCount != LegCostMatrix.UNREACHABLE &&
+						distance < bestDistance)) {
+					bestMoveCount = moveCount;
+					bestDistance = distance;
+					closest = j;
+				}
+			}
+			if (closest == -1) {
+				break;
+			}
+			unvisited.remove(closest);
+			tour.add(closest);
+			current = closest;
+		}
+		return tour.stream().mapToInt(Integer::intValue).toArray();
+	}
+	
+	// Returns a number of moves which no leg between positions the given 
+	// distance apart can be shorter than, if it ends within closeEnough of
+	// its position. The moves are rounded down slightly, so that rounding
+	// errors in the lengths of the moves cannot make it too high.
+	private static long minimumMoveCount(double distance, 
+			double closeEnough) {
+		return (long) Math.ceil((distance - closeEnough) / MOVE_LENGTH - 1e-6);
+	}
+	
+	// Returns true if position i can be reached from the start position and
+	// the start position can be reached from it, so that it can be part of a
+	// tour.
+	public static boolean isReachable(LegCostMatrix legCostMatrix, int i) {
+		return legCostMatrix.getMoveCount(0, i) != LegCostMatrix.UNREACHABLE
+				&& legCostMatrix.getMoveCount(i, 0) 
+				!= LegCostMatrix.UNREACHABLE;
+	}
+	
+	// Returns a copy of the tour with the positions from index i to index j
+	// (inclusive) in reverse order.
+	public static int[] reverseSegment(int[] tour, int i, int j) {
+		var newTour = Arrays.copyOf(tour, tour.length);
+		while (i < j) {
+			var temp = newTour[i];
+			newTour[i++] = newTour[j];
+			newTour[j--] = temp;
+		}
+		return newTour;
+	}
+	
+	// Returns a copy of the tour with the segment of the given length 
+	// starting at index i moved so that it follows the position which is at
+	// index j of the tour, and reversed if reverse is true. j must not be 
+	// inside the segment.
+	public static int[] moveSegment(int[] tour, int i, int length, int j, 
+			boolean reverse) {
+		var newTour = new int[tour.length];
+		var n = 0;
+		for (int k = 0; k < tour.length; k++) {
+			if (k >= i && k < i + length) {
+				continue;
+			}
+			newTour[n++] = tour[k];
+			if (k == j) {
+				for (int s = 0; s < length; s++) {
+					newTour[n++] = reverse ? tour[i + length - 1 - s] 
+							: tour[i + s];
+				}
+			}
+		}
+		return newTour;
+	}
+	
+}
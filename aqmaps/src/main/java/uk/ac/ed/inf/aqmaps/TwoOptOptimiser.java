@@ -0,0 +1,43 @@
+package uk.ac.ed.inf.aqmaps;
+
+
+// TwoOptOptimiser repeatedly reverses the segment of the tour which gives the
+// largest saving in moves, until no reversal makes the tour shorter or the
+// deadline passes. Legs are not symmetric (the leg from a to b may need
+// a different number of moves to the leg from b to a), so the cost of each
+// candidate tour is computed in full rather than from the two changed legs.
+public class TwoOptOptimiser implements TourOptimiser {
+
+	@Override
+	public int[] optimise(int[] tour, LegCostMatrix legCostMatrix, 
+			Deadline deadline) {
+		var bestTour = tour;
+		var bestCost = TourUtils.tourCost(tour, legCostMatrix);
+		var improved = true;
+		while (improved && !deadline.hasPassed()) {
+			improved = false;
+			var passBestTour = bestTour;
+			var passBestCost = bestCost;
+			// The start position at index 0 is never moved. A pass stopped
+			// by the deadline still keeps the best reversal it found.
+			for (int i = 1; i < bestTour.length - 1 && !deadline.hasPassed(); 
+					i++) {
+				for (int j = i + 1; j < bestTour.length; j++) {
+					var candidate = TourUtils.reverseSegment(bestTour, i, j);
+					var cost = TourUtils.tourCost(candidate, legCostMatrix);
+					if (cost < passBestCost) {
+						passBestTour = candidate;
+						passBestCost = cost;
+					}
+				}
+			}
+			if (passBestCost < bestCost) {
+				bestTour = passBestTour;
+				bestCost = passBestCost;
+				improved = true;
+			}
+		}
+		return bestTour;
+	}
+	
+}
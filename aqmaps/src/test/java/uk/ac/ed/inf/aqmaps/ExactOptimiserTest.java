@@ -0,0 +1,152 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+
+// Checks ExactOptimiser against trying every tour, on small matrices of
+// asymmetric move counts. With no deadline it must find a tour needing the
+// fewest moves and report it as optimal, and with a deadline which has
+// already passed it must still report a lower bound which is no more than
+// the fewest moves. Either way a bound above the optimum would be a bound
+// which is not admissible for legs of different costs in each direction.
+public class ExactOptimiserTest {
+
+	private static final int TRIALS = 300;
+	private static final int MAX_SIZE = 8;
+
+	private final ExactOptimiser optimiser = new ExactOptimiser();
+
+	// Move counts with nothing in common between the two directions of a leg
+	@Test
+	public void randomMoveCounts() {
+		var random = new Random(1);
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var size = 3 + random.nextInt(MAX_SIZE - 2);
+			var moveCounts = new int[size][size];
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					moveCounts[i][j] = 1 + random.nextInt(40);
+				}
+			}
+			assertSolves(moveCounts);
+		}
+	}
+
+	// Move counts which differ by a few moves between the two directions of
+	// a leg, as legs around the no fly zones do.
+	@Test
+	public void nearlySymmetricMoveCounts() {
+		var random = new Random(2);
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var size = 3 + random.nextInt(MAX_SIZE - 2);
+			var moveCounts = new int[size][size];
+			for (int i = 0; i < size; i++) {
+				for (int j = i + 1; j < size; j++) {
+					var moveCount = 1 + random.nextInt(30);
+					moveCounts[i][j] = moveCount + random.nextInt(4);
+					moveCounts[j][i] = moveCount + random.nextInt(4);
+				}
+			}
+			assertSolves(moveCounts);
+		}
+	}
+
+	// Move counts where legs which are not on the given tour may be
+	// unreachable.
+	@Test
+	public void unreachableLegs() {
+		var random = new Random(3);
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var size = 3 + random.nextInt(MAX_SIZE - 2);
+			var moveCounts = new int[size][size];
+			for (int i = 0; i < size; i++) {
+				for (int j = 0; j < size; j++) {
+					var onGivenTour = j == (i + 1) % size;
+					moveCounts[i][j] = !onGivenTour && random.nextInt(3) == 0
+							? LegCostMatrix.UNREACHABLE
+							: 1 + random.nextInt(40);
+				}
+			}
+			assertSolves(moveCounts);
+		}
+	}
+
+	private void assertSolves(int[][] moveCounts) {
+		var legCostMatrix = LegCostMatrix.fromMoveCounts(moveCounts);
+		var tour = new int[moveCounts.length];
+		Arrays.setAll(tour, i -> i);
+		var optimum = bruteForceOptimum(moveCounts);
+		var matrixText = Arrays.deepToString(moveCounts);
+
+		var result = optimiser.solve(tour, legCostMatrix, Deadline.none());
+		assertTour(result, legCostMatrix);
+		assertEquals(matrixText, optimum, result.getCost());
+		assertEquals(matrixText, optimum, result.getLowerBound());
+		assertTrue(matrixText, result.isOptimal());
+
+		var passed = Deadline.none();
+		passed.cancel();
+		result = optimiser.solve(tour, legCostMatrix, passed);
+		assertTour(result, legCostMatrix);
+		assertEquals(matrixText, TourUtils.tourCost(tour, legCostMatrix),
+				result.getCost());
+		assertTrue(matrixText + " bound " + result.getLowerBound()
+				+ " is above the optimum " + optimum,
+				result.getLowerBound() <= optimum);
+	}
+
+	// Checks that the tour of the result visits every position once from
+	// the same start, and needs the moves the result says it does.
+	private static void assertTour(ExactOptimiser.Result result,
+			LegCostMatrix legCostMatrix) {
+		var resultTour = result.getTour();
+		assertEquals(0, resultTour[0]);
+		var sorted = resultTour.clone();
+		Arrays.sort(sorted);
+		var identity = new int[legCostMatrix.size()];
+		Arrays.setAll(identity, i -> i);
+		assertArrayEquals(identity, sorted);
+		assertEquals(TourUtils.tourCost(resultTour, legCostMatrix),
+				result.getCost());
+	}
+
+	// Returns the fewest moves of any tour of the positions starting at
+	// position 0.
+	private static long bruteForceOptimum(int[][] moveCounts) {
+		var path = new int[moveCounts.length];
+		var visited = new boolean[moveCounts.length];
+		visited[0] = true;
+		return bruteForce(moveCounts, path, 1, visited, 0);
+	}
+
+	private static long bruteForce(int[][] moveCounts, int[] path, int length,
+			boolean[] visited, long cost) {
+		var size = moveCounts.length;
+		var last = path[length - 1];
+		if (length == size) {
+			var moveCount = moveCounts[last][0];
+			return moveCount == LegCostMatrix.UNREACHABLE ? Long.MAX_VALUE
+					: cost + moveCount;
+		}
+		var best = Long.MAX_VALUE;
+		for (int next = 1; next < size; next++) {
+			var moveCount = moveCounts[last][next];
+			if (visited[next] || moveCount == LegCostMatrix.UNREACHABLE) {
+				continue;
+			}
+			visited[next] = true;
+			path[length] = next;
+			best = Math.min(best, bruteForce(moveCounts, path, length + 1,
+					visited, cost + moveCount));
+			visited[next] = false;
+		}
+		return best;
+	}
+
+}
@@ -0,0 +1,137 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+import com.mapbox.geojson.Point;
+
+
+// Checks the masks of a MoveKernel against testing each move on its own with
+// LineSegment.intersectsWith, on random segments and on the degenerate ones
+// where the kernels fall back to the exact test: segments collinear with a
+// move, segments sharing an endpoint with a move, and segments of no length.
+// The vector kernel is checked by VectorMoveKernelTest, which is only built
+// by the java17 profile.
+public class MoveKernelTest {
+
+	private static final int TRIALS = 5000;
+	private static final long ALL_MOVES = (1L << 36) - 1;
+
+	// Returns the kernel under test.
+	protected MoveKernel kernel() {
+		return new ScalarMoveKernel();
+	}
+
+	// Segments of up to a few moves in length near the position, against
+	// every move and against random subsets of the moves.
+	@Test
+	public void randomSegments() {
+		var random = new Random(1);
+		var kernel = kernel();
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var lng = randomLng(random);
+			var lat = randomLat(random);
+			var scale = 0.0003 * Math.pow(10, random.nextInt(3) - 1);
+			var lng1 = lng + (random.nextDouble() - 0.5) * scale * 2;
+			var lat1 = lat + (random.nextDouble() - 0.5) * scale * 2;
+			var lng2 = lng + (random.nextDouble() - 0.5) * scale * 2;
+			var lat2 = lat + (random.nextDouble() - 0.5) * scale * 2;
+			assertMatchesLineSegments(kernel, lng, lat, lng1, lat1, lng2,
+					lat2, ALL_MOVES);
+			assertMatchesLineSegments(kernel, lng, lat, lng1, lat1, lng2,
+					lat2, random.nextLong() & ALL_MOVES);
+		}
+	}
+
+	// Segments along the line of a move, which overlap it, touch its end,
+	// stop short of it or lie beyond it.
+	@Test
+	public void collinearSegments() {
+		var random = new Random(2);
+		var kernel = kernel();
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var lng = randomLng(random);
+			var lat = randomLat(random);
+			var angle = random.nextInt(36) * 10;
+			var t1 = random.nextInt(9) * 0.25 - 1;
+			var t2 = random.nextDouble() * 3 - 1;
+			assertMatchesLineSegments(kernel, lng, lat,
+					lng + t1 * PointUtils.moveLng(angle),
+					lat + t1 * PointUtils.moveLat(angle),
+					lng + t2 * PointUtils.moveLng(angle),
+					lat + t2 * PointUtils.moveLat(angle), ALL_MOVES);
+		}
+	}
+
+	// Segments starting at the position, or at the end of one of the moves.
+	@Test
+	public void sharedEndpoints() {
+		var random = new Random(3);
+		var kernel = kernel();
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var lng = randomLng(random);
+			var lat = randomLat(random);
+			var angle = random.nextInt(36) * 10;
+			var lng2 = lng + (random.nextDouble() - 0.5) * 0.0006;
+			var lat2 = lat + (random.nextDouble() - 0.5) * 0.0006;
+			assertMatchesLineSegments(kernel, lng, lat, lng, lat, lng2, lat2,
+					ALL_MOVES);
+			assertMatchesLineSegments(kernel, lng, lat,
+					lng + PointUtils.moveLng(angle),
+					lat + PointUtils.moveLat(angle), lng2, lat2, ALL_MOVES);
+		}
+	}
+
+	// Segments which are a single point, at the position, at the end of a
+	// move, part way along a move or off every move.
+	@Test
+	public void pointSegments() {
+		var random = new Random(4);
+		var kernel = kernel();
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var lng = randomLng(random);
+			var lat = randomLat(random);
+			var angle = random.nextInt(36) * 10;
+			var t = random.nextInt(5) * 0.25;
+			var pointLng = lng + t * PointUtils.moveLng(angle);
+			var pointLat = lat + t * PointUtils.moveLat(angle);
+			assertMatchesLineSegments(kernel, lng, lat, pointLng, pointLat,
+					pointLng, pointLat, ALL_MOVES);
+			var offLng = lng + (random.nextDouble() - 0.5) * 0.0006;
+			var offLat = lat + (random.nextDouble() - 0.5) * 0.0006;
+			assertMatchesLineSegments(kernel, lng, lat, offLng, offLat,
+					offLng, offLat, ALL_MOVES);
+		}
+	}
+
+	private static void assertMatchesLineSegments(MoveKernel kernel,
+			double lng, double lat, double lng1, double lat1, double lng2,
+			double lat2, long candidateMoves) {
+		var segment = new LineSegment(Point.fromLngLat(lng1, lat1),
+				Point.fromLngLat(lng2, lat2));
+		var expected = 0L;
+		for (int i = 0; i < 36; i++) {
+			if ((candidateMoves & (1L << i)) == 0) {
+				continue;
+			}
+			var move = new LineSegment(Point.fromLngLat(lng, lat),
+					Point.fromLngLat(lng + PointUtils.moveLng(i*10),
+							lat + PointUtils.moveLat(i*10)));
+			if (move.intersectsWith(segment)) {
+				expected |= 1L << i;
+			}
+		}
+		assertEquals(expected, kernel.illegalMoveMask(lng, lat, lng1, lat1,
+				lng2, lat2, candidateMoves));
+	}
+
+	private static double randomLng(Random random) {
+		return -3.192473 + random.nextDouble() * 0.008;
+	}
+
+	private static double randomLat(Random random) {
+		return 55.942617 + random.nextDouble() * 0.004;
+	}
+
+}
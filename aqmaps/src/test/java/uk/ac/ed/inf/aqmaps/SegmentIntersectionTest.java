@@ -0,0 +1,154 @@
+package uk.ac.ed.inf.aqmaps;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.util.Random;
+import org.junit.Test;
+
+
+// Checks SegmentIntersection against the same tests done entirely in exact
+// BigDecimal arithmetic, on the cases where the floating point orientation is
+// too close to zero to be trusted: nearly collinear points, segments which
+// touch at an endpoint and collinear segments.
+public class SegmentIntersectionTest {
+
+	private static final int TRIALS = 20000;
+
+	// Points a few ulps either side of the line through two points
+	@Test
+	public void nearlyCollinearOrientation() {
+		var random = new Random(1);
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var lngA = -3.192473 + random.nextDouble() * 0.008;
+			var latA = 55.942617 + random.nextDouble() * 0.004;
+			var lngB = -3.192473 + random.nextDouble() * 0.008;
+			var latB = 55.942617 + random.nextDouble() * 0.004;
+			var t = random.nextDouble() * 3 - 1;
+			var lngC = lngA + t * (lngB - lngA);
+			var latC = latA + t * (latB - latA);
+			for (int ulps = -3; ulps <= 3; ulps++) {
+				var nudgedLat = latC + ulps * Math.ulp(latC);
+				assertEquals(exactOrientation(lngA, latA, lngB, latB, lngC,
+						nudgedLat), SegmentIntersection.orientation(lngA, latA,
+						lngB, latB, lngC, nudgedLat));
+			}
+		}
+	}
+
+	// Segments along one line, which overlap, touch at an end or are
+	// separated by a gap, and the same segments nudged off the line.
+	@Test
+	public void collinearSegments() {
+		var random = new Random(2);
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var lng = -3.192473 + random.nextDouble() * 0.008;
+			var lat = 55.942617 + random.nextDouble() * 0.004;
+			var dLng = (random.nextDouble() - 0.5) * 0.001;
+			var dLat = (random.nextDouble() - 0.5) * 0.001;
+			var t1 = random.nextDouble() * 2;
+			var t2 = random.nextDouble() * 2;
+			var lng3 = lng + t1 * dLng;
+			var lat3 = lat + t1 * dLat;
+			var lng4 = lng + t2 * dLng;
+			var lat4 = lat + t2 * dLat;
+			for (int ulps = -1; ulps <= 1; ulps++) {
+				var nudgedLat4 = lat4 + ulps * Math.ulp(lat4);
+				assertIntersectsExactly(lng, lat, lng + dLng, lat + dLat,
+						lng3, lat3, lng4, nudgedLat4);
+			}
+		}
+	}
+
+	// Segments which share an endpoint, and segments with an endpoint on or
+	// just off the other segment.
+	@Test
+	public void touchingSegments() {
+		var random = new Random(3);
+		for (int trial = 0; trial < TRIALS; trial++) {
+			var lng1 = -3.192473 + random.nextDouble() * 0.008;
+			var lat1 = 55.942617 + random.nextDouble() * 0.004;
+			var lng2 = lng1 + (random.nextDouble() - 0.5) * 0.001;
+			var lat2 = lat1 + (random.nextDouble() - 0.5) * 0.001;
+			var lng4 = lng1 + (random.nextDouble() - 0.5) * 0.001;
+			var lat4 = lat1 + (random.nextDouble() - 0.5) * 0.001;
+			// A shared endpoint always intersects.
+			assertIntersectsExactly(lng1, lat1, lng2, lat2, lng2, lat2, lng4,
+					lat4);
+			assertEquals(true, SegmentIntersection.intersects(lng1, lat1,
+					lng2, lat2, lng2, lat2, lng4, lat4));
+			// An endpoint rounded onto the other segment, then nudged by an
+			// ulp either way.
+			var t = random.nextDouble();
+			var lng3 = lng1 + t * (lng2 - lng1);
+			var lat3 = lat1 + t * (lat2 - lat1);
+			for (int ulps = -1; ulps <= 1; ulps++) {
+				assertIntersectsExactly(lng1, lat1, lng2, lat2, lng3,
+						lat3 + ulps * Math.ulp(lat3), lng4, lat4);
+			}
+		}
+	}
+
+	// A T junction and a shared corner which are exact in binary, so that
+	// the expected answers are known without the exact test.
+	@Test
+	public void exactTouches() {
+		assertEquals(true, SegmentIntersection.intersects(
+				-3.1875, 55.9375, -3.1855, 55.9375,
+				-3.1865, 55.9375, -3.1865, 55.9385));
+		assertEquals(true, SegmentIntersection.intersects(
+				-3.1875, 55.9375, -3.1855, 55.9395,
+				-3.1855, 55.9395, -3.1845, 55.9375));
+		assertEquals(false, SegmentIntersection.intersects(
+				-3.1875, 55.9375, -3.1865, 55.9375,
+				-3.1855, 55.9375, -3.1845, 55.9375));
+		assertEquals(0, SegmentIntersection.orientation(
+				-3.1875, 55.9375, -3.1855, 55.9375, -3.1845, 55.9375));
+	}
+
+	private static void assertIntersectsExactly(double lng1, double lat1,
+			double lng2, double lat2, double lng3, double lat3, double lng4,
+			double lat4) {
+		assertEquals(exactIntersects(lng1, lat1, lng2, lat2, lng3, lat3, lng4,
+				lat4), SegmentIntersection.intersects(lng1, lat1, lng2, lat2,
+				lng3, lat3, lng4, lat4));
+	}
+
+	// The sign of the orientation determinant computed in BigDecimal, which
+	// is exact for any doubles.
+	private static int exactOrientation(double lngA, double latA, double lngB,
+			double latB, double lngC, double latC) {
+		var ax = new BigDecimal(lngA);
+		var ay = new BigDecimal(latA);
+		var left = new BigDecimal(lngB).subtract(ax)
+				.multiply(new BigDecimal(latC).subtract(ay));
+		var right = new BigDecimal(latB).subtract(ay)
+				.multiply(new BigDecimal(lngC).subtract(ax));
+		return left.compareTo(right);
+	}
+
+	// The textbook segment intersection test with every orientation exact.
+	private static boolean exactIntersects(double lng1, double lat1,
+			double lng2, double lat2, double lng3, double lat3, double lng4,
+			double lat4) {
+		var o1 = exactOrientation(lng1, lat1, lng2, lat2, lng3, lat3);
+		var o2 = exactOrientation(lng1, lat1, lng2, lat2, lng4, lat4);
+		var o3 = exactOrientation(lng3, lat3, lng4, lat4, lng1, lat1);
+		var o4 = exactOrientation(lng3, lat3, lng4, lat4, lng2, lat2);
+		if (o1 * o2 < 0 && o3 * o4 < 0) {
+			return true;
+		}
+		return (o1 == 0 && isOnSegment(lng3, lat3, lng1, lat1, lng2, lat2))
+				|| (o2 == 0 && isOnSegment(lng4, lat4, lng1, lat1, lng2, lat2))
+				|| (o3 == 0 && isOnSegment(lng1, lat1, lng3, lat3, lng4, lat4))
+				|| (o4 == 0 && isOnSegment(lng2, lat2, lng3, lat3, lng4, lat4));
+	}
+
+	// True if a point collinear with the segment lies between its ends.
+	private static boolean isOnSegment(double lng, double lat, double lng1,
+			double lat1, double lng2, double lat2) {
+		return lng >= Math.min(lng1, lng2) && lng <= Math.max(lng1, lng2)
+				&& lat >= Math.min(lat1, lat2) && lat <= Math.max(lat1, lat2);
+	}
+
+}